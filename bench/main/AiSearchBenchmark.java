@@ -0,0 +1,97 @@
+package main;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+// Độ sâu và số nút/giây của AiEngine trên bàn 9x9 và 12x12 theo số luồng của ForkJoinPool.
+//
+// Mỗi lần gọi là một nước đi với hạn moveMillis từ cùng một thế cờ giữa ván, bảng chuyển vị được xóa
+// trước mỗi lần để các lần đo độc lập. threads = 1 là tìm tuần tự; lớn hơn thì chia nước ở gốc.
+// Kết quả chính (ops/s) là số nước mỗi giây nên gần như cố định; số liệu cần xem là bộ đếm phụ
+// "nodes" (nút/giây) và độ sâu trung bình in ra stderr cuối mỗi trial.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class AiSearchBenchmark {
+    @Param({"9", "12"})
+    int size;
+
+    @Param({"1", "2", "4", "8"})
+    int threads;
+
+    @Param({"200"})
+    int moveMillis;
+
+    // Thế cờ mở đầu quanh tâm bàn, chưa bên nào có bốn: {hàng, cột} lệch so với tâm, X và O xen kẽ
+    private static final int[][] OPENING = {
+            {0, 0}, {0, 1}, {1, -1}, {1, 1}, {-1, 2}, {-1, -1}, {2, 1}, {0, -2}, {-2, 0}, {2, -1}
+    };
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long nodes;
+    }
+
+    private ForkJoinPool pool;
+    private BitBoard position;
+    private long searches;
+    private long depthSum;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pool = new ForkJoinPool(threads);
+        position = new BitBoard(size);
+        int center = size / 2;
+        int stone = BitBoard.X;
+        for (int[] offset : OPENING) {
+            position.set((center + offset[0]) * size + center + offset[1], stone);
+            stone = 3 - stone;
+        }
+        searches = 0;
+        depthSum = 0;
+    }
+
+    @Setup(Level.Invocation)
+    public void clearTable() {
+        AiEngine.clearTable();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+        if (searches > 0) {
+            System.err.printf("%dx%d, %d luồng: độ sâu trung bình %.2f sau %d lần tìm%n",
+                    size, size, threads, (double) depthSum / searches, searches);
+        }
+    }
+
+    @Benchmark
+    public int move(Counters counters) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(moveMillis);
+        AiEngine.Result result = pool.submit(
+                () -> AiEngine.search(position, BitBoard.X, 5, deadline, threads > 1)).join();
+        counters.nodes += result.nodes;
+        depthSum += result.depth;
+        searches++;
+        return result.move;
+    }
+}
@@ -0,0 +1,138 @@
+package main;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// So sánh chuỗi startsWith/split cũ với Command.lookup + bảng xử lý trong handleClientMessage.
+// Client giả không ở phòng nào, nên cả hai cách chỉ nhận dạng, đọc tham số rồi dừng ở bước vào
+// phòng; TAO_PHONG dùng kích thước vượt giới hạn để không tạo phòng thật.
+// Xem lượng cấp phát bằng: java -jar target/benchmarks.jar CommandDispatch -prof gc
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandDispatchBenchmark {
+    @Param({"DANH", "CHAT", "TAO_PHONG"})
+    String command;
+
+    private String message;
+    private final NullClient client = new NullClient();
+
+    @Setup
+    public void setUp() {
+        switch (command) {
+            case "DANH":
+                message = "DANH|180";
+                break;
+            case "CHAT":
+                message = "CHAT|xin chao ca nha";
+                break;
+            default:
+                message = "TAO_PHONG|phong cua toi|" + (TicTacToeServer.MAX_BOARD_SIZE + 1);
+        }
+    }
+
+    @Benchmark
+    public int legacy() {
+        LegacyDispatch.handle(client, message);
+        return client.sent;
+    }
+
+    @Benchmark
+    public int decoder() {
+        TicTacToeServer.handleClientMessage(client, message);
+        return client.sent;
+    }
+
+    // Bản sao phần nhận dạng của handleClientMessage trước khi có Command
+    static final class LegacyDispatch {
+        static void handle(ClientHandler client, String message) {
+            try {
+                if (message == null || message.isEmpty()) {
+                    return;
+                }
+                if (message.startsWith("TAO_PHONG|")) {
+                    String[] parts = message.split("\\|");
+                    if (parts.length < 2 || parts[1].trim().isEmpty()) {
+                        client.sendMessage("LOI|Tên phòng không hợp lệ");
+                        return;
+                    }
+                    int size = 3;
+                    if (parts.length >= 3) {
+                        try {
+                            size = Integer.parseInt(parts[2].trim());
+                            if (size <= 0) size = 3;
+                        } catch (NumberFormatException ignored) {}
+                    }
+                    if (size > TicTacToeServer.MAX_BOARD_SIZE) {
+                        client.sendMessage("LOI|Kích thước bàn cờ tối đa là " + TicTacToeServer.MAX_BOARD_SIZE);
+                    }
+                    return;
+                }
+                if (message.startsWith("VAO_PHONG|")) {
+                    String[] parts = message.split("\\|", 2);
+                    if (parts.length < 2 || parts[1].trim().isEmpty()) {
+                        client.sendMessage("LOI|Tên phòng không hợp lệ");
+                    }
+                    return;
+                }
+                if (message.equals("NHI_PHAN") || message.equals("LAY_DANH_SACH_PHONG")) {
+                    return;
+                }
+                if (message.startsWith("DANH|")) {
+                    String[] parts = message.split("\\|", 2);
+                    if (parts.length < 2) {
+                        client.sendMessage("LOI|Nước đi không hợp lệ");
+                        return;
+                    }
+                    int position;
+                    try {
+                        position = Integer.parseInt(parts[1]);
+                    } catch (NumberFormatException ex) {
+                        client.sendMessage("LOI|Nước đi không hợp lệ");
+                        return;
+                    }
+                    Room room = client.getCurrentRoom();
+                    if (room != null) {
+                        room.execute(() -> {
+                            Game game = room.getGame();
+                            if (game != null) {
+                                game.makeMove(client, position);
+                            }
+                        });
+                    }
+                    return;
+                }
+                if (message.startsWith("CHAT|")) {
+                    String[] parts = message.split("\\|", 2);
+                    if (parts.length < 2 || parts[1].trim().isEmpty()) {
+                        client.sendMessage("LOI|Nội dung chat không hợp lệ");
+                        return;
+                    }
+                    Room room = client.getCurrentRoom();
+                    if (room != null) {
+                        String text = parts[1].trim();
+                        room.execute(() -> room.broadcastToPlayers("CHAT|" + client.getRemoteAddress() + "|" + text));
+                    }
+                    return;
+                }
+                client.sendMessage("LOI|Thông điệp không được hỗ trợ");
+            } catch (Exception ex) {
+                client.sendMessage("LOI|Lỗi xử lý thông điệp");
+            }
+        }
+    }
+}
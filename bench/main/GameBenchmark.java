@@ -0,0 +1,110 @@
+package main;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Chi phí một nước đi của Game.makeMove (gồm cả kiểm tra thắng và gửi tin cho hai người chơi) và
+// riêng phần kiểm tra thắng BitBoard.winLineThrough, trên bàn 3x3, 9x9 và 12x12.
+//
+// Dãy nước đi được sinh trước sao cho không ai thắng và bàn không đầy, để ván không bao giờ kết thúc
+// (kết thúc ván sẽ ghi vào leaderboard). Người đi trước được chọn ngẫu nhiên trong Game.start nên mỗi
+// nước được thử cho cả hai người chơi; lượt của người kia bị từ chối ngay ở bước kiểm tra lượt.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameBenchmark {
+    @Param({"3", "9", "12"})
+    int size;
+
+    private final NullClient player1 = new NullClient();
+    private final NullClient player2 = new NullClient();
+    private Game game;
+    private int[] moves;
+    private int next; // nước kế tiếp của playMove
+    // Bàn cờ đã đặt sẵn các nước trên, dùng cho checkWin
+    private BitBoard filled;
+    private int probe;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        stdout = NullClient.silenceStdout();
+        int targetRun = size == 3 ? 3 : 5;
+        filled = new BitBoard(size);
+        List<Integer> cells = new ArrayList<>();
+        for (int p = 0; p < size * size; p++) {
+            cells.add(p);
+        }
+        Collections.shuffle(cells, new Random(42));
+        List<Integer> sequence = new ArrayList<>();
+        boolean progress = true;
+        while (progress && sequence.size() < size * size - 1) {
+            progress = false;
+            int stone = sequence.size() % 2 == 0 ? BitBoard.X : BitBoard.O;
+            for (int p : cells) {
+                if (!filled.isEmpty(p)) {
+                    continue;
+                }
+                filled.set(p, stone);
+                if (filled.winLineThrough(p, stone, targetRun) == null) {
+                    sequence.add(p);
+                    progress = true;
+                    break;
+                }
+                filled.unset(p);
+            }
+        }
+        moves = sequence.stream().mapToInt(Integer::intValue).toArray();
+        System.err.println("Số nước mỗi ván (" + size + "x" + size + "): " + moves.length);
+        game = new Game(player1, player2, size);
+        game.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    // Một nước đi mỗi lần gọi (số nước mỗi ván khác nhau theo kích thước nên không dùng được
+    // @OperationsPerInvocation); hết dãy thì chơi lại, nên chi phí chơi lại được chia đều cho các nước của ván
+    @Benchmark
+    public int playMove() {
+        int position = moves[next];
+        game.makeMove(player1, position);
+        game.makeMove(player2, position);
+        if (++next == moves.length) {
+            next = 0;
+            game.resetGame();
+        }
+        return player1.sent + player2.sent;
+    }
+
+    // Kiểm tra thắng qua một ô bất kỳ trên bàn đã có quân
+    @Benchmark
+    public int[] checkWin() {
+        int position = moves[probe];
+        probe = probe + 1 == moves.length ? 0 : probe + 1;
+        return filled.winLineThrough(position, filled.get(position), size == 3 ? 3 : 5);
+    }
+}
@@ -0,0 +1,88 @@
+package main;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// LAY_BANG_XEP_HANG với 1k và 100k người chơi:
+//  - cachedTopN: không có kết quả mới, payload đã lưu đệm được trả lại
+//  - topNAfterResult: một ván vừa kết thúc (ghi kết quả + dựng lại top 20 từ chỉ mục xếp hạng)
+//  - profile: HO_SO của một người chơi bất kỳ (đệm hồ sơ + thứ hạng từ chỉ mục)
+//  - fullSortTopN: cách cũ, chụp toàn bảng rồi sắp xếp, để so sánh
+// Mỗi fork ghi leaderboard vào một thư mục tạm riêng (leaderboard.dir), với bảng trên heap + nhật ký
+// (store=journal) hoặc file ánh xạ bộ nhớ (store=mmap).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LeaderboardBenchmark {
+    @Param({"1000", "100000"})
+    int players;
+
+    @Param({"journal", "mmap"})
+    String store;
+
+    private final Random random = new Random(7);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        // Phải đặt trước khi LeaderboardManager được nạp
+        System.setProperty("leaderboard.dir", Files.createTempDirectory("leaderboard-bench").toString());
+        System.setProperty("leaderboard.compactEvery", String.valueOf(Integer.MAX_VALUE));
+        System.setProperty("leaderboard.store", store);
+        LeaderboardManager.awaitReady(TimeUnit.MINUTES.toMillis(1));
+        for (int i = 0; i < players; i++) {
+            String result = i % 3 == 0 ? "HOA" : i % 3 == 1 ? "X" : "O";
+            LeaderboardManager.recordGame(result, "player" + i, "player" + random.nextInt(players));
+        }
+    }
+
+    @Benchmark
+    public String cachedTopN() {
+        return LeaderboardManager.serializeTopN(20);
+    }
+
+    @Benchmark
+    public String topNAfterResult() {
+        LeaderboardManager.recordGame("X", "player" + random.nextInt(players), "player" + random.nextInt(players));
+        return LeaderboardManager.serializeTopN(20);
+    }
+
+    @Benchmark
+    public String profile() {
+        return LeaderboardManager.serializeProfile("player" + random.nextInt(players));
+    }
+
+    @Benchmark
+    public String fullSortTopN() {
+        List<Map.Entry<String, LeaderboardManager.StatsSnapshot>> list =
+                new ArrayList<>(LeaderboardManager.snapshot().entrySet());
+        list.sort((a, b) -> Integer.compare(b.getValue().rating, a.getValue().rating));
+        StringBuilder sb = new StringBuilder("LEADERBOARD");
+        for (int i = 0; i < Math.min(20, list.size()); i++) {
+            LeaderboardManager.StatsSnapshot s = list.get(i).getValue();
+            sb.append("|").append(list.get(i).getKey()).append("|").append(s.wins)
+                    .append("|").append(s.losses).append("|").append(s.draws).append("|").append(s.rating);
+        }
+        return sb.toString();
+    }
+}
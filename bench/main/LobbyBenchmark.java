@@ -0,0 +1,76 @@
+package main;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Cập nhật danh sách phòng cho các client ở lobby khi có nhiều phòng:
+//  - deltaTick: một phòng mới rồi một tick, mỗi client nhận một CAP_NHAT_PHONG ngắn
+//  - fullBroadcast: cách cũ, dựng toàn bộ danh sách và gửi cho mọi client sau mỗi thay đổi
+//  - snapshot: ảnh chụp đầy đủ mà một client nhận được khi vào lobby
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LobbyBenchmark {
+    @Param({"100", "10000"})
+    int roomCount;
+
+    @Param({"1000"})
+    int subscriberCount;
+
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private LobbyChannel lobby;
+    private NullClient[] clients;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        NullClient host = new NullClient();
+        for (int i = 0; i < roomCount; i++) {
+            rooms.put("phong-" + i, new Room("phong-" + i, host, 3));
+        }
+        lobby = new LobbyChannel(rooms);
+        clients = new NullClient[subscriberCount];
+        for (int i = 0; i < subscriberCount; i++) {
+            clients[i] = new NullClient();
+            lobby.subscribe(clients[i]);
+        }
+    }
+
+    @Benchmark
+    public int deltaTick() {
+        lobby.roomAdded("phong-" + (next++ % roomCount));
+        lobby.tick();
+        return clients[0].sent;
+    }
+
+    @Benchmark
+    public int fullBroadcast() {
+        String message = lobby.snapshot();
+        for (NullClient client : clients) {
+            client.sendMessage(message);
+        }
+        return clients[0].sent;
+    }
+
+    @Benchmark
+    public String snapshot() {
+        return lobby.snapshot();
+    }
+}
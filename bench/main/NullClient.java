@@ -0,0 +1,31 @@
+package main;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// Client giả cho benchmark: không có socket, chỉ đếm số ký tự được gửi để JIT không bỏ qua việc gửi
+class NullClient extends ClientHandler {
+    int sent;
+
+    @Override
+    public void sendMessage(String message) {
+        sent += message.length();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "127.0.0.1";
+    }
+
+    // Game/Room in log ra System.out; tắt đi trong lúc đo
+    static PrintStream silenceStdout() {
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return original;
+    }
+}
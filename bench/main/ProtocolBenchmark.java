@@ -0,0 +1,81 @@
+package main;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Một tin nhắn của máy chủ đi hết một vòng: mã hóa thành byte như trên đường truyền rồi giải mã
+// như phía client, ở chế độ văn bản (getBytes / new String / split) và nhị phân (WireProtocol).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+    @Param({"DANH|180|X", "LUOT_CUA_BAN", "HIGHLIGHT|200,201,202,203,204", "CHAT|X|xin chao ca nha"})
+    String message;
+
+    private final WireProtocol.Frame frame = new WireProtocol.Frame();
+
+    @Benchmark
+    public int textRoundTrip() {
+        byte[] wire = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        String line = new String(wire, 0, wire.length - 1, StandardCharsets.UTF_8);
+        String[] parts = line.split("\\|");
+        int sum = parts.length;
+        if (line.startsWith("DANH|")) {
+            sum += Integer.parseInt(parts[1]) + parts[2].length();
+        } else if (line.startsWith("HIGHLIGHT|")) {
+            for (String p : parts[1].split(",")) {
+                sum += Integer.parseInt(p);
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int binaryRoundTrip() {
+        byte[] wire = WireProtocol.encode(message);
+        frame.wrap(wire, 0, wire.length);
+        int sum = frame.opcode();
+        switch (frame.opcode()) {
+            case WireProtocol.DANH:
+                sum += frame.readVarint() + frame.readByte();
+                break;
+            case WireProtocol.HIGHLIGHT:
+                for (int n = frame.readVarint(); n > 0; n--) {
+                    sum += frame.readVarint();
+                }
+                break;
+            case WireProtocol.TEXT:
+                sum += frame.readText().split("\\|").length;
+                break;
+            default:
+                break;
+        }
+        return sum;
+    }
+
+    // Riêng phần máy chủ làm cho mỗi tin nhắn gửi đi
+    @Benchmark
+    public byte[] textEncode() {
+        return (message + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return WireProtocol.encode(message);
+    }
+}
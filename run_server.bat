@@ -20,7 +20,7 @@ if "%CP%"=="" (
 )
 
 echo Using classpath: %CP%
-java -cp "%CP%" main.TicTacToeServer
+java -cp "%CP%" main.TicTacToeServer %*
 if errorlevel 1 (
     echo Server exited with error. See messages above.
     pause
@@ -0,0 +1,570 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Tìm nước đi cho người chơi máy (BotPlayer).
+//
+// Bàn 3x3 (đủ 3 quân thắng): minimax cắt tỉa alpha-beta tới hết ván, chơi hoàn hảo; các nước tốt
+// ngang nhau được chọn ngẫu nhiên để các ván không lặp lại.
+//
+// Bàn lớn (đủ 5 quân thắng): negamax alpha-beta đào sâu dần cho tới khi hết thời gian.
+//  - Điểm thế cờ theo mẫu: mỗi cửa sổ 5 ô liên tiếp chỉ chứa quân của một bên được tính điểm theo số
+//    quân trong đó. Đặt/gỡ một quân chỉ tính lại các cửa sổ đi qua ô đó.
+//  - Nước thử chỉ gồm các ô trống cách quân đã có tối đa RADIUS ô, sắp theo điểm tấn công + phòng thủ
+//    và giữ BEAM ô tốt nhất. Đe dọa được xét trước hết: có nước thắng ngay thì đi luôn, đối thủ sắp đủ
+//    5 thì chỉ xét các ô chặn.
+//  - Bảng chuyển vị (khóa Zobrist) giữ kết quả giữa các lần đào sâu và cho nước tốt nhất cũ đi đầu.
+// Hết thời gian giữa chừng thì dùng nước tốt nhất của độ sâu đã tìm trọn vẹn gần nhất.
+//
+// Chế độ song song (khi được gọi trong một ForkJoinPool): ở mỗi độ sâu, nước đầu tiên ở gốc được tìm
+// trước để có cận alpha (Young Brothers Wait), sau đó các nước còn lại ở gốc được chia thành tác vụ
+// fork-join, mỗi tác vụ một bản sao trạng thái tìm kiếm. Bảng chuyển vị không khóa được dùng chung
+// nên kết quả của luồng này giúp cắt tỉa cho luồng khác.
+final class AiEngine {
+    static final int WIN = 1_000_000;
+    private static final int INF = WIN + 1;
+    // Điểm một cửa sổ chỉ có quân của một bên, theo số quân trong cửa sổ
+    private static final int[] WINDOW_SCORE = {0, 1, 12, 150, 2_500, 100_000};
+    private static final int RADIUS = 2;
+    private static final int BEAM = 10;
+    private static final int ROOT_BEAM = 20;
+    private static final int MAX_DEPTH = 24;
+    // Số nút giữa hai lần xem đồng hồ (lũy thừa của 2 trừ 1). Mỗi nút tốn vài µs nên xem dày cũng rẻ,
+    // và hạn vẫn được giữ khi các luồng song song phải chia nhau ít nhân CPU.
+    private static final int CLOCK_MASK = 15;
+    private static final int WALL = 3;
+    private static final int[] DIR_ROW = {0, 1, 1, -1};
+    private static final int[] DIR_COL = {1, 0, 1, 1};
+    private static final int WIN_ORDER = 1 << 30;
+    private static final int BLOCK_ORDER = 1 << 29;
+    private static final int TT_ORDER = 1 << 28;
+
+    // Khóa Zobrist theo kích thước bàn cờ: 2 khóa mỗi ô (X, O) và một khóa cho lượt của X
+    private static final Map<Integer, long[]> ZOBRIST = new ConcurrentHashMap<>();
+    // Dùng chung cho mọi ván và mọi luồng: 2^ai.ttBits ô, 16 byte mỗi ô (mặc định 16 MB)
+    private static final TranspositionTable TABLE = new TranspositionTable(Integer.getInteger("ai.ttBits", 20));
+
+    static final class Result {
+        final int move;
+        final int score;
+        final int depth; // độ sâu trọn vẹn cuối cùng
+        final long nodes;
+
+        Result(int move, int score, int depth, long nodes) {
+            this.move = move;
+            this.score = score;
+            this.depth = depth;
+            this.nodes = nodes;
+        }
+    }
+
+    // Ném ra khi hết giờ để thoát khỏi đệ quy; không cần stack trace
+    private static final class Timeout extends RuntimeException {
+        Timeout() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Timeout TIMEOUT = new Timeout();
+
+    // Nước đi cho bên side trên bàn position (không bị sửa), hoặc -1 nếu bàn đã đầy. parallel chỉ có
+    // tác dụng khi luồng gọi thuộc một ForkJoinPool: các tác vụ con chạy trên chính pool đó.
+    static Result search(BitBoard position, int side, int targetRun, long deadlineNanos, boolean parallel) {
+        if (position.isFull()) {
+            return new Result(-1, 0, 0, 0);
+        }
+        if (targetRun == 3 && position.size() == 3) {
+            return perfect(BitBoard.fromSnapshot(3, position.toSnapshot()), side);
+        }
+        AiEngine engine = new AiEngine(position, targetRun, deadlineNanos, TABLE);
+        return engine.iterate(side, parallel && ForkJoinTask.inForkJoinPool());
+    }
+
+    // Xóa bảng chuyển vị, để các lần đo của benchmark không dùng lại kết quả của nhau
+    static void clearTable() {
+        TABLE.clear();
+    }
+
+    // ---- Bàn 3x3 ----
+
+    private static Result perfect(BitBoard board, int side) {
+        long[] nodes = new long[1];
+        List<Integer> best = new ArrayList<>();
+        int bestScore = -INF;
+        for (int p = 0; p < board.cells(); p++) {
+            if (!board.isEmpty(p)) {
+                continue;
+            }
+            board.set(p, side);
+            int score = board.winLineThrough(p, side, 3) != null ? WIN - 1
+                    : board.isFull() ? 0 : -minimax(board, 3 - side, 1, -INF, INF, nodes);
+            board.unset(p);
+            if (score > bestScore) {
+                bestScore = score;
+                best.clear();
+            }
+            if (score == bestScore) {
+                best.add(p);
+            }
+        }
+        int move = best.get(ThreadLocalRandom.current().nextInt(best.size()));
+        return new Result(move, bestScore, board.cells() - board.filled(), nodes[0]);
+    }
+
+    private static int minimax(BitBoard board, int side, int ply, int alpha, int beta, long[] nodes) {
+        nodes[0]++;
+        int best = -INF;
+        for (int p = 0; p < board.cells(); p++) {
+            if (!board.isEmpty(p)) {
+                continue;
+            }
+            board.set(p, side);
+            int score = board.winLineThrough(p, side, 3) != null ? WIN - ply - 1
+                    : board.isFull() ? 0 : -minimax(board, 3 - side, ply + 1, -beta, -alpha, nodes);
+            board.unset(p);
+            if (score > best) {
+                best = score;
+            }
+            if (best > alpha) {
+                alpha = best;
+            }
+            if (alpha >= beta) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    // ---- Bàn lớn ----
+
+    private final int size;
+    private final int cells;
+    private final int run;
+    private final long deadline;
+    private final long[] zobrist;
+    private final TranspositionTable table;
+    // Bản sao bàn cờ cho tìm kiếm: mỗi ô một byte (BitBoard.EMPTY/X/O), đọc nhanh hơn bitset ở đường nóng
+    private final byte[] grid;
+    private int filled;
+    // Số quân trong vùng (2*RADIUS+1)^2 quanh mỗi ô; > 0 nghĩa là ô đáng xét
+    private final int[] near;
+    // 2*run-1 ô trên một đường đi qua ô đang xét, WALL cho phần nằm ngoài bàn cờ
+    private final int[] line;
+    private final int[][] moveBuf = new int[MAX_DEPTH + 1][ROOT_BEAM];
+    private final int[][] keyBuf = new int[MAX_DEPTH + 1][ROOT_BEAM];
+    private int evalX; // điểm thế cờ theo phía X
+    private long hash;
+    private long nodes;
+    private int rootMove; // nước tốt nhất của lần gọi negamax ở gốc đang chạy
+    // Kết quả phụ của orderKey cho ô vừa xét
+    private boolean winsNow;
+    private boolean blocksWin;
+
+    private AiEngine(BitBoard position, int targetRun, long deadline, TranspositionTable table) {
+        this.size = position.size();
+        this.cells = position.cells();
+        this.run = targetRun;
+        this.deadline = deadline;
+        this.table = table;
+        this.grid = new byte[cells];
+        this.near = new int[cells];
+        this.line = new int[2 * targetRun - 1];
+        this.zobrist = ZOBRIST.computeIfAbsent(size, AiEngine::newZobrist);
+        // Đặt lại từng quân lên bàn trống để điểm, khóa và vùng lân cận được tính bằng cùng một đường
+        for (int p = 0; p < cells; p++) {
+            int stone = position.get(p);
+            if (stone != BitBoard.EMPTY) {
+                place(p, stone);
+            }
+        }
+    }
+
+    private static long[] newZobrist(int size) {
+        SplittableRandom random = new SplittableRandom(0x5DEECE66DL ^ size);
+        long[] keys = new long[size * size * 2 + 1];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextLong();
+        }
+        return keys;
+    }
+
+    private long key(int side) {
+        return side == BitBoard.X ? hash ^ zobrist[cells * 2] : hash;
+    }
+
+    // Bản sao trạng thái cho một tác vụ song song
+    private AiEngine(AiEngine parent) {
+        this.size = parent.size;
+        this.cells = parent.cells;
+        this.run = parent.run;
+        this.deadline = parent.deadline;
+        this.table = parent.table;
+        this.zobrist = parent.zobrist;
+        this.grid = parent.grid.clone();
+        this.near = parent.near.clone();
+        this.line = new int[parent.line.length];
+        this.filled = parent.filled;
+        this.evalX = parent.evalX;
+        this.hash = parent.hash;
+    }
+
+    private Result iterate(int side, boolean parallel) {
+        if (filled == 0) {
+            return new Result((size / 2) * size + size / 2, 0, 0, 0);
+        }
+        int count = generate(side, 0, ROOT_BEAM, -1);
+        int bestMove = moveBuf[0][0];
+        if (count < 0) {
+            return new Result(bestMove, WIN - 1, 1, 1); // thắng ngay
+        }
+        int bestScore = 0;
+        int completed = 0;
+        int maxDepth = Math.min(MAX_DEPTH, cells - filled);
+        try {
+            for (int depth = 1; depth <= maxDepth; depth++) {
+                bestScore = parallel ? splitRoot(depth, side) : negamax(depth, 0, -INF, INF, side);
+                bestMove = rootMove;
+                completed = depth;
+                if (Math.abs(bestScore) >= WIN - MAX_DEPTH) {
+                    break; // đã thấy kết cục, đào sâu thêm không đổi được gì
+                }
+            }
+        } catch (Timeout e) {
+            // giữ kết quả của độ sâu trọn vẹn gần nhất
+        }
+        return new Result(bestMove, bestScore, completed, nodes);
+    }
+
+    private int negamax(int depth, int ply, int alpha, int beta, int side) {
+        if ((++nodes & CLOCK_MASK) == 0 && System.nanoTime() > deadline) {
+            throw TIMEOUT;
+        }
+        if (depth == 0) {
+            return side == BitBoard.X ? evalX : -evalX;
+        }
+        long key = key(side);
+        long entry = table.probe(key);
+        int ttMove = -1;
+        if (entry != 0) {
+            ttMove = TranspositionTable.move(entry);
+            if (ply > 0 && TranspositionTable.depth(entry) >= depth) {
+                int score = TranspositionTable.score(entry);
+                int flag = TranspositionTable.flag(entry);
+                if (flag == TranspositionTable.EXACT
+                        || (flag == TranspositionTable.LOWER && score >= beta)
+                        || (flag == TranspositionTable.UPPER && score <= alpha)) {
+                    return score;
+                }
+            }
+        }
+        int count = generate(side, ply, ply == 0 ? ROOT_BEAM : BEAM, ttMove);
+        if (count < 0) {
+            if (ply == 0) {
+                rootMove = moveBuf[ply][0];
+            }
+            return WIN - ply - 1;
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        int alphaOrig = alpha;
+        int best = -INF;
+        int bestMove = moveBuf[ply][0];
+        int other = 3 - side;
+        for (int i = 0; i < count; i++) {
+            int move = moveBuf[ply][i];
+            int delta = place(move, side);
+            int score = filled == cells ? 0 : -negamax(depth - 1, ply + 1, -beta, -alpha, other);
+            unplace(move, side, delta);
+            if (score > best) {
+                best = score;
+                bestMove = move;
+            }
+            if (best > alpha) {
+                alpha = best;
+            }
+            if (alpha >= beta) {
+                break;
+            }
+        }
+        if (ply == 0) {
+            rootMove = bestMove;
+        }
+        int flag = best <= alphaOrig ? TranspositionTable.UPPER
+                : best >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+        table.store(key, best, bestMove, depth, flag);
+        return best;
+    }
+
+    // Một độ sâu của tìm kiếm song song ở gốc. Nước đầu (theo thứ tự đã sắp, thường là nước tốt nhất
+    // của độ sâu trước) được tìm tuần tự với cửa sổ đầy đủ; các nước còn lại chạy song song, mỗi nước
+    // thử trước với cửa sổ rỗng quanh alpha chung và chỉ tìm lại khi vượt được nó.
+    private int splitRoot(int depth, int side) {
+        long key = key(side);
+        int count = generate(side, 0, ROOT_BEAM, TranspositionTable.move(table.probe(key)));
+        int[] moves = moveBuf[0].clone();
+        int other = 3 - side;
+        int first = moves[0];
+        int delta = place(first, side);
+        int best = filled == cells ? 0 : -negamax(depth - 1, 1, -INF, INF, other);
+        unplace(first, side, delta);
+        int bestMove = first;
+        if (count > 1) {
+            AtomicInteger alpha = new AtomicInteger(best);
+            Brother[] brothers = new Brother[count - 1];
+            for (int i = 1; i < count; i++) {
+                brothers[i - 1] = new Brother(this, moves[i], depth, side, alpha);
+            }
+            ForkJoinTask.invokeAll(brothers);
+            boolean timedOut = false;
+            for (Brother b : brothers) {
+                nodes += b.nodes;
+                timedOut |= b.timedOut;
+                if (!b.timedOut && b.score > best) {
+                    best = b.score;
+                    bestMove = b.move;
+                }
+            }
+            if (timedOut) {
+                throw TIMEOUT;
+            }
+        }
+        rootMove = bestMove;
+        table.store(key, best, bestMove, depth, TranspositionTable.EXACT);
+        return best;
+    }
+
+    private static final class Brother extends RecursiveAction {
+        private final AiEngine parent;
+        final int move;
+        private final int depth;
+        private final int side;
+        private final AtomicInteger alpha;
+        int score;
+        long nodes;
+        boolean timedOut;
+
+        Brother(AiEngine parent, int move, int depth, int side, AtomicInteger alpha) {
+            this.parent = parent;
+            this.move = move;
+            this.depth = depth;
+            this.side = side;
+            this.alpha = alpha;
+        }
+
+        @Override
+        protected void compute() {
+            if (System.nanoTime() > parent.deadline) {
+                timedOut = true; // tới lượt chạy thì đã hết giờ
+                return;
+            }
+            AiEngine engine = new AiEngine(parent);
+            engine.place(move, side);
+            try {
+                if (engine.filled == engine.cells) {
+                    score = 0;
+                } else {
+                    int a = alpha.get();
+                    score = -engine.negamax(depth - 1, 1, -a - 1, -a, 3 - side);
+                    if (score > a) {
+                        score = -engine.negamax(depth - 1, 1, -INF, -a, 3 - side);
+                        alpha.accumulateAndGet(score, Math::max);
+                    }
+                }
+            } catch (Timeout e) {
+                timedOut = true;
+            }
+            nodes = engine.nodes;
+        }
+    }
+
+    // Các nước thử của side ở tầng ply, tốt nhất trước, trong moveBuf[ply]. Trả về -1 (nước thắng ở
+    // moveBuf[ply][0]) nếu side thắng được ngay; nếu đối thủ dọa thắng thì chỉ gồm các ô chặn.
+    private int generate(int side, int ply, int limit, int ttMove) {
+        int[] moves = moveBuf[ply];
+        int[] keys = keyBuf[ply];
+        int count = 0;
+        boolean blocking = false;
+        for (int p = 0; p < cells; p++) {
+            if (near[p] == 0 || grid[p] != BitBoard.EMPTY) {
+                continue;
+            }
+            int key = orderKey(p, side);
+            if (winsNow) {
+                moves[0] = p;
+                return -1;
+            }
+            if (blocksWin && !blocking) {
+                blocking = true;
+                count = 0;
+            } else if (blocking && !blocksWin) {
+                continue;
+            }
+            if (p == ttMove) {
+                key += TT_ORDER;
+            }
+            // Chèn vào danh sách tối đa limit phần tử, sắp giảm dần
+            int i;
+            if (count < limit) {
+                i = count++;
+            } else if (key > keys[limit - 1]) {
+                i = limit - 1;
+            } else {
+                continue;
+            }
+            while (i > 0 && keys[i - 1] < key) {
+                keys[i] = keys[i - 1];
+                moves[i] = moves[i - 1];
+                i--;
+            }
+            keys[i] = key;
+            moves[i] = p;
+        }
+        return count;
+    }
+
+    // Thứ tự xét ô trống p cho side: điểm side được thêm nếu đánh vào đây (tấn công) cộng điểm đối thủ
+    // được thêm nếu họ đánh vào đây (phòng thủ). Đặt winsNow/blocksWin khi p hoàn thành chuỗi.
+    private int orderKey(int p, int side) {
+        winsNow = false;
+        blocksWin = false;
+        int attack = 0;
+        int defense = 0;
+        for (int dir = 0; dir < 4; dir++) {
+            loadLine(p, dir);
+            // Trượt cửa sổ run ô trên line; ô giữa (p) đang trống nên không được đếm
+            int own = 0;
+            int opp = 0;
+            int walls = 0;
+            for (int i = 0; i < line.length; i++) {
+                int v = line[i];
+                if (v == side) {
+                    own++;
+                } else if (v == WALL) {
+                    walls++;
+                } else if (v != BitBoard.EMPTY) {
+                    opp++;
+                }
+                if (i < run - 1) {
+                    continue;
+                }
+                if (walls == 0) {
+                    if (opp == 0) {
+                        attack += WINDOW_SCORE[own + 1] - WINDOW_SCORE[own];
+                        defense += own == 0 ? WINDOW_SCORE[1] : 0;
+                        winsNow |= own == run - 1;
+                    } else if (own == 0) {
+                        attack += WINDOW_SCORE[opp];
+                        defense += WINDOW_SCORE[opp + 1] - WINDOW_SCORE[opp];
+                        blocksWin |= opp == run - 1;
+                    }
+                }
+                int out = line[i - run + 1];
+                if (out == side) {
+                    own--;
+                } else if (out == WALL) {
+                    walls--;
+                } else if (out != BitBoard.EMPTY) {
+                    opp--;
+                }
+            }
+        }
+        if (winsNow) {
+            return WIN_ORDER;
+        }
+        return (blocksWin ? BLOCK_ORDER : 0) + attack + defense;
+    }
+
+    // Tổng điểm (theo phía X) của các cửa sổ đi qua ô p
+    private int windowsThrough(int p) {
+        int total = 0;
+        for (int dir = 0; dir < 4; dir++) {
+            loadLine(p, dir);
+            int x = 0;
+            int o = 0;
+            int walls = 0;
+            for (int i = 0; i < line.length; i++) {
+                int v = line[i];
+                if (v == BitBoard.X) {
+                    x++;
+                } else if (v == BitBoard.O) {
+                    o++;
+                } else if (v == WALL) {
+                    walls++;
+                }
+                if (i < run - 1) {
+                    continue;
+                }
+                if (walls == 0) {
+                    if (o == 0) {
+                        total += WINDOW_SCORE[x];
+                    } else if (x == 0) {
+                        total -= WINDOW_SCORE[o];
+                    }
+                }
+                int out = line[i - run + 1];
+                if (out == BitBoard.X) {
+                    x--;
+                } else if (out == BitBoard.O) {
+                    o--;
+                } else if (out == WALL) {
+                    walls--;
+                }
+            }
+        }
+        return total;
+    }
+
+    // Nạp vào line các ô trên đường qua p theo hướng dir, từ -(run-1) tới +(run-1)
+    private void loadLine(int p, int dir) {
+        int row = p / size;
+        int col = p % size;
+        int dr = DIR_ROW[dir];
+        int dc = DIR_COL[dir];
+        int reach = run - 1;
+        for (int k = -reach; k <= reach; k++) {
+            int r = row + k * dr;
+            int c = col + k * dc;
+            line[k + reach] = r >= 0 && r < size && c >= 0 && c < size ? grid[r * size + c] : WALL;
+        }
+    }
+
+    // Đặt quân và cập nhật điểm, khóa, vùng lân cận; trả về độ thay đổi điểm để unplace hoàn lại
+    private int place(int p, int stone) {
+        int before = windowsThrough(p);
+        grid[p] = (byte) stone;
+        filled++;
+        int delta = windowsThrough(p) - before;
+        evalX += delta;
+        hash ^= zobrist[p * 2 + stone - 1];
+        touchNeighbours(p, 1);
+        return delta;
+    }
+
+    private void unplace(int p, int stone, int delta) {
+        grid[p] = BitBoard.EMPTY;
+        filled--;
+        evalX -= delta;
+        hash ^= zobrist[p * 2 + stone - 1];
+        touchNeighbours(p, -1);
+    }
+
+    private void touchNeighbours(int p, int step) {
+        int row = p / size;
+        int col = p % size;
+        for (int r = Math.max(0, row - RADIUS); r <= Math.min(size - 1, row + RADIUS); r++) {
+            for (int c = Math.max(0, col - RADIUS); c <= Math.min(size - 1, col + RADIUS); c++) {
+                near[r * size + c] += step;
+            }
+        }
+    }
+}
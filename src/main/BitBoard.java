@@ -0,0 +1,189 @@
+package main;
+
+import java.util.Arrays;
+
+// Bàn cờ dạng bitset: mỗi người chơi một long[], mỗi ô một bit.
+//
+// Các hàng được lưu với bước nhảy size + 1: cột cuối cùng của mỗi hàng là cột đệm luôn bằng 0,
+// nhờ vậy khi dịch bit theo hướng ngang hoặc chéo, chuỗi quân không bị "tràn" sang hàng kế tiếp.
+// Vị trí bên ngoài (position = row * size + col) vẫn giống như giao thức DANH|position.
+class BitBoard {
+    static final int EMPTY = 0;
+    static final int X = 1;
+    static final int O = 2;
+
+    // Ngang, dọc, chéo xuống, chéo lên
+    private static final int[] DIR_ROW = {0, 1, 1, -1};
+    private static final int[] DIR_COL = {1, 0, 1, 1};
+
+    private final int size;
+    private final int stride;
+    // Khoảng cách bit tương ứng với bốn hướng trên trong bố cục có cột đệm
+    private final int[] shifts;
+    private final long[] xBits;
+    private final long[] oBits;
+    private int filled;
+
+    BitBoard(int size) {
+        this.size = size;
+        this.stride = size + 1;
+        this.shifts = new int[]{1, stride, stride + 1, stride - 1};
+        int words = (size * stride + 63) >>> 6;
+        this.xBits = new long[words];
+        this.oBits = new long[words];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int cells() {
+        return size * size;
+    }
+
+    // Số ô đã có quân
+    int filled() {
+        return filled;
+    }
+
+    boolean isFull() {
+        return filled == size * size;
+    }
+
+    int get(int position) {
+        int bit = bitIndex(position);
+        if (test(xBits, bit)) return X;
+        if (test(oBits, bit)) return O;
+        return EMPTY;
+    }
+
+    boolean isEmpty(int position) {
+        int bit = bitIndex(position);
+        return !test(xBits, bit) && !test(oBits, bit);
+    }
+
+    // Đặt quân lên một ô trống
+    void set(int position, int player) {
+        int bit = bitIndex(position);
+        long[] bits = player == X ? xBits : oBits;
+        bits[bit >>> 6] |= 1L << bit;
+        filled++;
+    }
+
+    // Gỡ quân khỏi một ô (dùng khi tìm kiếm nước đi thử)
+    void unset(int position) {
+        int bit = bitIndex(position);
+        long mask = ~(1L << bit);
+        if (test(xBits, bit) || test(oBits, bit)) {
+            filled--;
+        }
+        xBits[bit >>> 6] &= mask;
+        oBits[bit >>> 6] &= mask;
+    }
+
+    void clear() {
+        Arrays.fill(xBits, 0L);
+        Arrays.fill(oBits, 0L);
+        filled = 0;
+    }
+
+    // Tìm chuỗi targetRun quân đi qua ô vừa đánh. Với mỗi hướng, các ô trong phạm vi
+    // ±(targetRun - 1) được gom thành một mặt nạ bit nhỏ rồi dò chuỗi bằng phép dịch-và-AND,
+    // nên chi phí là O(targetRun) và không cấp phát gì trừ khi thực sự có người thắng.
+    int[] winLineThrough(int position, int player, int targetRun) {
+        long[] bits = player == X ? xBits : oBits;
+        int row = position / size;
+        int col = position % size;
+        int reach = targetRun - 1;
+        for (int dir = 0; dir < 4; dir++) {
+            int dr = DIR_ROW[dir];
+            int dc = DIR_COL[dir];
+            int line = 0;
+            for (int k = -reach; k <= reach; k++) {
+                int r = row + k * dr;
+                int c = col + k * dc;
+                if (r >= 0 && r < size && c >= 0 && c < size && test(bits, r * stride + c)) {
+                    line |= 1 << (k + reach);
+                }
+            }
+            int run = line;
+            for (int k = 1; k < targetRun && run != 0; k++) {
+                run &= line >>> k;
+            }
+            if (run != 0) {
+                int start = Integer.numberOfTrailingZeros(run) - reach;
+                int[] winLine = new int[targetRun];
+                for (int k = 0; k < targetRun; k++) {
+                    winLine[k] = (row + (start + k) * dr) * size + (col + (start + k) * dc);
+                }
+                return winLine;
+            }
+        }
+        return null;
+    }
+
+    // Kiểm tra toàn bàn cờ xem người chơi có chuỗi targetRun quân hay không, bằng cách AND bitset
+    // với chính nó dịch đi 1, 2, ..., targetRun - 1 bước theo từng hướng. Không cấp phát.
+    boolean hasRun(int player, int targetRun) {
+        long[] bits = player == X ? xBits : oBits;
+        for (int shift : shifts) {
+            for (int w = 0; w < bits.length; w++) {
+                long m = bits[w];
+                for (int k = 1; k < targetRun && m != 0; k++) {
+                    m &= shiftedWord(bits, w, k * shift);
+                }
+                if (m != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Ảnh chụp gọn của bàn cờ: 2 bit mỗi ô (0 trống, 1 X, 2 O), 4 ô mỗi byte
+    byte[] toSnapshot() {
+        int cells = size * size;
+        byte[] data = new byte[(cells + 3) >>> 2];
+        for (int p = 0; p < cells; p++) {
+            int v = get(p);
+            if (v != EMPTY) {
+                data[p >>> 2] |= (byte) (v << ((p & 3) << 1));
+            }
+        }
+        return data;
+    }
+
+    static BitBoard fromSnapshot(int size, byte[] data) {
+        BitBoard board = new BitBoard(size);
+        int cells = size * size;
+        for (int p = 0; p < cells && (p >>> 2) < data.length; p++) {
+            int v = (data[p >>> 2] >>> ((p & 3) << 1)) & 3;
+            if (v == X || v == O) {
+                board.set(p, v);
+            }
+        }
+        return board;
+    }
+
+    private int bitIndex(int position) {
+        return (position / size) * stride + (position % size);
+    }
+
+    private static boolean test(long[] bits, int bit) {
+        return (bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    // Word thứ w của (bits >>> shift), coi các bit ngoài mảng là 0
+    private static long shiftedWord(long[] bits, int w, int shift) {
+        int src = w + (shift >>> 6);
+        int offset = shift & 63;
+        if (src >= bits.length) {
+            return 0L;
+        }
+        long lo = bits[src] >>> offset;
+        if (offset != 0 && src + 1 < bits.length) {
+            lo |= bits[src + 1] << (64 - offset);
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,108 @@
+package main;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+
+// Người chơi máy ngồi ghế khách của một phòng. Không có socket: Game gửi tin cho máy như với một
+// client thật, và máy trả lời bằng cách đưa nước đi vào hộp thư của phòng.
+//
+// Tin nhắn của Game đều đến từ hộp thư của phòng nên bàn cờ riêng của máy chỉ được chạm tới ở đó.
+// Việc tìm nước đi (AiEngine) chạy trên một pool dùng chung có số luồng giới hạn (-Dai.threads, mặc
+// định nửa số nhân CPU), tách khỏi ROOM_EXECUTOR, nên máy nghĩ lâu không làm chậm phòng của người
+// thật. Mỗi nước có hạn -Dai.moveMillis (mặc định 500ms) tính từ lúc tới lượt, kể cả thời gian chờ
+// trong pool. Trên bàn lớn, một lần tìm còn chia các nước ở gốc cho các luồng rảnh của pool
+// (-Dai.parallel=false để tắt).
+class BotPlayer extends ClientHandler {
+    static final String NAME = "MAY";
+    private static final long MOVE_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("ai.moveMillis", 500));
+    private static final boolean PARALLEL = Boolean.parseBoolean(System.getProperty("ai.parallel", "true"));
+    static final ForkJoinPool POOL = new ForkJoinPool(
+            Integer.getInteger("ai.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+            pool -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("ai-search-" + t.getPoolIndex());
+                return t;
+            },
+            null, false);
+
+    private final Room room;
+    private volatile boolean closed;
+    // Chỉ truy cập trong hộp thư của phòng
+    private BitBoard board;
+    private int stone;
+    private int generation; // tăng mỗi ván để bỏ kết quả tìm kiếm của ván trước
+
+    BotPlayer(Room room) {
+        this.room = room;
+    }
+
+    @Override
+    boolean isBot() {
+        return true;
+    }
+
+    @Override
+    public void sendMessage(String message) {
+        if (closed) {
+            return;
+        }
+        if (message.startsWith("BAT_DAU|")) {
+            // BAT_DAU|X|kích thước
+            stone = message.charAt(8) == 'X' ? BitBoard.X : BitBoard.O;
+            board = new BitBoard(WireProtocol.parseNonNegative(message, 10, message.length()));
+            generation++;
+        } else if (message.startsWith("DANH|") && board != null) {
+            // DANH|vị trí|ký hiệu
+            int bar = message.indexOf('|', 5);
+            int position = WireProtocol.parseNonNegative(message, 5, bar);
+            board.set(position, message.charAt(bar + 1) == 'X' ? BitBoard.X : BitBoard.O);
+        } else if (message.equals("LUOT_CUA_BAN") && board != null) {
+            think();
+        }
+        // Các tin còn lại (kết thúc ván, chat, đối thủ mất kết nối...) không cần máy phản ứng
+    }
+
+    private void think() {
+        long turnStart = System.nanoTime();
+        BitBoard position = BitBoard.fromSnapshot(board.size(), board.toSnapshot());
+        int side = stone;
+        int targetRun = board.size() == 3 ? 3 : 5;
+        int game = generation;
+        POOL.execute(() -> {
+            if (closed) {
+                return;
+            }
+            AiEngine.Result result;
+            try {
+                result = AiEngine.search(position, side, targetRun, turnStart + MOVE_NANOS, PARALLEL);
+            } catch (RuntimeException e) {
+                System.err.println("Lỗi máy tìm nước đi: " + e);
+                return;
+            }
+            ServerMetrics.botMoveNanos.record(System.nanoTime() - turnStart);
+            room.execute(() -> {
+                Game current = room.getGame();
+                if (!closed && game == generation && current != null && result.move >= 0) {
+                    current.makeMove(this, result.move);
+                }
+            });
+        });
+    }
+
+    // Rời phòng: các tìm kiếm đang chạy sẽ bị bỏ qua
+    @Override
+    protected void disconnect() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return NAME;
+    }
+}
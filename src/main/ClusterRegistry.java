@@ -0,0 +1,182 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Danh bạ phòng dùng chung khi chạy nhiều tiến trình server (--cluster=<thư mục>).
+//
+// Không cần dịch vụ ngoài: mỗi node ghi file <thư mục>/<host>_<port>.node mỗi HEARTBEAT_MILLIS, dòng
+// đầu là địa chỉ host:port, các dòng sau là mọi phòng node đó đang giữ: "+tên" nếu còn chỗ (hiện trong
+// danh sách phòng của lobby), "-tên" nếu đã đủ người hoặc là phòng riêng của ghép trận. Node nào không cập nhật
+// file quá EXPIRE_MILLIS bị coi là đã chết. Từ danh sách node còn sống, mỗi node tự dựng cùng một
+// vòng băm nhất quán (VIRTUAL_NODES điểm cho mỗi node) và phòng thuộc về node đứng sau giá trị băm
+// của tên phòng trên vòng. Khi một node tham gia hay rời cụm chỉ khoảng 1/N tên phòng đổi chủ.
+//
+// Phòng đang có người giữ nguyên ở node đã tạo ra nó; locate() ưu tiên node đang quảng bá phòng (kể cả
+// phòng đã đầy, để XEM_PHONG tới đúng node) rồi mới tới chủ theo vòng băm, nên việc đổi chủ chỉ ảnh hưởng
+// tới phòng tạo mới.
+class ClusterRegistry {
+    static final long HEARTBEAT_MILLIS = 1000;
+    static final long EXPIRE_MILLIS = 3 * HEARTBEAT_MILLIS;
+    private static final int VIRTUAL_NODES = 64;
+    private static final String SUFFIX = ".node";
+
+    private final File dir;
+    private final String self; // host:port
+    private final File selfFile;
+    private final Map<String, Room> rooms;
+    private final LobbyChannel lobby;
+
+    // Được thay mới trọn vẹn sau mỗi nhịp nên các luồng xử lý lệnh đọc mà không cần khóa
+    private volatile NavigableMap<Integer, String> ring = new TreeMap<>();
+    private volatile Map<String, String> advertised = Collections.emptyMap(); // phòng -> node
+    private boolean left;
+
+    ClusterRegistry(File dir, String host, int port, Map<String, Room> rooms, LobbyChannel lobby) {
+        this.dir = dir;
+        this.self = host + ":" + port;
+        this.selfFile = new File(dir, host.replace(':', '_') + "_" + port + SUFFIX);
+        this.rooms = rooms;
+        this.lobby = lobby;
+    }
+
+    void start() {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.err.println("Không tạo được thư mục cụm: " + dir);
+        }
+        heartbeat();
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cluster-heartbeat");
+            t.setDaemon(true);
+            return t;
+        }).scheduleAtFixedRate(this::heartbeat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        // Rời cụm ngay khi tắt thay vì đợi hết hạn
+        Runtime.getRuntime().addShutdownHook(new Thread(this::leave, "cluster-leave"));
+        System.out.println("Chế độ cụm: node " + self + ", danh bạ " + dir.getAbsolutePath());
+    }
+
+    String self() {
+        return self;
+    }
+
+    // Node phải xử lý phòng này: node đang quảng bá phòng, nếu không thì chủ theo vòng băm
+    String locate(String roomName) {
+        String node = advertised.get(roomName);
+        return node != null ? node : ownerOf(roomName);
+    }
+
+    // Node khác đang giữ phòng tên này, null nếu không có (theo nhịp tim gần nhất)
+    String advertiser(String roomName) {
+        return advertised.get(roomName);
+    }
+
+    String ownerOf(String roomName) {
+        NavigableMap<Integer, String> r = ring;
+        if (r.isEmpty()) {
+            return self;
+        }
+        Map.Entry<Integer, String> e = r.ceilingEntry(hash(roomName));
+        return (e != null ? e : r.firstEntry()).getValue();
+    }
+
+    private void heartbeat() {
+        try {
+            publish();
+        } catch (IOException e) {
+            System.err.println("Không ghi được file node: " + e.getMessage());
+        }
+
+        NavigableMap<Integer, String> newRing = new TreeMap<>();
+        Map<String, String> newAdvertised = new HashMap<>();
+        Set<String> remoteOpen = new HashSet<>();
+        addToRing(newRing, self);
+        long now = System.currentTimeMillis();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        for (File f : files == null ? new File[0] : files) {
+            if (f.equals(selfFile) || now - f.lastModified() > EXPIRE_MILLIS) {
+                continue;
+            }
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(f), StandardCharsets.UTF_8))) {
+                String node = br.readLine();
+                if (node == null || node.equals(self)) {
+                    continue;
+                }
+                addToRing(newRing, node);
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (line.length() < 2) {
+                        continue;
+                    }
+                    String room = line.substring(1);
+                    newAdvertised.putIfAbsent(room, node);
+                    if (line.charAt(0) == '+') {
+                        remoteOpen.add(room);
+                    }
+                }
+            } catch (IOException e) {
+                // File có thể vừa bị node kia thay thế hoặc xóa; nhịp sau đọc lại
+            }
+        }
+        ring = newRing;
+        advertised = newAdvertised;
+        lobby.setRemoteRooms(remoteOpen);
+    }
+
+    private synchronized void leave() {
+        left = true;
+        selfFile.delete();
+    }
+
+    // Ghi ra file tạm rồi đổi tên để node khác không bao giờ đọc phải file viết dở. Đồng bộ với
+    // leave() để nhịp tim đang chạy dở không tạo lại file sau khi node đã rời cụm.
+    private synchronized void publish() throws IOException {
+        if (left) {
+            return;
+        }
+        File tmp = new File(selfFile.getPath() + ".tmp");
+        try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            pw.println(self);
+            for (Room room : rooms.values()) {
+                pw.println((room.isFull() ? '-' : '+') + room.getName());
+            }
+        }
+        Files.move(tmp.toPath(), selfFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void addToRing(NavigableMap<Integer, String> ring, String node) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    // String.hashCode được đặc tả cố định nên mọi node tính ra cùng một vòng; bước trộn (murmur3
+    // fmix32) rải đều các tên gần giống nhau như "phong-1", "phong-2"
+    static int hash(String s) {
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
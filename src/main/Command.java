@@ -0,0 +1,70 @@
+package main;
+
+import java.util.Arrays;
+
+// Các lệnh client gửi lên, nhận dạng từ phần trước dấu '|' đầu tiên của dòng.
+//
+// lookup() làm việc ngay trên chuỗi gốc: chọn nhóm lệnh theo độ dài từ khóa rồi so sánh vùng ký tự,
+// không cắt chuỗi con hay split nên việc nhận dạng không tạo rác.
+enum Command {
+    TAO_PHONG(Args.REQUIRED),
+    VAO_PHONG(Args.REQUIRED),
+    NHI_PHAN(Args.NONE),
+    LAY_DANH_SACH_PHONG(Args.NONE),
+    DANH(Args.REQUIRED),
+    CHAT(Args.REQUIRED),
+    CHOI_LAI(Args.NONE),
+    LAY_BANG_XEP_HANG(Args.NONE),
+    LAY_THU_HANG(Args.OPTIONAL),
+    TIEP_TUC(Args.REQUIRED),
+    GHEP_TRAN(Args.OPTIONAL),
+    HUY_GHEP(Args.NONE),
+    CHOI_VOI_MAY(Args.OPTIONAL),
+    XEM_PHONG(Args.REQUIRED),
+    XEM_LAI(Args.REQUIRED),
+    DANG_NHAP(Args.REQUIRED),
+    HO_SO(Args.OPTIONAL);
+
+    // Lệnh có được / phải kèm phần tham số sau dấu '|' hay không
+    enum Args { NONE, REQUIRED, OPTIONAL }
+
+    private static final Command[][] BY_LENGTH;
+
+    static {
+        int longest = 0;
+        for (Command c : values()) {
+            longest = Math.max(longest, c.name().length());
+        }
+        BY_LENGTH = new Command[longest + 1][];
+        for (Command c : values()) {
+            Command[] group = BY_LENGTH[c.name().length()];
+            group = group == null ? new Command[1] : Arrays.copyOf(group, group.length + 1);
+            group[group.length - 1] = c;
+            BY_LENGTH[c.name().length()] = group;
+        }
+    }
+
+    final Args args;
+
+    Command(Args args) {
+        this.args = args;
+    }
+
+    // Lệnh có từ khóa là message[0, keywordEnd), hoặc null nếu không nhận ra hay sai dạng tham số.
+    // keywordEnd là vị trí dấu '|' đầu tiên, hoặc độ dài dòng nếu không có.
+    static Command lookup(String message, int keywordEnd) {
+        if (keywordEnd >= BY_LENGTH.length || BY_LENGTH[keywordEnd] == null) {
+            return null;
+        }
+        boolean hasArgs = keywordEnd < message.length();
+        for (Command c : BY_LENGTH[keywordEnd]) {
+            if (message.regionMatches(0, c.name(), 0, keywordEnd)) {
+                if (hasArgs ? c.args == Args.NONE : c.args == Args.REQUIRED) {
+                    return null;
+                }
+                return c;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,118 @@
+package main;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Histogram độ trễ dạng log-tuyến tính: giá trị nhỏ hơn 64 có ô riêng, từ đó mỗi lũy thừa của 2
+// được chia thành 64 ô, nên phân vị đọc ra sai lệch dưới 2% trên toàn dải long.
+//
+// Ghi không khóa (AtomicLongArray) nên nhiều luồng ghi cùng lúc được. Đọc trong lúc đang ghi cho
+// kết quả gần đúng, đủ cho việc theo dõi. Đơn vị do người dùng chọn (ns, µs...).
+final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 64;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(index(v));
+        total.incrementAndGet();
+        sum.addAndGet(v);
+        long m;
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+            // thử lại
+        }
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+        long v = other.max.get();
+        long m;
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+            // thử lại
+        }
+    }
+
+    // Bản sao tại thời điểm gọi
+    LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    // Phần ghi thêm kể từ bản sao earlier (dùng để tính số liệu theo từng chu kỳ). Giá trị lớn nhất
+    // của phần chênh lệch chỉ biết tới mức ô, nên lấy cận trên của ô cao nhất có mẫu.
+    LatencyHistogram since(LatencyHistogram earlier) {
+        LatencyHistogram delta = new LatencyHistogram();
+        int highest = -1;
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = counts.get(i) - earlier.counts.get(i);
+            if (c > 0) {
+                delta.counts.set(i, c);
+                highest = i;
+            }
+        }
+        delta.total.set(total.get() - earlier.total.get());
+        delta.sum.set(sum.get() - earlier.sum.get());
+        delta.max.set(highest < 0 ? 0
+                : highest + 1 < BUCKETS ? Math.min(max.get(), lowerBound(highest + 1) - 1) : max.get());
+        return delta;
+    }
+
+    long count() {
+        return total.get();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    double mean() {
+        long n = total.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    long percentile(double p) {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(lowerBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(v); // >= 6
+        int shift = magnitude - 6;
+        return (shift + 1) * SUB_BUCKETS + (int) ((v >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+}
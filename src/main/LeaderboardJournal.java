@@ -0,0 +1,272 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Nhật ký kết quả ván đấu chỉ ghi nối tiếp (append-only), một dòng cho mỗi ván.
+//
+// append() chỉ đưa dòng vào hàng đợi; một luồng nền ghi cả loạt xuống đĩa và fsync sau tối đa
+// syncMillis, nên khi máy sập chỉ mất nhiều nhất các kết quả trong khoảng đó. Nhật ký được chia
+// thành các "thế hệ" leaderboard.journal.<n>; khi nén, thế hệ hiện tại được đóng lại, ảnh chụp
+// CSV được ghi ra và các thế hệ cũ bị xóa.
+class LeaderboardJournal {
+    interface Replayer {
+        void apply(String line);
+    }
+
+    private final File dir;
+    private final String baseName;
+    private final long syncMillis;
+    private final int compactEvery;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private Runnable compaction = () -> {};
+    private FileChannel channel;
+    private long generation;
+    private int sinceCompaction;
+    private volatile boolean running;
+    private Thread writer;
+
+    LeaderboardJournal(File dir, String baseName, long syncMillis, int compactEvery) {
+        this.dir = dir;
+        this.baseName = baseName;
+        this.syncMillis = syncMillis;
+        this.compactEvery = compactEvery;
+    }
+
+    // Được gọi trên luồng ghi khi đã đủ compactEvery dòng kể từ lần nén trước
+    void setCompaction(Runnable compaction) {
+        this.compaction = compaction;
+    }
+
+    // Phát lại các thế hệ >= fromGeneration theo thứ tự và mở thế hệ mới để ghi tiếp.
+    // Dòng cuối bị cắt dở do sập máy (không có ký tự xuống dòng) không được áp dụng và bị cắt khỏi file.
+    void open(long fromGeneration, Replayer replayer) throws IOException {
+        long last = replay(fromGeneration, replayer, true);
+        // Không ghi tiếp vào file cũ, luôn mở thế hệ mới
+        generation = Math.max(fromGeneration, last + 1);
+        channel = openGeneration(generation);
+    }
+
+    // Chỉ phát lại, không mở thế hệ mới và không sửa file (dùng khi chuyển dữ liệu sang kho khác). Trả về
+    // thế hệ cuối đã đọc, hoặc fromGeneration - 1 nếu không có.
+    long replay(long fromGeneration, Replayer replayer) throws IOException {
+        return replay(fromGeneration, replayer, false);
+    }
+
+    private long replay(long fromGeneration, Replayer replayer, boolean truncate) throws IOException {
+        long last = fromGeneration - 1;
+        for (Map.Entry<Long, File> e : generations().entrySet()) {
+            if (e.getKey() < fromGeneration) {
+                continue;
+            }
+            File f = e.getValue();
+            long complete = replayFile(f, replayer);
+            if (truncate && complete < f.length()) {
+                System.err.println("Bỏ dòng nhật ký ghi dở cuối " + f + " (" + (f.length() - complete) + " byte)");
+                try (FileChannel c = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+                    c.truncate(complete);
+                    c.force(false);
+                }
+            }
+            last = e.getKey();
+        }
+        return last;
+    }
+
+    // Chỉ áp dụng các dòng kết thúc bằng '\n': mỗi lần ghi nối cả dòng lẫn ký tự xuống dòng, nên phần sau
+    // ký tự xuống dòng cuối cùng là một lần ghi bị cắt ngang. Trả về độ dài phần đã áp dụng.
+    private static long replayFile(File f, Replayer replayer) throws IOException {
+        long offset = 0;
+        long complete = 0;
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+            int b;
+            while ((b = in.read()) != -1) {
+                offset++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                if (line.size() > 0) {
+                    replayer.apply(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                    line.reset();
+                }
+                complete = offset;
+            }
+        }
+        return complete;
+    }
+
+    void start() {
+        running = true;
+        writer = new Thread(this::writeLoop, "leaderboard-journal");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "leaderboard-journal-close"));
+    }
+
+    void append(String line) {
+        queue.add(line);
+    }
+
+    long generation() {
+        return generation;
+    }
+
+    // Chỉ gọi từ luồng ghi (bên trong compaction): ghi nốt hàng đợi, đóng thế hệ hiện tại và mở
+    // thế hệ mới. Trả về số thế hệ mới; mọi thế hệ nhỏ hơn đều đã nằm trọn trong ảnh chụp sắp ghi.
+    long rotate() throws IOException {
+        List<String> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        write(batch);
+        channel.force(false);
+        channel.close();
+        channel = null; // nếu mở thế hệ mới lỗi, lần ghi sau sẽ mở lại
+        generation++;
+        channel = openGeneration(generation);
+        sinceCompaction = 0;
+        return generation;
+    }
+
+    // Xóa các thế hệ đã được ảnh chụp bao phủ
+    void deleteBefore(long keepFrom) {
+        for (Map.Entry<Long, File> e : generations().entrySet()) {
+            if (e.getKey() < keepFrom && !e.getValue().delete()) {
+                System.err.println("Không thể xóa nhật ký cũ: " + e.getValue());
+            }
+        }
+    }
+
+    // Mọi lỗi (kể cả RuntimeException từ compaction) chỉ được ghi log và đếm vào journal_errors_total: luồng
+    // ghi chết thì recordGame vẫn xếp hàng mãi mà không kết quả nào còn được ghi. Lô ghi lỗi được giữ lại
+    // và thử lại ở vòng sau.
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>();
+        long lastSync = System.currentTimeMillis();
+        int unsynced = 0;
+        while (running || !queue.isEmpty() || !batch.isEmpty()) {
+            try {
+                String first = queue.poll(syncMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+                if (!batch.isEmpty()) {
+                    long start = System.nanoTime();
+                    write(batch);
+                    ServerMetrics.journalWriteNanos.record(System.nanoTime() - start);
+                    unsynced += batch.size();
+                    sinceCompaction += batch.size();
+                    batch.clear();
+                }
+                long now = System.currentTimeMillis();
+                if (unsynced > 0 && now - lastSync >= syncMillis) {
+                    long start = System.nanoTime();
+                    channel.force(false);
+                    ServerMetrics.journalSyncNanos.record(System.nanoTime() - start);
+                    lastSync = now;
+                    unsynced = 0;
+                }
+                if (sinceCompaction >= compactEvery) {
+                    long start = System.nanoTime();
+                    try {
+                        compaction.run();
+                        unsynced = 0;
+                    } finally {
+                        // Nén lỗi: thử lại sau compactEvery dòng nữa thay vì sau mỗi lô
+                        sinceCompaction = 0;
+                    }
+                    ServerMetrics.compactionNanos.record(System.nanoTime() - start);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (IOException | RuntimeException e) {
+                ServerMetrics.journalErrors.increment();
+                System.err.println("Lỗi ghi nhật ký leaderboard: " + e);
+                if (!running) {
+                    break; // đang tắt: không thử lại mãi
+                }
+            }
+        }
+        try {
+            if (channel != null) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            System.err.println("Lỗi đóng nhật ký leaderboard: " + e.getMessage());
+        }
+    }
+
+    // Ghi cả lô hoặc không gì cả: lần ghi lỗi giữa chừng được cắt bỏ để lúc thử lại không ghi trùng dòng
+    private void write(List<String> lines) throws IOException {
+        if (lines.isEmpty()) {
+            return;
+        }
+        if (channel == null) {
+            channel = openGeneration(generation);
+        }
+        StringBuilder sb = new StringBuilder(lines.size() * 32);
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        long start = channel.size();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            try {
+                channel.truncate(start);
+            } catch (IOException ignored) {}
+            throw e;
+        }
+    }
+
+    // Khi tắt máy chủ: để luồng ghi xả nốt hàng đợi và fsync. Không interrupt luồng ghi vì
+    // FileChannel sẽ tự đóng nếu bị ngắt giữa lúc ghi.
+    void close() {
+        running = false;
+        if (writer != null) {
+            try {
+                writer.join(syncMillis + 5000);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private FileChannel openGeneration(long gen) throws IOException {
+        return FileChannel.open(new File(dir, baseName + "." + gen).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private TreeMap<Long, File> generations() {
+        TreeMap<Long, File> result = new TreeMap<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith(baseName + "."));
+        if (files == null) {
+            return result;
+        }
+        for (File f : files) {
+            try {
+                result.put(Long.parseLong(f.getName().substring(baseName.length() + 1)), f);
+            } catch (NumberFormatException ignored) {}
+        }
+        return result;
+    }
+}
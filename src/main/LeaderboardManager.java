@@ -0,0 +1,524 @@
+package main;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Simple leaderboard manager: keeps win/loss/draw counts and an Elo rating per player name.
+//
+// Tên là biệt danh đăng nhập (DANG_NHAP), hoặc địa chỉ IP với khách chưa đăng nhập. Mỗi người bắt
+// đầu ở rating DEFAULT_RATING; sau mỗi ván cả hai người đổi rating theo Elo (hệ số -Dleaderboard.eloK,
+// mặc định 32) và bảng xếp hạng, thứ hạng được sắp theo rating.
+//
+// Kết quả từng ván được ghi vào LeaderboardJournal (chỉ ghi nối tiếp, fsync theo lô ở luồng nền),
+// nên kết thúc một ván không phải ghi lại toàn bộ file. leaderboard.csv chỉ là ảnh chụp được tạo
+// lại khi nén nhật ký; dòng tiêu đề ghi kèm thế hệ nhật ký đầu tiên chưa nằm trong ảnh chụp.
+// Khi khởi động: đọc ảnh chụp rồi phát lại phần nhật ký phía sau. Việc này chạy trên luồng nền do start()
+// mở (server gọi lúc khởi động, lần dùng đầu tiên cũng tự gọi), nên một file lớn không làm ván đầu tiên
+// kết thúc phải chờ: kết quả đến trong lúc nạp được xếp hàng và áp dụng khi nạp xong, còn bảng xếp hạng
+// và thứ hạng được trả lời từ phần đã nạp.
+//
+// Với -Dleaderboard.store=mmap, bộ đếm nằm ngoài heap trong MappedLeaderboardStore và được cộng ngay trong
+// file; không còn nhật ký hay ảnh chụp CSV. Lần đầu chạy ở chế độ này, dữ liệu CSV + nhật ký cũ được chuyển
+// sang (một chiều). Chỉ mục xếp hạng vẫn ở trên heap và được dựng lại từ file khi khởi động.
+class LeaderboardManager {
+    static final int DEFAULT_RATING = 1200;
+    // Hệ số K của Elo: mức rating tối đa một ván có thể làm thay đổi
+    private static final int ELO_K = Integer.getInteger("leaderboard.eloK", 32);
+    private static final Map<String, StatsSnapshot> table = new ConcurrentHashMap<>();
+    // Thư mục chứa ảnh chụp CSV và nhật ký, mặc định là thư mục chạy server
+    private static final File DIR = new File(System.getProperty("leaderboard.dir", "."));
+    private static final File file = new File(DIR, "leaderboard.csv");
+    private static final String HEADER = "name,wins,losses,draws,rating";
+    // Thời gian tối đa giữa hai lần fsync = lượng kết quả tối đa có thể mất khi máy sập
+    private static final long SYNC_MILLIS = Long.getLong("leaderboard.syncMillis", 1000);
+    // Số ván giữa hai lần nén nhật ký thành ảnh chụp CSV
+    private static final int COMPACT_EVERY = Integer.getInteger("leaderboard.compactEvery", 10_000);
+    // recordGame giữ khóa đọc (nhiều ván kết thúc song song được), nén giữ khóa ghi trong lúc
+    // xoay nhật ký và sao chép bảng để ảnh chụp khớp đúng với ranh giới thế hệ
+    private static final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private static final LeaderboardJournal journal = new LeaderboardJournal(
+            DIR, "leaderboard.journal", SYNC_MILLIS, COMPACT_EVERY);
+    private static final RankingIndex ranking = new RankingIndex();
+    // null ở chế độ mặc định (bảng trên heap), hoặc khi không mở được file ánh xạ; được gán bởi luồng nạp
+    // trước khi có kết quả nào được áp dụng
+    private static volatile MappedLeaderboardStore mapped;
+    // Khóa theo nhóm người chơi: giữ đúng thứ tự cập nhật rating, chỉ mục và nhật ký của từng người chơi
+    private static final Object[] STRIPES = stripes(256);
+    // Payload LEADERBOARD gần nhất, còn dùng được khi phiên bản của chỉ mục chưa đổi
+    private static volatile CachedTopN cachedTopN;
+    // HO_SO: phần không phụ thuộc thứ hạng của hồ sơ từng người chơi, bỏ khỏi đệm khi người đó có kết quả
+    // mới; được điền khi giữ khóa nhóm của người đó nên không bao giờ giữ lại bản cũ hơn lần cập nhật cuối
+    private static final Map<String, Profile> profiles = new ConcurrentHashMap<>();
+    private static final int PROFILE_CACHE = Integer.getInteger("leaderboard.profileCache", 10_000);
+    private static final AtomicBoolean started = new AtomicBoolean();
+    // ready chỉ đổi khi giữ khóa ghi snapshotLock, nên recordGame (khóa đọc) thấy nó chưa sẵn sàng thì
+    // dòng xếp vào pending chắc chắn còn được luồng nạp áp dụng
+    private static volatile boolean ready;
+    private static final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    // Số kết quả tối đa xếp hàng trong lúc nạp; vượt quá thì kết quả bị bỏ (metric leaderboard_pending_dropped_total)
+    private static final int PENDING_LIMIT = Integer.getInteger("leaderboard.pendingLimit", 100_000);
+    private static final AtomicInteger pendingSize = new AtomicInteger();
+    private static volatile boolean loadFailed;
+    private static final CountDownLatch loaded = new CountDownLatch(1);
+
+    // Bắt đầu nạp trên luồng nền nếu chưa; không chờ nạp xong
+    static void start() {
+        if (!started.get() && started.compareAndSet(false, true)) {
+            Thread loader = new Thread(LeaderboardManager::loadAll, "leaderboard-load");
+            loader.setDaemon(true);
+            loader.start();
+        }
+    }
+
+    static boolean isReady() {
+        return ready;
+    }
+
+    // Nạp thất bại: bảng chỉ còn trong bộ nhớ, kết quả mới không được lưu
+    static boolean isLoadFailed() {
+        return loadFailed;
+    }
+
+    // Chờ nạp xong (benchmark, công cụ); true nếu đã sẵn sàng trong thời gian chờ
+    static boolean awaitReady(long timeoutMillis) throws InterruptedException {
+        start();
+        return loaded.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Nạp lỗi bất ngờ (file hỏng, hết bộ nhớ...): bảng được làm trống và chạy tiếp chỉ trong bộ nhớ, không
+    // ghi nhật ký hay nén, để ảnh chụp và nhật ký trên đĩa còn nguyên cho lần khởi động sau. Dù thành công
+    // hay không, kết quả đang chờ vẫn được áp dụng và awaitReady được giải phóng.
+    private static void loadAll() {
+        long start = System.nanoTime();
+        try {
+            loadStores();
+        } catch (RuntimeException | Error ex) {
+            System.err.println("Không thể nạp bảng xếp hạng, chạy với bảng trống và không lưu kết quả: " + ex);
+            ex.printStackTrace();
+            loadFailed = true;
+            mapped = null;
+            table.clear();
+            profiles.clear();
+            ranking.clear();
+        }
+        int queued = 0;
+        snapshotLock.writeLock().lock();
+        try {
+            String line;
+            while ((line = pending.poll()) != null) {
+                record(line);
+                queued++;
+            }
+            ready = true;
+        } finally {
+            snapshotLock.writeLock().unlock();
+            loaded.countDown();
+        }
+        if (mapped == null && !loadFailed) {
+            journal.start();
+        }
+        System.out.println("Đã nạp bảng xếp hạng: " + ranking.size() + " người chơi trong "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, " + queued + " kết quả chờ");
+    }
+
+    private static void loadStores() {
+        mapped = openMapped();
+        if (mapped != null) {
+            if (!mapped.isCommitted()) {
+                try {
+                    journal.replay(load(), LeaderboardManager::replay);
+                } catch (IOException ex) {
+                    System.err.println("Không thể đọc nhật ký leaderboard: " + ex.getMessage());
+                }
+                mapped.commit();
+            } else {
+                mapped.forEach((name, wins, losses, draws, rating) -> ranking.update(name, -1, rating));
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(mapped::flush, "leaderboard-flush"));
+        } else {
+            long generation = load();
+            try {
+                journal.open(generation, LeaderboardManager::replay);
+            } catch (IOException ex) {
+                System.err.println("Không thể mở nhật ký leaderboard: " + ex.getMessage());
+            }
+            journal.setCompaction(LeaderboardManager::compact);
+        }
+    }
+
+    private static Object[] stripes(int n) {
+        Object[] locks = new Object[n];
+        for (int i = 0; i < n; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    // Gọi trên luồng nạp
+    private static MappedLeaderboardStore openMapped() {
+        if (!"mmap".equals(System.getProperty("leaderboard.store"))) {
+            return null;
+        }
+        MappedLeaderboardStore store = new MappedLeaderboardStore(
+                DIR, "leaderboard.store", Integer.getInteger("leaderboard.capacity", 1 << 16));
+        try {
+            store.open();
+            return store;
+        } catch (IOException ex) {
+            System.err.println("Không thể mở bảng xếp hạng ánh xạ bộ nhớ, dùng bảng trên heap: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    // result là "X", "O" hoặc "HOA"; name1 cầm X, name2 cầm O
+    public static void recordGame(String result, String name1, String name2) {
+        start();
+        String line = result + "," + safeName(name1) + "," + safeName(name2);
+        snapshotLock.readLock().lock();
+        try {
+            if (ready) {
+                record(line);
+            } else if (pendingSize.incrementAndGet() <= PENDING_LIMIT) {
+                pending.add(line);
+            } else {
+                pendingSize.decrementAndGet();
+                ServerMetrics.leaderboardPendingDropped.increment();
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    // Gọi khi giữ snapshotLock (đọc hoặc ghi)
+    private static void record(String line) {
+        String[] parts = line.split(",", -1);
+        if (parts.length == 3) {
+            apply(parts[0], parts[1], parts[2], mapped == null && !loadFailed ? line : null);
+        }
+    }
+
+    private static void replay(String line) {
+        String[] parts = line.split(",", -1);
+        if (parts.length == 3) {
+            apply(parts[0], parts[1], parts[2], null);
+        }
+    }
+
+    // Cộng thắng/thua/hòa và tính lại Elo của cả hai người. Elo phụ thuộc thứ tự các ván, nên giữ khóa
+    // nhóm của cả hai (lấy theo thứ tự chỉ số để không khóa chéo) từ lúc đọc rating tới khi ghi dòng nhật
+    // ký: hai ván có chung một người chơi luôn nằm trong nhật ký đúng thứ tự đã áp dụng, và phát lại ra
+    // cùng rating. line là dòng cần ghi vào nhật ký, null khi đang phát lại hoặc ở chế độ mmap.
+    private static void apply(String result, String name1, String name2, String line) {
+        double score1; // điểm của name1 trong ván: 1 thắng, 0 thua, 0.5 hòa
+        if ("X".equals(result)) {
+            score1 = 1;
+        } else if ("O".equals(result)) {
+            score1 = 0;
+        } else if ("HOA".equals(result)) {
+            score1 = 0.5;
+        } else {
+            return;
+        }
+        if (mapped != null) {
+            name1 = MappedLeaderboardStore.fit(name1);
+            name2 = MappedLeaderboardStore.fit(name2);
+        }
+        int first = stripe(name1);
+        int second = stripe(name2);
+        synchronized (STRIPES[Math.min(first, second)]) {
+            synchronized (STRIPES[Math.max(first, second)]) {
+                StatsSnapshot before1 = lookup(name1);
+                StatsSnapshot before2 = lookup(name2);
+                int rating1 = before1 == null ? DEFAULT_RATING : before1.rating;
+                int rating2 = before2 == null ? DEFAULT_RATING : before2.rating;
+                // Tự đấu với chính mình (hai khách cùng địa chỉ) vẫn được đếm nhưng không đổi rating
+                int delta = name1.equals(name2) ? 0 : eloDelta(rating1, rating2, score1);
+                int win1 = score1 == 1 ? 1 : 0;
+                int loss1 = score1 == 0 ? 1 : 0;
+                int draw = score1 == 0.5 ? 1 : 0;
+                update(name1, before1, win1, loss1, draw, rating1 + delta);
+                if (name1.equals(name2)) {
+                    before2 = lookup(name2);
+                    rating2 = before2.rating;
+                }
+                update(name2, before2, loss1, win1, draw, rating2 - delta);
+                if (line != null) {
+                    journal.append(line);
+                }
+            }
+        }
+    }
+
+    // Thay đổi rating của người có rating1 khi gặp rating2 và được score1 điểm; đối thủ đổi ngược dấu. Bị
+    // chặn ở cả hai phía để không ai xuống dưới 0 mà tổng rating vẫn giữ nguyên.
+    static int eloDelta(int rating1, int rating2, double score1) {
+        double expected = 1.0 / (1.0 + Math.pow(10, (rating2 - rating1) / 400.0));
+        int delta = (int) Math.round(ELO_K * (score1 - expected));
+        return Math.max(-rating1, Math.min(rating2, delta));
+    }
+
+    // Gọi khi giữ khóa nhóm của name. Ở chế độ heap mỗi người chơi là một StatsSnapshot bất biến được thay
+    // nguyên khối, nên người đọc không khóa luôn thấy bộ đếm và rating khớp nhau.
+    private static void update(String name, StatsSnapshot before, int wins, int losses, int draws, int rating) {
+        StatsSnapshot after;
+        MappedLeaderboardStore store = mapped;
+        if (store != null) {
+            after = store.add(name, wins, losses, draws, rating);
+            if (after == null) {
+                return; // file đầy
+            }
+        } else {
+            after = before == null
+                    ? new StatsSnapshot(wins, losses, draws, rating)
+                    : new StatsSnapshot(before.wins + wins, before.losses + losses, before.draws + draws, rating);
+            table.put(name, after);
+        }
+        ranking.update(name, before == null ? -1 : before.rating, after.rating);
+        profiles.remove(name);
+    }
+
+    // Một dòng của ảnh chụp CSV khi nạp
+    private static void restore(String name, int wins, int losses, int draws, int rating) {
+        if (mapped != null) {
+            name = MappedLeaderboardStore.fit(name);
+        }
+        synchronized (STRIPES[stripe(name)]) {
+            // RankingIndex chỉ nhận rating không âm; dòng CSV sửa tay có thể sai
+            update(name, lookup(name), wins, losses, draws, Math.max(0, rating));
+        }
+    }
+
+    private static int stripe(String name) {
+        return name.hashCode() & (STRIPES.length - 1);
+    }
+
+    // Bộ đếm hiện tại của name, null nếu chưa có kết quả nào
+    private static StatsSnapshot lookup(String name) {
+        MappedLeaderboardStore store = mapped;
+        return store != null ? store.get(name) : table.get(name);
+    }
+
+    // Rating hiện tại (người chưa có kết quả nào: rating khởi đầu); dùng khi ghép trận
+    static int ratingOf(String name) {
+        StatsSnapshot s = lookup(name);
+        return s == null ? DEFAULT_RATING : s.rating;
+    }
+
+    // Ảnh chụp nhất quán của toàn bảng: giữ khóa ghi nên không có ván nào đang được ghi dở.
+    // Dùng khi lưu; serializeTopN chỉ cần nhất quán theo từng người chơi nên đọc không khóa.
+    static Map<String, StatsSnapshot> snapshot() {
+        start();
+        snapshotLock.writeLock().lock();
+        try {
+            return snapshotLocked();
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    private static Map<String, StatsSnapshot> snapshotLocked() {
+        if (mapped != null) {
+            Map<String, StatsSnapshot> copy = new HashMap<>(mapped.size() * 2);
+            mapped.forEach((name, wins, losses, draws, rating) ->
+                    copy.put(name, new StatsSnapshot(wins, losses, draws, rating)));
+            return copy;
+        }
+        return new HashMap<>(table);
+    }
+
+    // Nén ngay: ghi ảnh chụp CSV và xóa các thế hệ nhật ký cũ. Gọi từ luồng nhật ký.
+    private static void compact() {
+        Map<String, StatsSnapshot> copy;
+        long generation;
+        snapshotLock.writeLock().lock();
+        try {
+            generation = journal.rotate();
+            copy = snapshotLocked();
+        } catch (IOException ex) {
+            System.err.println("Không thể xoay nhật ký leaderboard: " + ex.getMessage());
+            return;
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+
+        // Nhật ký cũ chỉ bị xóa khi ảnh chụp chắc chắn đã nằm trên đĩa: nội dung được fsync trước khi đổi
+        // tên, và thư mục được fsync sau đó để chính lần đổi tên cũng không mất khi máy sập
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+            pw.println(HEADER + ",journal=" + generation);
+            for (Map.Entry<String, StatsSnapshot> e : copy.entrySet()) {
+                StatsSnapshot s = e.getValue();
+                pw.println(e.getKey() + "," + s.wins + "," + s.losses + "," + s.draws + "," + s.rating);
+            }
+            pw.flush();
+            if (pw.checkError()) {
+                throw new IOException("lỗi khi ghi " + tmp);
+            }
+            out.getFD().sync();
+        } catch (IOException ex) {
+            System.err.println("Không thể lưu leaderboard, giữ lại nhật ký: " + ex.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(DIR);
+        } catch (IOException ex) {
+            System.err.println("Không thể lưu leaderboard, giữ lại nhật ký: " + ex.getMessage());
+            return;
+        }
+        journal.deleteBefore(generation);
+    }
+
+    // fsync thư mục để lần đổi tên bền vững. Một số hệ điều hành (Windows) không cho mở thư mục như file:
+    // khi đó bỏ qua, còn lỗi của chính lần fsync thì được ném ra.
+    private static void syncDirectory(File dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException unsupported) {
+            return;
+        }
+        try (FileChannel c = channel) {
+            c.force(true);
+        }
+    }
+
+    // Trả về thế hệ nhật ký đầu tiên cần phát lại sau ảnh chụp
+    private static long load() {
+        if (!file.exists()) return 0;
+        long generation = 0;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line = br.readLine(); // header
+            if (line != null) {
+                int idx = line.indexOf("journal=");
+                if (idx >= 0) {
+                    try {
+                        generation = Long.parseLong(line.substring(idx + "journal=".length()).trim());
+                    } catch (NumberFormatException ignored) {}
+                }
+            }
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split(",", -1);
+                if (parts.length < 4) continue;
+                try {
+                    // Ảnh chụp cũ (chưa có cột rating): mọi người bắt đầu từ rating khởi đầu
+                    int rating = parts.length > 4 ? Integer.parseInt(parts[4]) : DEFAULT_RATING;
+                    restore(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), rating);
+                } catch (NumberFormatException ignored) {}
+            }
+        } catch (IOException ex) {
+            System.err.println("Không thể đọc leaderboard: " + ex.getMessage());
+        }
+        return generation;
+    }
+
+    // escape commas by replacing with spaces for simplicity
+    private static String safeName(String name) {
+        return name.replace(",", " ");
+    }
+
+    public static String serializeTopN(int n) {
+        start();
+        // Returns LEADERBOARD|name|wins|losses|draws|rating|name|...
+        long version = ranking.version(); // đọc trước khi dựng để payload không bao giờ mới hơn nhãn của nó
+        CachedTopN cached = cachedTopN;
+        if (cached != null && cached.version == version && cached.n == n) {
+            return cached.payload;
+        }
+        StringBuilder sb = new StringBuilder("LEADERBOARD");
+        for (RankingIndex.Entry e : ranking.top(n)) {
+            StatsSnapshot s = lookup(e.name);
+            if (s == null) {
+                continue;
+            }
+            sb.append("|").append(e.name).append("|").append(s.wins).append("|").append(s.losses)
+                    .append("|").append(s.draws).append("|").append(s.rating);
+        }
+        String payload = sb.toString();
+        cachedTopN = new CachedTopN(version, n, payload);
+        return payload;
+    }
+
+    // Returns THU_HANG|name|rank|rating, rank = 0 nếu chưa có kết quả nào
+    public static String serializeRank(String name) {
+        start();
+        StatsSnapshot s = lookup(name);
+        if (s == null) {
+            return "THU_HANG|" + name + "|0|" + DEFAULT_RATING;
+        }
+        return "THU_HANG|" + name + "|" + ranking.rankOf(s.rating) + "|" + s.rating;
+    }
+
+    // Returns HO_SO|name|rating|rank|wins|losses|draws. Thứ hạng đổi theo kết quả của người khác nên luôn
+    // tính lại từ chỉ mục; phần còn lại lấy từ đệm hồ sơ.
+    public static String serializeProfile(String name) {
+        start();
+        if (mapped != null) {
+            name = MappedLeaderboardStore.fit(name);
+        }
+        Profile p = profiles.get(name);
+        if (p == null) {
+            synchronized (STRIPES[stripe(name)]) {
+                StatsSnapshot s = lookup(name);
+                if (s == null) {
+                    return "HO_SO|" + name + "|" + DEFAULT_RATING + "|0|0|0|0";
+                }
+                p = new Profile(s.rating, "|" + s.wins + "|" + s.losses + "|" + s.draws);
+                if (profiles.size() >= PROFILE_CACHE) {
+                    profiles.clear();
+                }
+                profiles.put(name, p);
+            }
+        }
+        return "HO_SO|" + name + "|" + p.rating + "|" + ranking.rankOf(p.rating) + p.counts;
+    }
+
+    private static final class CachedTopN {
+        final long version;
+        final int n;
+        final String payload;
+
+        CachedTopN(long version, int n, String payload) {
+            this.version = version;
+            this.n = n;
+            this.payload = payload;
+        }
+    }
+
+    private static final class Profile {
+        final int rating;
+        final String counts; // "|thắng|thua|hòa"
+
+        Profile(int rating, String counts) {
+            this.rating = rating;
+            this.counts = counts;
+        }
+    }
+
+    static final class StatsSnapshot {
+        final int wins;
+        final int losses;
+        final int draws;
+        final int rating;
+
+        StatsSnapshot(int wins, int losses, int draws, int rating) {
+            this.wins = wins;
+            this.losses = losses;
+            this.draws = draws;
+            this.rating = rating;
+        }
+    }
+}
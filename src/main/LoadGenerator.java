@@ -0,0 +1,452 @@
+package main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Client giả lập tải, không có giao diện: mở nhiều kết nối tới TicTacToeServer, ghép từng cặp vào
+// một phòng và đánh các nước hợp lệ ngẫu nhiên bằng giao thức văn bản (TAO_PHONG, VAO_PHONG, DANH,
+// CHAT, CHOI_LAI).
+//
+// Độ trễ một nước đi = từ lúc gửi DANH|n tới lúc nhận lại DANH|n|ký hiệu của chính mình. Mỗi giây in
+// số nước đi/giây; khi kết thúc in tổng kết kèm p50/p99/p999. Khi máy chủ chạy cụm, client giả làm
+// theo CHUYEN_MAY như client thật: kết nối sang node được chỉ định và gửi lại lệnh.
+//
+// Chạy bằng:
+//   java main.LoadGenerator --clients=2000 --size=3 --duration=30
+// Các tùy chọn khác: --host=, --port=, --threads= (số luồng selector), --chat= (xác suất gửi CHAT
+// trước mỗi nước đi, 0..1), --think= (số ms chờ trước khi đánh), --match (dùng GHEP_TRAN thay vì tự tạo
+// và vào phòng; cặp đối thủ do máy chủ ghép), --login (mỗi client DANG_NHAP bằng một biệt danh riêng để
+// bảng xếp hạng và Elo được ghi theo từng người thay vì một địa chỉ IP chung).
+public class LoadGenerator {
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final int size;
+    private final int durationSeconds;
+    private final int threads;
+    private final double chatRate;
+    private final long thinkNanos;
+    private final boolean matchmaking;
+    private final boolean login;
+
+    private final LongAdder moves = new LongAdder();
+    private final LongAdder games = new LongAdder();
+    private final LongAdder chats = new LongAdder();
+    private final LongAdder redirects = new LongAdder();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger playing = new AtomicInteger();
+    private volatile boolean running = true;
+
+    LoadGenerator(String host, int port, int clients, int size, int durationSeconds,
+                  int threads, double chatRate, long thinkMillis, boolean matchmaking, boolean login) {
+        this.host = host;
+        this.port = port;
+        this.clients = clients;
+        this.size = size;
+        this.durationSeconds = durationSeconds;
+        this.threads = threads;
+        this.chatRate = chatRate;
+        this.thinkNanos = TimeUnit.MILLISECONDS.toNanos(thinkMillis);
+        this.matchmaking = matchmaking;
+        this.login = login;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = 5001;
+        int clients = 1000;
+        int size = 3;
+        int duration = 30;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        double chat = 0.0;
+        long think = 0;
+        boolean match = false;
+        boolean login = false;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String value = eq < 0 ? "" : arg.substring(eq + 1).trim();
+            if (arg.startsWith("--host=")) host = value;
+            else if (arg.startsWith("--port=")) port = Integer.parseInt(value);
+            else if (arg.startsWith("--clients=")) clients = Integer.parseInt(value);
+            else if (arg.startsWith("--size=")) size = Integer.parseInt(value);
+            else if (arg.startsWith("--duration=")) duration = Integer.parseInt(value);
+            else if (arg.startsWith("--threads=")) threads = Integer.parseInt(value);
+            else if (arg.startsWith("--chat=")) chat = Double.parseDouble(value);
+            else if (arg.startsWith("--think=")) think = Long.parseLong(value);
+            else if (arg.equals("--match")) match = true;
+            else if (arg.equals("--login")) login = true;
+            else {
+                System.err.println("Tùy chọn không hợp lệ: " + arg);
+                System.exit(2);
+            }
+        }
+        // Mỗi cặp client chơi một phòng nên số client phải chẵn
+        clients += clients % 2;
+        new LoadGenerator(host, port, clients, size, duration, threads, chat, think, match, login).run();
+    }
+
+    void run() throws Exception {
+        System.out.println("Tạo " + clients + " kết nối tới " + host + ":" + port + ", bàn " + size + "x" + size
+                + ", " + threads + " luồng, chạy " + durationSeconds + " giây");
+        String runId = Long.toString(System.currentTimeMillis() % 1_000_000, 36);
+        List<Worker> workers = new ArrayList<>();
+        int pairs = clients / 2;
+        for (int t = 0; t < threads; t++) {
+            int from = pairs * t / threads;
+            int to = pairs * (t + 1) / threads;
+            if (to > from) {
+                workers.add(new Worker(runId + "-" + t, from, to));
+            }
+        }
+        for (Worker w : workers) {
+            w.start();
+        }
+
+        long start = System.nanoTime();
+        long lastMoves = 0;
+        for (int second = 1; second <= durationSeconds; second++) {
+            Thread.sleep(Math.max(0, start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime()) / 1_000_000);
+            long total = moves.sum();
+            System.out.println(String.format("[%3ds] kết nối: %d, đang chơi: %d, nước đi/giây: %d, ván: %d, lỗi kết nối: %d",
+                    second, connected.get(), playing.get(), total - lastMoves, games.sum(), failed.get()));
+            lastMoves = total;
+        }
+        running = false;
+        LatencyHistogram latency = new LatencyHistogram();
+        for (Worker w : workers) {
+            w.join();
+            latency.add(w.latency);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("---");
+        System.out.println(String.format("Nước đi: %d (%.0f/giây), ván: %d, chat: %d, chuyển máy: %d",
+                moves.sum(), moves.sum() / elapsed, games.sum(), chats.sum(), redirects.sum()));
+        System.out.println(String.format("Độ trễ nước đi (µs): p50=%d p99=%d p999=%d max=%d (%d mẫu)",
+                latency.percentile(0.50), latency.percentile(0.99), latency.percentile(0.999),
+                latency.max(), latency.count()));
+    }
+
+    // Một luồng selector phụ trách các cặp client [fromPair, toPair)
+    private final class Worker extends Thread {
+        private final String roomPrefix;
+        private final int fromPair;
+        private final int toPair;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        private final Random random = new Random();
+        private Selector selector;
+        private final List<Bot> thinking = new ArrayList<>();
+
+        Worker(String roomPrefix, int fromPair, int toPair) {
+            super("loadgen-" + roomPrefix);
+            this.roomPrefix = roomPrefix;
+            this.fromPair = fromPair;
+            this.toPair = toPair;
+        }
+
+        @Override
+        public void run() {
+            try {
+                selector = Selector.open();
+                int nextPair = fromPair;
+                while (running) {
+                    // Mở kết nối dần theo từng đợt để không làm tràn hàng đợi accept của máy chủ
+                    for (int i = 0; i < 50 && nextPair < toPair; i++, nextPair++) {
+                        Bot host = connect(roomPrefix + "-" + nextPair, null);
+                        connect(null, host);
+                    }
+                    selector.select(nextPair < toPair ? 1 : 10);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Bot bot = (Bot) key.attachment();
+                        try {
+                            if (key.isConnectable()) {
+                                bot.channel.finishConnect();
+                                key.interestOps(SelectionKey.OP_READ);
+                                connected.incrementAndGet();
+                                bot.onConnected();
+                            } else {
+                                if (key.isReadable()) {
+                                    bot.read(readBuffer);
+                                }
+                                if (key.isValid() && key.isWritable()) {
+                                    bot.flush();
+                                }
+                            }
+                        } catch (IOException e) {
+                            bot.fail();
+                        }
+                    }
+                    if (!thinking.isEmpty()) {
+                        long now = System.nanoTime();
+                        for (int i = thinking.size() - 1; i >= 0; i--) {
+                            Bot bot = thinking.get(i);
+                            if (now >= bot.moveAt) {
+                                thinking.remove(i);
+                                bot.move();
+                            }
+                        }
+                    }
+                }
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Lỗi luồng tạo tải: " + e.getMessage());
+            }
+        }
+
+        private Bot connect(String roomName, Bot host) throws IOException {
+            Bot bot = new Bot(this, roomName, host);
+            if (host != null) {
+                host.guest = bot;
+            }
+            open(bot, LoadGenerator.this.host, port);
+            return bot;
+        }
+
+        // Mở kết nối mới cho bot; dùng cả khi bot được chuyển sang node khác của cụm
+        void open(Bot bot, String host, int port) throws IOException {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            bot.channel = channel;
+            channel.connect(new InetSocketAddress(host, port));
+            bot.key = channel.register(selector, SelectionKey.OP_CONNECT, bot);
+        }
+    }
+
+    // Một người chơi giả. Chủ phòng (roomName != null) tạo phòng và gửi CHOI_LAI sau mỗi ván; khách
+    // chỉ vào phòng khi chủ phòng đã nhận CHO_DOI_THU.
+    private final class Bot {
+        private final Worker worker;
+        private SocketChannel channel;
+        private final String roomName;
+        private final Bot host;
+        private Bot guest;
+        private SelectionKey key;
+        private boolean open;
+        private boolean roomCreated;
+        private boolean guestWaiting;
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private ByteBuffer pendingOut;
+        private final boolean[] board = new boolean[size * size];
+        private int filled;
+        private String symbol;
+        private int pendingMove = -1;
+        private long sentAt;
+        private long moveAt;
+        private boolean inGame;
+        private boolean dead;
+        private String resend; // lệnh cần gửi lại sau khi chuyển sang node khác
+        private final String nickname; // --login: biệt danh gửi lại sau mỗi lần kết nối
+
+        Bot(Worker worker, String roomName, Bot host) {
+            this.worker = worker;
+            this.roomName = roomName;
+            this.host = host;
+            this.nickname = login ? "p" + (roomName != null ? roomName + "a" : host.roomName + "b") : null;
+        }
+
+        void onConnected() throws IOException {
+            open = true;
+            if (nickname != null) {
+                send("DANG_NHAP|" + nickname);
+            }
+            if (resend != null) {
+                String command = resend;
+                resend = null;
+                send(command);
+            } else if (matchmaking) {
+                send("GHEP_TRAN|" + size);
+            } else if (roomName != null) {
+                send("TAO_PHONG|" + roomName + "|" + size);
+            } else {
+                guestWaiting = true;
+                host.tryAdmitGuest();
+            }
+        }
+
+        // Khách chỉ vào phòng sau khi phòng đã được tạo và khách đã kết nối xong
+        void tryAdmitGuest() throws IOException {
+            if (guest != null && guest.guestWaiting && roomCreated) {
+                guest.guestWaiting = false;
+                guest.send("VAO_PHONG|" + roomName);
+            }
+        }
+
+        void read(ByteBuffer buffer) throws IOException {
+            SocketChannel from = channel;
+            buffer.clear();
+            int n = from.read(buffer);
+            if (n < 0) {
+                throw new IOException("Máy chủ đóng kết nối");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    onMessage(new String(line, 0, lineLength, StandardCharsets.UTF_8));
+                    lineLength = 0;
+                    if (channel != from) {
+                        return; // đã chuyển máy: phần còn lại thuộc kết nối cũ
+                    }
+                } else {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+        }
+
+        private void onMessage(String message) throws IOException {
+            if (message.startsWith("DANH|")) {
+                int bar = message.indexOf('|', 5);
+                int position = Integer.parseInt(message.substring(5, bar));
+                if (!board[position]) {
+                    board[position] = true;
+                    filled++;
+                }
+                if (position == pendingMove && message.endsWith(symbol)) {
+                    worker.latency.record((System.nanoTime() - sentAt) / 1000);
+                    moves.increment();
+                    pendingMove = -1;
+                }
+            } else if (message.equals("LUOT_CUA_BAN")) {
+                if (thinkNanos > 0) {
+                    moveAt = System.nanoTime() + thinkNanos;
+                    worker.thinking.add(this);
+                } else {
+                    move();
+                }
+            } else if (message.startsWith("BAT_DAU|")) {
+                symbol = message.substring(8, 9);
+                Arrays.fill(board, false);
+                filled = 0;
+                pendingMove = -1;
+                if (!inGame) {
+                    inGame = true;
+                    playing.incrementAndGet();
+                }
+            } else if (message.startsWith("KET_THUC|")) {
+                // Một người mỗi phòng xin chơi lại: chủ phòng, hoặc X khi do máy chủ ghép
+                if (matchmaking ? "X".equals(symbol) : roomName != null) {
+                    games.increment();
+                    send("CHOI_LAI");
+                }
+            } else if (message.equals("CHO_DOI_THU")) {
+                roomCreated = true;
+                tryAdmitGuest();
+            } else if (message.startsWith("CHUYEN_MAY|")) {
+                redirect(message);
+            } else if (message.equals("DOI_THU_THOAT")) {
+                fail();
+            } else if (message.startsWith("LOI|")) {
+                System.err.println("Máy chủ báo lỗi: " + message);
+            }
+        }
+
+        // CHUYEN_MAY|host|port|lệnh: đóng kết nối hiện tại, kết nối tới node giữ phòng và gửi lại lệnh
+        private void redirect(String message) throws IOException {
+            String[] parts = message.split("\\|", 4);
+            if (parts.length < 4) {
+                return;
+            }
+            redirects.increment();
+            key.cancel();
+            channel.close();
+            if (open) {
+                open = false;
+                connected.decrementAndGet();
+            }
+            pendingOut = null;
+            resend = parts[3];
+            worker.open(this, parts[1], Integer.parseInt(parts[2]));
+        }
+
+        void move() {
+            if (dead || filled >= board.length) {
+                return;
+            }
+            try {
+                if (chatRate > 0 && worker.random.nextDouble() < chatRate) {
+                    send("CHAT|xin chao tu bot");
+                    chats.increment();
+                }
+                int position;
+                do {
+                    position = worker.random.nextInt(board.length);
+                } while (board[position]);
+                pendingMove = position;
+                sentAt = System.nanoTime();
+                send("DANH|" + position);
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        void send(String message) throws IOException {
+            ByteBuffer data = ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8));
+            if (pendingOut != null) {
+                ByteBuffer merged = ByteBuffer.allocate(pendingOut.remaining() + data.remaining());
+                merged.put(pendingOut).put(data).flip();
+                pendingOut = merged;
+                return;
+            }
+            channel.write(data);
+            if (data.hasRemaining()) {
+                pendingOut = data;
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void flush() throws IOException {
+            channel.write(pendingOut);
+            if (!pendingOut.hasRemaining()) {
+                pendingOut = null;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        void fail() {
+            if (dead) {
+                return;
+            }
+            dead = true;
+            if (open) {
+                connected.decrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+            if (inGame) {
+                playing.decrementAndGet();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Kênh cập nhật danh sách phòng cho các client đang ở màn hình lobby.
+//
+// Thay vì gửi lại toàn bộ danh sách cho mọi client sau mỗi sự kiện, các thay đổi được gom lại và
+// cứ mỗi TICK_MILLIS gửi một tin CAP_NHAT_PHONG|version|+phòng|-phòng|#phòng cho các client đã đăng
+// ký. Client chỉ nhận ảnh chụp đầy đủ DANH_SACH_PHONG|version|... khi đăng ký, hoặc khi nó phát hiện
+// bị lỡ một phiên bản và yêu cầu lại bằng LAY_DANH_SACH_PHONG.
+class LobbyChannel {
+    static final long TICK_MILLIS = 100;
+
+    static final char ROOM_ADDED = '+';
+    static final char ROOM_REMOVED = '-';
+    static final char ROOM_FULL = '#';
+
+    private final Map<String, Room> rooms;
+    private final Set<ClientHandler> subscribers = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock lock = new ReentrantLock();
+    // Thay đổi mới nhất của mỗi phòng trong tick hiện tại; giữ thứ tự xảy ra
+    private final Map<String, Character> pending = new LinkedHashMap<>();
+    // Phòng còn chỗ của các node khác khi chạy cụm (xem ClusterRegistry)
+    private Set<String> remote = Collections.emptySet();
+    private long version;
+
+    LobbyChannel(Map<String, Room> rooms) {
+        this.rooms = rooms;
+    }
+
+    void start() {
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lobby-tick");
+            t.setDaemon(true);
+            return t;
+        }).scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Đăng ký nhận cập nhật và gửi ngay ảnh chụp đầy đủ
+    void subscribe(ClientHandler client) {
+        String message;
+        lock.lock();
+        try {
+            // Trong khóa để không có tick nào chen vào giữa việc đăng ký và chụp danh sách
+            subscribers.add(client);
+            message = snapshotLocked();
+        } finally {
+            lock.unlock();
+        }
+        client.sendMessage(message);
+    }
+
+    void unsubscribe(ClientHandler client) {
+        subscribers.remove(client);
+    }
+
+    void roomAdded(String name) {
+        record(name, ROOM_ADDED);
+    }
+
+    void roomRemoved(String name) {
+        record(name, ROOM_REMOVED);
+    }
+
+    void roomFull(String name) {
+        record(name, ROOM_FULL);
+    }
+
+    // Thay toàn bộ danh sách phòng của các node khác; chỉ phần chênh lệch được đưa vào tick
+    void setRemoteRooms(Set<String> open) {
+        lock.lock();
+        try {
+            for (String name : remote) {
+                if (!open.contains(name)) {
+                    recordLocked(name, ROOM_REMOVED);
+                }
+            }
+            for (String name : open) {
+                if (!remote.contains(name)) {
+                    recordLocked(name, ROOM_ADDED);
+                }
+            }
+            remote = open;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void record(String name, char change) {
+        lock.lock();
+        try {
+            recordLocked(name, change);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordLocked(String name, char change) {
+        // Xóa trước để thay đổi mới nhất nằm cuối, đúng thứ tự áp dụng
+        pending.remove(name);
+        pending.put(name, change);
+    }
+
+    // Ảnh chụp có thể đã chứa các thay đổi chưa được gửi trong tick này; điều đó vô hại vì các
+    // delta chỉ đặt trạng thái (thêm/xóa) nên áp dụng lại lần nữa không đổi kết quả.
+    String snapshot() {
+        lock.lock();
+        try {
+            return snapshotLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String snapshotLocked() {
+        StringBuilder sb = new StringBuilder("DANH_SACH_PHONG|").append(version);
+        for (Room room : rooms.values()) {
+            if (!room.isFull()) {
+                sb.append('|').append(room.getName());
+            }
+        }
+        for (String name : remote) {
+            if (!rooms.containsKey(name)) {
+                sb.append('|').append(name);
+            }
+        }
+        return sb.toString();
+    }
+
+    void tick() {
+        long start = System.nanoTime();
+        String message;
+        lock.lock();
+        try {
+            if (pending.isEmpty()) {
+                return;
+            }
+            version++;
+            StringBuilder sb = new StringBuilder("CAP_NHAT_PHONG|").append(version);
+            for (Map.Entry<String, Character> e : pending.entrySet()) {
+                sb.append('|').append(e.getValue().charValue()).append(e.getKey());
+            }
+            pending.clear();
+            message = sb.toString();
+        } finally {
+            lock.unlock();
+        }
+        List<ClientHandler> closed = new ArrayList<>();
+        int sent = 0;
+        for (ClientHandler client : subscribers) {
+            if (client.isClosed()) {
+                closed.add(client);
+            } else {
+                client.sendMessage(message);
+                sent++;
+            }
+        }
+        subscribers.removeAll(closed);
+        ServerMetrics.lobbyRecipients.add(sent);
+        ServerMetrics.lobbyTickNanos.record(System.nanoTime() - start);
+    }
+
+    int subscriberCount() {
+        return subscribers.size();
+    }
+}
@@ -0,0 +1,437 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Bảng thắng/thua/hòa và rating nằm ngoài heap, trong file ánh xạ bộ nhớ <baseName>.<số ô> (-Dleaderboard.store=mmap).
+//
+// File là một bảng băm địa chỉ mở (dò tuyến tính) gồm các ô 64 byte cố định:
+// [trạng thái][băm][thắng][thua][hòa][rating][độ dài tên][tên UTF-8, tối đa 39 byte]. Bộ đếm được cộng ngay trong
+// file bằng VarHandle trên MappedByteBuffer và việc ghi xuống đĩa để hệ điều hành lo, nên không cần nhật ký
+// hay ảnh chụp CSV: khởi động chỉ ánh xạ file rồi quét các ô. Tiến trình chết thì không mất gì (trang bẩn
+// vẫn nằm trong page cache); mất điện thì có thể mất các cập nhật hệ điều hành chưa kịp ghi.
+//
+// Khi số người chơi vượt 3/4 số ô, bảng được băm lại sang một file gấp đôi dưới khóa ghi. File mới chỉ được
+// đánh dấu hoàn chỉnh sau khi đã ghi đủ và force(); lúc mở chọn file hoàn chỉnh lớn nhất và xóa các file
+// còn lại, nên không bao giờ phải đổi tên hay ghi đè một file đang được ánh xạ. File định dạng cũ (chưa có
+// rating) được nâng cấp theo cùng cách khi mở.
+final class MappedLeaderboardStore {
+    interface Visitor {
+        void accept(String name, int wins, int losses, int draws, int rating);
+    }
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int MAGIC = 0x4C424D32; // "LBM2"
+    private static final int MAGIC_V1 = 0x4C424D31; // "LBM1": chưa có rating, tên ở byte 21
+    private static final int HEADER = 64; // [magic][số ô][hoàn chỉnh]
+    private static final int SLOT = 64;
+    private static final int STATE = 0, HASH = 4, WINS = 8, LOSSES = 12, DRAWS = 16, RATING = 20, NAME_LENGTH = 24, NAME = 25;
+    private static final int V1_NAME_LENGTH = 20, V1_NAME = 21;
+    static final int MAX_NAME_BYTES = SLOT - NAME;
+    private static final int EMPTY = 0, WRITING = 1, USED = 2;
+    private static final int DEAD = 3; // ô ghi dở khi tiến trình chết: vẫn nằm trên chuỗi dò, không bao giờ khớp
+    // Một MappedByteBuffer tối đa 2GB: 2^24 ô x 64 byte là 1GB, đủ cho khoảng 12 triệu người chơi
+    private static final int MAX_SLOTS = 1 << 24;
+
+    private final File dir;
+    private final String baseName;
+    private final int initialSlots;
+    // Thao tác thường giữ khóa đọc (song song với nhau), băm lại giữ khóa ghi
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicInteger count = new AtomicInteger();
+    private MappedByteBuffer buffer;
+    private int slots;
+    private boolean complete;
+    private boolean legacy; // file đang ánh xạ ở định dạng LBM1, chỉ trong lúc open()
+
+    MappedLeaderboardStore(File dir, String baseName, int initialSlots) {
+        this.dir = dir;
+        this.baseName = baseName;
+        this.initialSlots = Math.min(MAX_SLOTS, Integer.highestOneBit(Math.max(64, initialSlots - 1) << 1));
+    }
+
+    // Ánh xạ file hoàn chỉnh lớn nhất; trả về false nếu chưa có và một file trống vừa được tạo, khi đó người
+    // gọi nạp dữ liệu cũ vào rồi gọi commit(). File dở dang (băm lại hay nạp bị ngắt) bị bỏ qua và xóa.
+    boolean open() throws IOException {
+        lock.writeLock().lock();
+        try {
+            boolean found = false;
+            for (Map.Entry<Integer, File> e : files().descendingMap().entrySet()) {
+                if (!found && map(e.getValue(), e.getKey())) {
+                    found = true;
+                    continue;
+                }
+                delete(e.getValue());
+            }
+            if (!found) {
+                buffer = allocate(file(initialSlots), initialSlots);
+                slots = initialSlots;
+                count.set(0);
+                return false;
+            }
+            recount();
+            if (legacy) {
+                upgrade();
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // false khi open() vừa tạo file trống và dữ liệu cũ chưa được nạp xong
+    boolean isCommitted() {
+        return complete;
+    }
+
+    // Đánh dấu file hiện tại là hoàn chỉnh sau khi nạp xong dữ liệu cũ
+    void commit() {
+        lock.writeLock().lock();
+        try {
+            buffer.force();
+            INT.setVolatile(buffer, 8, 1);
+            buffer.force();
+            complete = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Số ô đã dùng: số người chơi, cộng các ô DEAD nếu có
+    int size() {
+        return count.get();
+    }
+
+    // Bộ đếm của name, hoặc null nếu chưa có
+    LeaderboardManager.StatsSnapshot get(String name) {
+        byte[] key = key(name);
+        int hash = hash(key);
+        lock.readLock().lock();
+        try {
+            int slot = find(key, hash, false);
+            return slot < 0 ? null : snapshot(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Cộng vào bộ đếm của name (thêm người chơi nếu chưa có), đặt rating mới và trả về giá trị mới; null nếu
+    // bảng đã đầy. Mỗi trường được ghi nguyên tử nhưng không cùng lúc: người gọi tự tuần tự hóa các lần cập
+    // nhật của cùng một người chơi, còn người đọc không khóa có thể thấy bộ đếm mới đi với rating cũ.
+    LeaderboardManager.StatsSnapshot add(String name, int wins, int losses, int draws, int rating) {
+        byte[] key = key(name);
+        int hash = hash(key);
+        while (true) {
+            lock.readLock().lock();
+            try {
+                int slot = find(key, hash, count.get() < slots / 4 * 3);
+                if (slot >= 0) {
+                    int base = HEADER + slot * SLOT;
+                    int w = (int) INT.getAndAdd(buffer, base + WINS, wins) + wins;
+                    int l = (int) INT.getAndAdd(buffer, base + LOSSES, losses) + losses;
+                    int d = (int) INT.getAndAdd(buffer, base + DRAWS, draws) + draws;
+                    INT.setRelease(buffer, base + RATING, rating);
+                    return new LeaderboardManager.StatsSnapshot(w, l, d, rating);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            // Không có và không được thêm: băm lại sang bảng lớn hơn rồi thử lại
+            if (!grow()) {
+                return null;
+            }
+        }
+    }
+
+    void forEach(Visitor visitor) {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < slots; slot++) {
+                int base = HEADER + slot * SLOT;
+                if ((int) INT.getAcquire(buffer, base + STATE) == USED) {
+                    LeaderboardManager.StatsSnapshot s = snapshot(slot);
+                    visitor.accept(name(base), s.wins, s.losses, s.draws, s.rating);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Khi tắt máy chủ: ghi các trang bẩn xuống đĩa ngay thay vì chờ hệ điều hành
+    void flush() {
+        lock.readLock().lock();
+        try {
+            buffer.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Vị trí ô của key; khi không có thì chiếm ô trống đầu tiên trên chuỗi dò nếu insert, ngược lại trả về -1.
+    // Gọi khi giữ khóa đọc hoặc ghi.
+    private int find(byte[] key, int hash, boolean insert) {
+        int mask = slots - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int base = HEADER + slot * SLOT;
+            int state = (int) INT.getAcquire(buffer, base + STATE);
+            if (state == EMPTY) {
+                if (!insert) {
+                    return -1;
+                }
+                if (!INT.compareAndSet(buffer, base + STATE, EMPTY, WRITING)) {
+                    slot = (slot - 1) & mask; // luồng khác vừa chiếm ô này: xem lại nó
+                    continue;
+                }
+                INT.set(buffer, base + HASH, hash);
+                INT.set(buffer, base + RATING, LeaderboardManager.DEFAULT_RATING);
+                buffer.put(base + NAME_LENGTH, (byte) key.length);
+                for (int i = 0; i < key.length; i++) {
+                    buffer.put(base + NAME + i, key[i]);
+                }
+                INT.setRelease(buffer, base + STATE, USED);
+                count.incrementAndGet();
+                return slot;
+            }
+            while (state == WRITING) {
+                Thread.onSpinWait();
+                state = (int) INT.getAcquire(buffer, base + STATE);
+            }
+            if (state == USED && (int) INT.get(buffer, base + HASH) == hash && matches(base, key)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean grow() {
+        lock.writeLock().lock();
+        try {
+            if (count.get() < slots / 4 * 3) {
+                return true; // luồng khác vừa băm lại
+            }
+            if (slots >= MAX_SLOTS) {
+                System.err.println("Bảng xếp hạng ánh xạ bộ nhớ đã đầy (" + count.get() + " người chơi)");
+                return false;
+            }
+            rehash(slots * 2);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Không thể mở rộng bảng xếp hạng: " + e.getMessage());
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Chép mọi ô đã dùng sang file newSlots ô, chuyển sang file đó rồi xóa file cũ. Gọi khi giữ khóa ghi.
+    private void rehash(int newSlots) throws IOException {
+        MappedByteBuffer old = buffer;
+        int oldSlots = slots;
+        boolean wasComplete = complete;
+        buffer = allocate(file(newSlots), newSlots);
+        slots = newSlots;
+        count.set(0);
+        int mask = newSlots - 1;
+        for (int slot = 0; slot < oldSlots; slot++) {
+            int from = HEADER + slot * SLOT;
+            if ((int) INT.get(old, from + STATE) != USED) {
+                continue;
+            }
+            int to = (int) INT.get(old, from + HASH) & mask;
+            while ((int) INT.get(buffer, HEADER + to * SLOT + STATE) != EMPTY) {
+                to = (to + 1) & mask;
+            }
+            int base = HEADER + to * SLOT;
+            for (int i = 0; i < SLOT; i++) {
+                buffer.put(base + i, old.get(from + i));
+            }
+            count.incrementAndGet();
+        }
+        // Đang nạp dữ liệu cũ thì file mới cũng chưa hoàn chỉnh, commit() sau khi nạp xong sẽ đánh dấu
+        if (wasComplete) {
+            commit();
+        }
+        // Windows không cho xóa file đang ánh xạ: khi đó file cũ bị xóa ở lần mở sau
+        delete(file(oldSlots));
+    }
+
+    // Chép file LBM1 vừa mở sang file gấp đôi ở định dạng hiện tại; mọi người chơi bắt đầu từ rating khởi
+    // đầu. Như khi băm lại, file mới chỉ hoàn chỉnh sau khi chép xong nên bị ngắt thì lần mở sau vẫn thấy file
+    // cũ. Tên dài hơn chỗ mới bị cắt; hai tên cắt ra trùng nhau thì gộp bộ đếm. Gọi khi giữ khóa ghi.
+    private void upgrade() throws IOException {
+        if (slots >= MAX_SLOTS) {
+            throw new IOException("không thể nâng cấp bảng định dạng cũ đã đủ " + slots + " ô");
+        }
+        MappedByteBuffer old = buffer;
+        int oldSlots = slots;
+        buffer = allocate(file(oldSlots * 2), oldSlots * 2);
+        slots = oldSlots * 2;
+        count.set(0);
+        for (int slot = 0; slot < oldSlots; slot++) {
+            int from = HEADER + slot * SLOT;
+            if ((int) INT.get(old, from + STATE) != USED) {
+                continue;
+            }
+            byte[] bytes = new byte[old.get(from + V1_NAME_LENGTH) & 0xFF];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = old.get(from + V1_NAME + i);
+            }
+            byte[] key = key(new String(bytes, StandardCharsets.UTF_8));
+            int base = HEADER + find(key, hash(key), true) * SLOT;
+            INT.getAndAdd(buffer, base + WINS, (int) INT.get(old, from + WINS));
+            INT.getAndAdd(buffer, base + LOSSES, (int) INT.get(old, from + LOSSES));
+            INT.getAndAdd(buffer, base + DRAWS, (int) INT.get(old, from + DRAWS));
+        }
+        commit();
+        legacy = false;
+        delete(file(oldSlots));
+    }
+
+    // Đếm người chơi và đánh dấu DEAD các ô còn đang ghi dở từ lần chạy trước. Ô DEAD được tính vào độ đầy
+    // để chuỗi dò luôn còn ô trống; lần băm lại sau sẽ bỏ chúng.
+    private void recount() {
+        int used = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            int base = HEADER + slot * SLOT;
+            int state = (int) INT.get(buffer, base + STATE);
+            if (state == WRITING) {
+                INT.set(buffer, base + STATE, DEAD);
+                state = DEAD;
+            }
+            if (state != EMPTY) {
+                used++;
+            }
+        }
+        count.set(used);
+    }
+
+    private MappedByteBuffer allocate(File f, int newSlots) throws IOException {
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // File thưa: chỉ các trang có ô được dùng mới chiếm chỗ trên đĩa
+            MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) newSlots * SLOT);
+            INT.set(b, 0, MAGIC);
+            INT.set(b, 4, newSlots);
+            INT.set(b, 8, 0);
+            complete = false;
+            return b;
+        }
+    }
+
+    private boolean map(File f, int expectedSlots) throws IOException {
+        long length = HEADER + (long) expectedSlots * SLOT;
+        if (f.length() != length) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            int magic = (int) INT.get(b, 0);
+            if ((magic != MAGIC && magic != MAGIC_V1) || (int) INT.get(b, 4) != expectedSlots || (int) INT.get(b, 8) != 1) {
+                return false;
+            }
+            legacy = magic == MAGIC_V1;
+            buffer = b;
+            slots = expectedSlots;
+            complete = true;
+            return true;
+        }
+    }
+
+    // Các file của bảng theo số ô
+    private TreeMap<Integer, File> files() {
+        TreeMap<Integer, File> result = new TreeMap<>();
+        File[] list = dir.listFiles((d, name) -> name.startsWith(baseName + "."));
+        if (list == null) {
+            return result;
+        }
+        for (File f : list) {
+            try {
+                int n = Integer.parseInt(f.getName().substring(baseName.length() + 1));
+                if (Integer.bitCount(n) == 1 && n <= MAX_SLOTS) {
+                    result.put(n, f);
+                }
+            } catch (NumberFormatException ignored) {}
+        }
+        return result;
+    }
+
+    private File file(int n) {
+        return new File(dir, baseName + "." + n);
+    }
+
+    private static void delete(File f) {
+        if (f.exists() && !f.delete()) {
+            System.err.println("Không thể xóa bảng xếp hạng cũ: " + f);
+        }
+    }
+
+    private LeaderboardManager.StatsSnapshot snapshot(int slot) {
+        int base = HEADER + slot * SLOT;
+        return new LeaderboardManager.StatsSnapshot((int) INT.getOpaque(buffer, base + WINS),
+                (int) INT.getOpaque(buffer, base + LOSSES), (int) INT.getOpaque(buffer, base + DRAWS),
+                (int) INT.getAcquire(buffer, base + RATING));
+    }
+
+    private boolean matches(int base, byte[] key) {
+        if ((buffer.get(base + NAME_LENGTH) & 0xFF) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(base + NAME + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String name(int base) {
+        byte[] bytes = new byte[buffer.get(base + NAME_LENGTH) & 0xFF];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(base + NAME + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Tên như được lưu trong bảng: cắt bớt nếu dài quá MAX_NAME_BYTES byte UTF-8
+    static String fit(String name) {
+        if (name.length() * 3 <= MAX_NAME_BYTES) {
+            return name;
+        }
+        byte[] key = key(name);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    // Tên dạng UTF-8, cắt ở ranh giới ký tự nếu dài quá MAX_NAME_BYTES
+    private static byte[] key(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_NAME_BYTES) {
+            return bytes;
+        }
+        int end = MAX_NAME_BYTES;
+        while (end > 0 && (bytes[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        return Arrays.copyOf(bytes, end);
+    }
+
+    private static int hash(byte[] key) {
+        int h = 1;
+        for (byte b : key) {
+            h = 31 * h + b;
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
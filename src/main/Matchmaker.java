@@ -0,0 +1,269 @@
+package main;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+// Ghép trận tự động: GHEP_TRAN|kích thước đưa người chơi vào hàng chờ của kích thước bàn cờ đó, mỗi
+// TICK_MILLIS các cặp đã hợp lệ được ghép và phòng được tạo thẳng cho cặp đó, không đi qua danh sách
+// phòng của lobby.
+//
+// Ghép theo trình độ: người chờ của một kích thước nằm trong một cây sắp theo (rating lấy lúc vào hàng,
+// thứ tự đến), và chỉ hai người liền kề trong cây mới được ghép với nhau, khi chênh lệch không quá cửa sổ
+// rating. Cửa sổ bắt đầu từ -Dmatch.ratingWindow (mặc định 100) và nới thêm -Dmatch.ratingWindowPerSecond
+// (mặc định 50) mỗi giây chờ, tính theo người chờ ít hơn trong cặp, nên người chờ lâu dần được ghép với
+// đối thủ xa hơn.
+//
+// Vì cửa sổ chỉ phụ thuộc thời gian chờ, thời điểm một cặp liền kề trở nên hợp lệ tính được ngay khi hai
+// vé trở thành liền kề (vào hàng, hoặc vé ở giữa rời đi). Cặp đó được đưa vào một hàng ưu tiên theo thời
+// điểm hợp lệ, và mỗi tick chỉ lấy các cặp đã tới hạn: vào hàng, hủy và mỗi lần ghép là O(log n), còn tick
+// không chạm tới người chờ chưa ghép được. Cặp không còn liền kề (một bên đã rời đi) bị bỏ khi tới hạn.
+//
+// Lúc vắng người, ai chờ quá botAfterNanos (-Dmatch.botAfterSeconds, 0 để tắt) được ghép với máy; vé được
+// xét theo thứ tự đến nên mỗi tick chỉ xem đầu hàng.
+class Matchmaker {
+    static final long TICK_MILLIS = 100;
+
+    interface Pairing {
+        // second == null: ghép first với máy
+        void match(ClientHandler first, ClientHandler second, int size);
+    }
+
+    static final class Ticket {
+        final ClientHandler client;
+        final int size;
+        final int rating;
+        final long seq; // thứ tự vào hàng, phân biệt các vé cùng rating trong cây
+        final long enqueuedAt = System.nanoTime();
+        boolean cancelled; // dưới khóa của Matchmaker
+
+        Ticket(ClientHandler client, int size, int rating, long seq) {
+            this.client = client;
+            this.size = size;
+            this.rating = rating;
+            this.seq = seq;
+        }
+    }
+
+    // Hai vé liền kề theo rating và thời điểm cặp đó lọt vào cửa sổ rating
+    private static final class Candidate {
+        final Ticket low;
+        final Ticket high;
+        final long readyAt;
+
+        Candidate(Ticket low, Ticket high, long readyAt) {
+            this.low = low;
+            this.high = high;
+            this.readyAt = readyAt;
+        }
+    }
+
+    // Người chờ của một kích thước bàn cờ, chỉ truy cập dưới khóa của Matchmaker
+    private static final class Pool {
+        final TreeSet<Ticket> byRating = new TreeSet<>(BY_RATING);
+        final PriorityQueue<Candidate> candidates = new PriorityQueue<>(BY_READY);
+        // Thứ tự đến, chỉ dùng khi có ghép với máy; vé đã rời hàng được bỏ khi tới đầu
+        final ArrayDeque<Ticket> arrivals = new ArrayDeque<>();
+    }
+
+    private static final int RATING_WINDOW = Integer.getInteger("match.ratingWindow", 100);
+    private static final int RATING_WINDOW_PER_SECOND = Integer.getInteger("match.ratingWindowPerSecond", 50);
+    private static final Comparator<Ticket> BY_RATING =
+            Comparator.<Ticket>comparingInt(t -> t.rating).thenComparingLong(t -> t.seq);
+    private static final Comparator<Candidate> BY_READY = (a, b) -> Long.signum(a.readyAt - b.readyAt);
+    // Cặp cần chờ lâu hơn mức này coi như không bao giờ hợp lệ (tránh tràn số khi cộng vào nanoTime)
+    private static final long MAX_WAIT_SECONDS = TimeUnit.DAYS.toSeconds(1);
+
+    private final long botAfterNanos;
+    private final Pairing pairing;
+    private final ToIntFunction<ClientHandler> rating;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Integer, Pool> pools = new TreeMap<>();
+    // Số vé còn hiệu lực theo kích thước
+    private final Map<Integer, Integer> waiting = new TreeMap<>();
+    private long nextSeq; // dưới khóa
+
+    Matchmaker(long botAfterNanos, Pairing pairing, ToIntFunction<ClientHandler> rating) {
+        this.botAfterNanos = botAfterNanos;
+        this.pairing = pairing;
+        this.rating = rating;
+    }
+
+    void start() {
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "matchmaker");
+            t.setDaemon(true);
+            return t;
+        }).scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Vào hàng chờ; vé cũ của client (nếu có) bị thay bằng vé mới
+    void enqueue(ClientHandler client, int size) {
+        int clientRating = rating.applyAsInt(client);
+        lock.lock();
+        try {
+            cancelLocked(client.getTicket());
+            Ticket ticket = new Ticket(client, size, clientRating, nextSeq++);
+            client.setTicket(ticket);
+            Pool pool = pools.computeIfAbsent(size, k -> new Pool());
+            pool.byRating.add(ticket);
+            if (botAfterNanos > 0) {
+                pool.arrivals.add(ticket);
+            }
+            Ticket lower = pool.byRating.lower(ticket);
+            Ticket higher = pool.byRating.higher(ticket);
+            if (lower != null) {
+                offer(pool, lower, ticket);
+            }
+            if (higher != null) {
+                offer(pool, ticket, higher);
+            }
+            waiting.merge(size, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Trả về true nếu client đang chờ và vé vừa bị hủy
+    boolean cancel(ClientHandler client) {
+        lock.lock();
+        try {
+            return cancelLocked(client.getTicket());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Gỡ vé khỏi cây; hai vé hai bên trở thành liền kề nên được xét như một cặp mới
+    private boolean cancelLocked(Ticket ticket) {
+        if (ticket == null || ticket.cancelled) {
+            return false;
+        }
+        ticket.cancelled = true;
+        ticket.client.setTicket(null);
+        waiting.merge(ticket.size, -1, Integer::sum);
+        Pool pool = pools.get(ticket.size);
+        Ticket lower = pool.byRating.lower(ticket);
+        Ticket higher = pool.byRating.higher(ticket);
+        pool.byRating.remove(ticket);
+        if (lower != null && higher != null) {
+            offer(pool, lower, higher);
+        }
+        return true;
+    }
+
+    // Xếp cặp liền kề (low, high) vào hàng ưu tiên với thời điểm người vào hàng sau đã chờ đủ lâu để cửa sổ
+    // rating phủ được chênh lệch; bỏ qua nếu cặp không bao giờ hợp lệ trước khi cả hai được ghép với máy
+    private void offer(Pool pool, Ticket low, Ticket high) {
+        long diff = (long) high.rating - low.rating;
+        long seconds = 0;
+        if (diff > RATING_WINDOW) {
+            if (RATING_WINDOW_PER_SECOND <= 0) {
+                return;
+            }
+            seconds = (diff - RATING_WINDOW + RATING_WINDOW_PER_SECOND - 1) / RATING_WINDOW_PER_SECOND;
+        }
+        long delay = TimeUnit.SECONDS.toNanos(Math.min(seconds, MAX_WAIT_SECONDS));
+        if (seconds > MAX_WAIT_SECONDS || (botAfterNanos > 0 && delay >= botAfterNanos)) {
+            return;
+        }
+        long younger = low.enqueuedAt - high.enqueuedAt > 0 ? low.enqueuedAt : high.enqueuedAt;
+        pool.candidates.add(new Candidate(low, high, younger + delay));
+    }
+
+    // Số người đang chờ theo kích thước bàn cờ
+    Map<Integer, Integer> waitingBySize() {
+        lock.lock();
+        try {
+            return new TreeMap<>(waiting);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void tick() {
+        List<Ticket> pairs = new ArrayList<>();
+        List<Ticket> alone = new ArrayList<>();
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            for (Pool pool : pools.values()) {
+                Candidate c;
+                while ((c = pool.candidates.peek()) != null && c.readyAt - now <= 0) {
+                    pool.candidates.poll();
+                    if (c.low.cancelled || c.high.cancelled || pool.byRating.higher(c.low) != c.high) {
+                        continue; // một bên đã rời hàng: cặp mới của các vé còn lại đã được xếp khi đó
+                    }
+                    if (dropIfClosed(c.low) | dropIfClosed(c.high)) {
+                        continue;
+                    }
+                    cancelLocked(c.low); // đã ghép: rời hàng chờ
+                    cancelLocked(c.high);
+                    pairs.add(c.low);
+                    pairs.add(c.high);
+                }
+                Ticket t;
+                while ((t = pool.arrivals.peek()) != null) {
+                    if (t.cancelled) {
+                        pool.arrivals.poll();
+                    } else if (dropIfClosed(t)) {
+                        pool.arrivals.poll();
+                    } else if (now - t.enqueuedAt >= botAfterNanos) {
+                        pool.arrivals.poll();
+                        cancelLocked(t);
+                        alone.add(t);
+                    } else {
+                        break;
+                    }
+                }
+                // Cặp cũ không còn liền kề chỉ được bỏ khi tới hạn: dựng lại nếu chúng chiếm phần lớn hàng
+                if (pool.candidates.size() > 2 * pool.byRating.size() + 64) {
+                    rebuild(pool);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Ngoài khóa: tạo phòng lấy khóa lobby
+        for (int i = 0; i < pairs.size(); i += 2) {
+            Ticket a = pairs.get(i);
+            Ticket b = pairs.get(i + 1);
+            ServerMetrics.matchWaitNanos.record(now - a.enqueuedAt);
+            ServerMetrics.matchWaitNanos.record(now - b.enqueuedAt);
+            pairing.match(a.client, b.client, a.size);
+        }
+        for (Ticket t : alone) {
+            ServerMetrics.matchWaitNanos.record(now - t.enqueuedAt);
+            pairing.match(t.client, null, t.size);
+        }
+    }
+
+    // Client đã ngắt kết nối mà vé chưa bị hủy (removeClient thường đã hủy trước): hủy ngay
+    private boolean dropIfClosed(Ticket ticket) {
+        if (ticket.client.isClosed()) {
+            cancelLocked(ticket);
+            return true;
+        }
+        return false;
+    }
+
+    private void rebuild(Pool pool) {
+        pool.candidates.clear();
+        Ticket previous = null;
+        for (Ticket t : pool.byRating) {
+            if (previous != null) {
+                offer(pool, previous, t);
+            }
+            previous = t;
+        }
+    }
+}
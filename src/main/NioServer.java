@@ -0,0 +1,309 @@
+package main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Engine máy chủ dùng một Selector cho tất cả các kết nối thay vì một luồng cho mỗi client.
+// Chạy bằng: java main.TicTacToeServer --engine=nio
+class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final int port;
+    private final Selector selector;
+    // Bộ đệm đọc dùng chung: chỉ luồng selector chạm vào nên không cần cấp phát theo kết nối
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    // Các kết nối vừa có dữ liệu cần gửi, được luồng selector bật OP_WRITE ở vòng lặp kế tiếp
+    private final Queue<NioClientHandler> pendingWrites = new ConcurrentLinkedQueue<>();
+    // Các kết nối đã bị đánh dấu đóng (từ bất kỳ luồng nào), được luồng selector đóng socket và gỡ khỏi
+    // server ở vòng lặp kế tiếp
+    private final Queue<NioClientHandler> pendingCloses = new ConcurrentLinkedQueue<>();
+
+    NioServer(int port) throws IOException {
+        this.port = port;
+        this.selector = Selector.open();
+    }
+
+    void run() throws IOException {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Máy chủ (NIO) đang chạy trên cổng " + port);
+
+            while (true) {
+                selector.select();
+                NioClientHandler pending;
+                while ((pending = pendingCloses.poll()) != null) {
+                    pending.release();
+                }
+                while ((pending = pendingWrites.poll()) != null) {
+                    pending.enableWrite();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                        continue;
+                    }
+                    NioClientHandler client = (NioClientHandler) key.attachment();
+                    if (client.isClosed()) {
+                        continue; // đang chờ release() ở vòng lặp sau
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            client.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            client.write();
+                        }
+                    } catch (IOException e) {
+                        client.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            System.out.println("Client mới kết nối: " + channel.socket().getInetAddress());
+            NioClientHandler client = new NioClientHandler(this, channel);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            TicTacToeServer.registerClient(client);
+        }
+    }
+
+    void requestWrite(NioClientHandler client) {
+        pendingWrites.add(client);
+        selector.wakeup();
+    }
+
+    void requestClose(NioClientHandler client) {
+        pendingCloses.add(client);
+        selector.wakeup();
+    }
+
+    // Kết nối phía NIO: tách dòng không chặn; hàng đợi gửi dùng chung với ClientHandler và được
+    // luồng selector xả vào một bộ đệm ghi tái sử dụng
+    static class NioClientHandler extends ClientHandler {
+        private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+        private final NioServer server;
+        private final SocketChannel channel;
+        private final String remoteAddress;
+        private SelectionKey key;
+        // Phần dòng chưa kết thúc bằng '\n' từ lần đọc trước
+        private byte[] lineBuffer = new byte[256];
+        private int lineLength;
+        // Bộ đệm ghi tái sử dụng; nhiều dòng chờ gửi được gộp vào một lần write
+        private final ByteBuffer writeBuffer = ByteBuffer.allocate(16 * 1024);
+        // Dòng đã lấy khỏi hàng đợi nhưng không còn chỗ trong bộ đệm ghi
+        private byte[] carry;
+        private ByteBuffer oversized;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        // Ở chế độ nhị phân lineBuffer chứa khung đang ghép; frameLength là độ dài khung khi đã biết
+        private final WireProtocol.Frame frame = new WireProtocol.Frame();
+        private int frameLength = -1;
+
+        NioClientHandler(NioServer server, SocketChannel channel) {
+            this.server = server;
+            this.channel = channel;
+            this.remoteAddress = channel.socket().getInetAddress().getHostAddress();
+            writeBuffer.flip(); // bắt đầu ở trạng thái rỗng, sẵn sàng để đọc ra
+        }
+
+        @Override
+        protected void scheduleFlush() {
+            server.requestWrite(this);
+        }
+
+        @Override
+        protected void disconnect() {
+            close();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        void read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                if (binaryInput()) {
+                    readFrames(buffer);
+                    return;
+                }
+                byte b = buffer.get();
+                if (b == '\n') {
+                    int len = lineLength;
+                    if (len > 0 && lineBuffer[len - 1] == '\r') {
+                        len--;
+                    }
+                    String message = new String(lineBuffer, 0, len, StandardCharsets.UTF_8);
+                    lineLength = 0;
+                    TicTacToeServer.handleClientMessage(this, message);
+                    if (isClosed()) {
+                        return;
+                    }
+                } else {
+                    if (lineLength == lineBuffer.length) {
+                        if (lineLength >= MAX_LINE_LENGTH) {
+                            System.err.println("Dòng quá dài, đóng kết nối: " + remoteAddress);
+                            close();
+                            return;
+                        }
+                        byte[] grown = new byte[Math.min(lineBuffer.length * 2, MAX_LINE_LENGTH)];
+                        System.arraycopy(lineBuffer, 0, grown, 0, lineLength);
+                        lineBuffer = grown;
+                    }
+                    lineBuffer[lineLength++] = b;
+                }
+            }
+        }
+
+        // Ghép khung nhị phân: đọc từng byte cho tới khi biết độ dài khung, sau đó chép cả khối
+        private void readFrames(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (frameLength < 0) {
+                    lineBuffer[lineLength++] = buffer.get(); // phần độ dài tối đa 5 byte, luôn vừa
+                    frameLength = WireProtocol.frameLength(lineBuffer, 0, lineLength);
+                    if (frameLength > lineBuffer.length) {
+                        lineBuffer = Arrays.copyOf(lineBuffer, frameLength);
+                    }
+                } else {
+                    int n = Math.min(buffer.remaining(), frameLength - lineLength);
+                    buffer.get(lineBuffer, lineLength, n);
+                    lineLength += n;
+                }
+                if (frameLength >= 0 && lineLength == frameLength) {
+                    frame.wrap(lineBuffer, 0, frameLength);
+                    lineLength = 0;
+                    frameLength = -1;
+                    TicTacToeServer.handleClientFrame(this, frame);
+                    if (isClosed()) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Chỉ gọi từ luồng selector
+        void enableWrite() {
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void write() throws IOException {
+            while (true) {
+                if (oversized != null) {
+                    channel.write(oversized);
+                    if (oversized.hasRemaining()) {
+                        return;
+                    }
+                    oversized = null;
+                }
+                if (!writeBuffer.hasRemaining()) {
+                    fillWriteBuffer();
+                    if (!writeBuffer.hasRemaining()) {
+                        if (oversized != null) {
+                            continue;
+                        }
+                        break;
+                    }
+                }
+                channel.write(writeBuffer);
+                if (writeBuffer.hasRemaining()) {
+                    return; // bộ đệm gửi của TCP đầy, chờ OP_WRITE tiếp theo
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            flushDone();
+        }
+
+        private void fillWriteBuffer() {
+            writeBuffer.clear();
+            while (true) {
+                byte[] next = carry;
+                carry = null;
+                if (next == null) {
+                    Object message = pollOutbound();
+                    if (message == null) {
+                        break;
+                    }
+                    next = encodeOutbound(message);
+                }
+                if (next.length > writeBuffer.remaining()) {
+                    if (writeBuffer.position() == 0) {
+                        // Dòng lớn hơn cả bộ đệm ghi: gửi thẳng từ mảng của nó
+                        oversized = ByteBuffer.wrap(next);
+                    } else {
+                        carry = next;
+                    }
+                    break;
+                }
+                writeBuffer.put(next);
+            }
+            writeBuffer.flip();
+        }
+
+        // Có thể được gọi từ bất kỳ luồng nào (hộp thư phòng, fanout lobby, sendMessage của kết nối chậm khi
+        // người gọi đang giữ khóa lobby), nên chỉ đánh dấu đóng; removeClient chạy trên luồng selector như
+        // engine blocking gọi nó từ vòng đọc của chính kết nối, không chen vào giữa thao tác của người gọi
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                server.requestClose(this);
+            }
+        }
+
+        // Chỉ gọi từ luồng selector
+        void release() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Lỗi khi đóng socket: " + e.getMessage());
+            }
+            System.out.println("Client ngắt kết nối: " + remoteAddress);
+            try {
+                TicTacToeServer.removeClient(this, getCurrentRoom());
+            } catch (RuntimeException e) {
+                System.err.println("Lỗi gỡ client " + remoteAddress + ": " + e); // không để luồng selector dừng
+            }
+        }
+    }
+}
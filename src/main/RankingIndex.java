@@ -0,0 +1,141 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Chỉ mục xếp hạng được cập nhật mỗi khi một kết quả được ghi nhận.
+//
+// Điểm ở đây là rating Elo (không âm). Thứ tự (điểm giảm dần, tên tăng dần) nằm trong một skip list nên
+// lấy top N là O(N), không phải sắp xếp lại toàn bộ người chơi. Hạng của một người chơi = 1 + số người có
+// điểm cao hơn, được đếm bằng cây Fenwick theo điểm số trong O(log S).
+class RankingIndex {
+    private final ConcurrentSkipListSet<Entry> order = new ConcurrentSkipListSet<>();
+    private final ScoreCounts counts = new ScoreCounts();
+    // Tăng sau mỗi lần update, kể cả khi thứ tự không đổi: payload đã lưu đệm còn chứa bộ đếm thắng/thua/hòa
+    // nên cũ đi sau mọi kết quả mới, không chỉ khi điểm thay đổi
+    private final AtomicLong version = new AtomicLong();
+
+    // Người gọi phải tuần tự hóa các lần cập nhật của cùng một người chơi.
+    // oldScore < 0 nghĩa là người chơi chưa có trong chỉ mục. Gọi sau khi bộ đếm của người chơi đã được ghi.
+    void update(String name, int oldScore, int newScore) {
+        if (oldScore != newScore) {
+            if (oldScore >= 0) {
+                order.remove(new Entry(oldScore, name));
+                counts.add(oldScore, -1);
+            }
+            order.add(new Entry(newScore, name));
+            counts.add(newScore, 1);
+        }
+        version.incrementAndGet();
+    }
+
+    // Bỏ mọi người chơi (nạp bảng xếp hạng thất bại giữa chừng)
+    void clear() {
+        order.clear();
+        counts.clear();
+        version.incrementAndGet();
+    }
+
+    List<Entry> top(int n) {
+        List<Entry> result = new ArrayList<>(Math.min(n, 64));
+        for (Entry e : order) {
+            if (result.size() >= n) break;
+            result.add(e);
+        }
+        return result;
+    }
+
+    int rankOf(int score) {
+        return 1 + counts.countAbove(score);
+    }
+
+    long version() {
+        return version.get();
+    }
+
+    int size() {
+        return order.size();
+    }
+
+    static final class Entry implements Comparable<Entry> {
+        final int score;
+        final String name;
+
+        Entry(int score, String name) {
+            this.score = score;
+            this.name = name;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int c = Integer.compare(other.score, score);
+            return c != 0 ? c : name.compareTo(other.name);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && ((Entry) o).score == score && ((Entry) o).name.equals(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * score + name.hashCode();
+        }
+    }
+
+    // Số người chơi theo từng mức điểm (cây Fenwick, tự mở rộng khi điểm vượt sức chứa).
+    // Các thao tác đều O(log S) nên dùng một khóa chung là đủ.
+    private static final class ScoreCounts {
+        private int[] raw = new int[1024];
+        private int[] tree = new int[1024 + 1];
+        private int total;
+
+        synchronized void add(int score, int delta) {
+            if (score >= raw.length) {
+                grow(score);
+            }
+            raw[score] += delta;
+            total += delta;
+            for (int i = score + 1; i < tree.length; i += i & -i) {
+                tree[i] += delta;
+            }
+        }
+
+        synchronized void clear() {
+            Arrays.fill(raw, 0);
+            Arrays.fill(tree, 0);
+            total = 0;
+        }
+
+        synchronized int countAbove(int score) {
+            if (score < 0) {
+                return total;
+            }
+            int upTo = Math.min(score, raw.length - 1);
+            int sum = 0;
+            for (int i = upTo + 1; i > 0; i -= i & -i) {
+                sum += tree[i];
+            }
+            return total - sum;
+        }
+
+        private void grow(int score) {
+            int capacity = raw.length;
+            while (capacity <= score) {
+                capacity <<= 1;
+            }
+            raw = Arrays.copyOf(raw, capacity);
+            tree = new int[capacity + 1];
+            for (int s = 0; s < capacity; s++) {
+                if (raw[s] != 0) {
+                    for (int i = s + 1; i < tree.length; i += i & -i) {
+                        tree[i] += raw[s];
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Lưu lại mọi ván đã kết thúc để xem lại (XEM_LAI), gọn đủ để giữ hàng triệu ván trên đĩa.
+//
+// Mỗi ván là một bản ghi [độ dài varint][kích thước varint][cờ][tên X][tên O][nước đi varint...]:
+// cờ gồm bên đi trước và kết quả, tên là [độ dài varint][UTF-8], còn nước đi chỉ là vị trí vì hai bên
+// đánh xen kẽ từ người đi trước. Bàn đến 11x11 mỗi nước 1 byte, bàn lớn nhất 2 byte; một ván 3x3
+// khoảng 30 byte, ván 15x15 dài khoảng 150 byte.
+//
+// Bản ghi được nối vào đoạn replay.<mã đầu>.dat; song song là replay.<mã đầu>.idx gồm một offset 4 byte
+// cho mỗi ván, nên mã ván liên tiếp và tra một ván chỉ cần đọc một ô chỉ mục. Đoạn mới được mở khi đoạn
+// hiện tại vượt segmentBytes và mỗi lần khởi động (không ghi tiếp file cũ có thể kết thúc dở). Giống
+// LeaderboardJournal: append() chỉ xếp hàng, luồng nền ghi cả loạt và fsync sau tối đa syncMillis.
+//
+// Mã ván được trả về (và gửi cho người chơi bằng MA_VAN) trước khi bản ghi xuống đĩa, nên ván chưa kịp
+// ghi khi máy sập hay khi ghi lỗi thì mất. Để mã đã gửi không bao giờ trỏ tới một ván khác, mã được cấp
+// theo khối ID_BLOCK: trước khi cấp mã đầu tiên của một khối, giới hạn trên của khối được ghi và fsync vào
+// replay.ids; khi khởi động mã tiếp theo bắt đầu từ giới hạn đó. Mã đã cấp mà ván bị mất chỉ còn là
+// khoảng trống: XEM_LAI trả "không tìm thấy".
+class ReplayStore {
+    static final int RESULT_X = 0;
+    static final int RESULT_O = 1;
+    static final int RESULT_DRAW = 2;
+    // Bản ghi lớn nhất hợp lệ: bàn 50x50 đánh kín cùng hai tên dài; dài hơn là file hỏng
+    private static final int MAX_RECORD = 16 * 1024;
+    // Số mã ván giữ trước mỗi lần fsync replay.ids: một lần fsync trên luồng kết thúc ván cho mỗi khối
+    private static final int ID_BLOCK = 4096;
+
+    // Một ván đọc lại từ đĩa; moves xen kẽ bắt đầu từ bên đi trước
+    static final class Replay {
+        final long id;
+        final int size;
+        final boolean oFirst;
+        final int result;
+        final String playerX;
+        final String playerO;
+        final int[] moves;
+
+        Replay(long id, int size, boolean oFirst, int result, String playerX, String playerO, int[] moves) {
+            this.id = id;
+            this.size = size;
+            this.oFirst = oFirst;
+            this.result = result;
+            this.playerX = playerX;
+            this.playerO = playerO;
+            this.moves = moves;
+        }
+    }
+
+    private static final class Pending {
+        final long id;
+        final byte[] record;
+
+        Pending(long id, byte[] record) {
+            this.id = id;
+            this.record = record;
+        }
+    }
+
+    private final File dir;
+    private final String baseName;
+    private final long syncMillis;
+    private final long segmentBytes;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    // Mã ván đầu của các đoạn đã có chỉ mục; luồng ghi thêm vào, luồng đọc tra floor()
+    private final ConcurrentSkipListSet<Long> segments = new ConcurrentSkipListSet<>();
+    private long nextId = 1; // cấp dưới khóa this, cùng lúc xếp hàng, nên hàng đợi luôn theo thứ tự mã
+    private long reservedUntil; // mã đầu tiên chưa được giữ trong replay.ids, dưới khóa this
+    private FileChannel ids;
+    // Chỉ luồng ghi chạm tới
+    private FileChannel data;
+    private FileChannel index;
+    private long dataSize;
+    private boolean broken; // lần ghi trước lỗi giữa chừng: chỉ mục có thể lệch, mở đoạn mới
+    private volatile boolean running;
+    private Thread writer;
+
+    ReplayStore(File dir, String baseName, long syncMillis, long segmentBytes) {
+        this.dir = dir;
+        this.baseName = baseName;
+        this.syncMillis = syncMillis;
+        this.segmentBytes = Math.min(segmentBytes, Integer.MAX_VALUE); // offset trong chỉ mục là int
+    }
+
+    // Đếm số ván trong chỉ mục của các đoạn cũ và đọc giới hạn đã giữ để cấp tiếp mã ván, rồi mở một đoạn mới
+    void open() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(baseName + ".") && name.endsWith(".idx"));
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                long first;
+                try {
+                    first = Long.parseLong(name.substring(baseName.length() + 1, name.length() - 4));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                segments.add(first);
+                nextId = Math.max(nextId, first + f.length() / 4);
+            }
+        }
+        ids = FileChannel.open(new File(dir, baseName + ".ids").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer mark = ByteBuffer.allocate(8);
+        if (readFully(ids, mark, 0) == 8) {
+            nextId = Math.max(nextId, mark.getLong(0));
+        }
+        reservedUntil = nextId;
+        openSegment(nextId);
+    }
+
+    void start() {
+        running = true;
+        writer = new Thread(this::writeLoop, "replay-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "replay-writer-close"));
+    }
+
+    // moves[0, moveBytes) là các vị trí đã mã hóa varint theo thứ tự đánh. Trả về mã ván, hoặc -1 nếu
+    // không giữ được mã (replay.ids lỗi) và ván không được lưu.
+    long append(int size, boolean oFirst, int result, String playerX, String playerO,
+                byte[] moves, int moveBytes) {
+        byte[] x = playerX.getBytes(StandardCharsets.UTF_8);
+        byte[] o = playerO.getBytes(StandardCharsets.UTF_8);
+        int body = WireProtocol.varintSize(size) + 1
+                + WireProtocol.varintSize(x.length) + x.length
+                + WireProtocol.varintSize(o.length) + o.length
+                + moveBytes;
+        byte[] record = new byte[WireProtocol.varintSize(body) + body];
+        int p = WireProtocol.putVarint(record, 0, body);
+        p = WireProtocol.putVarint(record, p, size);
+        record[p++] = (byte) ((oFirst ? 1 : 0) | (result << 1));
+        p = putBytes(record, p, x);
+        p = putBytes(record, p, o);
+        System.arraycopy(moves, 0, record, p, moveBytes);
+        synchronized (this) {
+            if (nextId >= reservedUntil && !reserve()) {
+                ServerMetrics.replaysDropped.increment();
+                return -1;
+            }
+            long id = nextId++;
+            queue.add(new Pending(id, record));
+            return id;
+        }
+    }
+
+    // Ghi và fsync giới hạn của khối mã tiếp theo. Gọi dưới khóa this.
+    private boolean reserve() {
+        long until = nextId + ID_BLOCK;
+        ByteBuffer mark = ByteBuffer.allocate(8);
+        mark.putLong(0, until);
+        try {
+            while (mark.hasRemaining()) {
+                ids.write(mark, mark.position());
+            }
+            ids.force(false);
+        } catch (IOException e) {
+            System.err.println("Không thể giữ mã ván đấu: " + e.getMessage());
+            return false;
+        }
+        reservedUntil = until;
+        return true;
+    }
+
+    // Đọc một ván đã ghi; null nếu không có (mã sai, chưa ghi xong, hoặc đoạn đã bị xóa/hỏng)
+    Replay read(long id) throws IOException {
+        Long first = segments.floor(id);
+        if (first == null) {
+            return null;
+        }
+        File indexFile = segmentFile(first, ".idx");
+        File dataFile = segmentFile(first, ".dat");
+        long offset;
+        try (FileChannel idx = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer slot = ByteBuffer.allocate(4);
+            if (readFully(idx, slot, (id - first) * 4) < 4) {
+                return null;
+            }
+            offset = slot.getInt(0) & 0xFFFFFFFFL;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try (FileChannel dat = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(3); // độ dài không quá MAX_RECORD: tối đa 3 byte varint
+            int n = readFully(dat, head, offset);
+            int[] pos = {0};
+            int length = readVarint(head.array(), pos, n);
+            if (length <= 0 || length > MAX_RECORD) {
+                return null;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            if (readFully(dat, body, offset + pos[0]) < length) {
+                return null;
+            }
+            return decode(id, body.array());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static Replay decode(long id, byte[] body) {
+        int[] p = {0};
+        int size = readVarint(body, p, body.length);
+        if (size < 3 || p[0] >= body.length) {
+            return null;
+        }
+        int flags = body[p[0]++];
+        String x = readString(body, p);
+        String o = x == null ? null : readString(body, p);
+        if (o == null) {
+            return null;
+        }
+        int[] moves = new int[body.length - p[0]];
+        int count = 0;
+        while (p[0] < body.length) {
+            int position = readVarint(body, p, body.length);
+            if (position < 0 || position >= size * size) {
+                return null;
+            }
+            moves[count++] = position;
+        }
+        return new Replay(id, size, (flags & 1) != 0, (flags >> 1) & 3, x, o,
+                Arrays.copyOf(moves, count));
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        long lastSync = System.currentTimeMillis();
+        boolean unsynced = false;
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(syncMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    long start = System.nanoTime();
+                    write(batch);
+                    ServerMetrics.replayWriteNanos.record(System.nanoTime() - start);
+                    ServerMetrics.replaysStored.add(batch.size());
+                    batch.clear();
+                    unsynced = true;
+                }
+                long now = System.currentTimeMillis();
+                if (unsynced && now - lastSync >= syncMillis) {
+                    sync();
+                    lastSync = now;
+                    unsynced = false;
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (IOException e) {
+                // Mã của các ván này đã được gửi đi: chúng thành khoảng trống, không bị cấp lại
+                System.err.println("Lỗi ghi lưu trữ ván đấu, mất " + batch.size() + " ván (mã "
+                        + batch.get(0).id + "-" + batch.get(batch.size() - 1).id + "): " + e.getMessage());
+                ServerMetrics.replaysDropped.add(batch.size());
+                batch.clear();
+                broken = true;
+            }
+        }
+        try {
+            sync();
+        } catch (IOException e) {
+            System.err.println("Lỗi đóng lưu trữ ván đấu: " + e.getMessage());
+        }
+    }
+
+    // Dữ liệu của cả loạt ghi trước, chỉ mục ghi sau: chỉ mục không bao giờ trỏ tới bản ghi chưa có
+    private void write(List<Pending> batch) throws IOException {
+        int from = 0;
+        while (from < batch.size()) {
+            if (broken || (dataSize > 0 && dataSize + batch.get(from).record.length > segmentBytes)) {
+                if (!broken) {
+                    sync();
+                }
+                data.close();
+                index.close();
+                openSegment(batch.get(from).id);
+                broken = false;
+            }
+            int to = from;
+            long size = dataSize;
+            while (to < batch.size() && (to == from || size + batch.get(to).record.length <= segmentBytes)) {
+                size += batch.get(to).record.length;
+                to++;
+            }
+            ByteBuffer records = ByteBuffer.allocate((int) (size - dataSize));
+            ByteBuffer offsets = ByteBuffer.allocate((to - from) * 4);
+            long offset = dataSize;
+            for (int i = from; i < to; i++) {
+                byte[] record = batch.get(i).record;
+                offsets.putInt((int) offset);
+                records.put(record);
+                offset += record.length;
+            }
+            records.flip();
+            offsets.flip();
+            writeFully(data, records);
+            writeFully(index, offsets);
+            ServerMetrics.replayBytes.add(size - dataSize + (to - from) * 4L);
+            dataSize = size;
+            from = to;
+        }
+    }
+
+    private void sync() throws IOException {
+        data.force(false);
+        index.force(false);
+    }
+
+    private void openSegment(long firstId) throws IOException {
+        // Đoạn trùng mã đầu chỉ có thể là đoạn chưa có ván nào trong chỉ mục nên được ghi đè
+        data = FileChannel.open(segmentFile(firstId, ".dat").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        index = FileChannel.open(segmentFile(firstId, ".idx").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        dataSize = 0;
+        segments.add(firstId);
+    }
+
+    // Khi tắt máy chủ: để luồng ghi xả nốt hàng đợi và fsync (không interrupt, xem LeaderboardJournal)
+    void close() {
+        running = false;
+        if (writer != null) {
+            try {
+                writer.join(syncMillis + 5000);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private File segmentFile(long firstId, String suffix) {
+        return new File(dir, baseName + "." + firstId + suffix);
+    }
+
+    private static int putBytes(byte[] buf, int p, byte[] bytes) {
+        p = WireProtocol.putVarint(buf, p, bytes.length);
+        System.arraycopy(bytes, 0, buf, p, bytes.length);
+        return p + bytes.length;
+    }
+
+    // Varint trong buf[p[0], end), tiến p[0] qua nó; -1 nếu bị cắt cụt hoặc quá dài
+    private static int readVarint(byte[] buf, int[] p, int end) {
+        int value = 0;
+        for (int shift = 0; shift < 35 && p[0] < end; shift += 7) {
+            int b = buf[p[0]++] & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static String readString(byte[] buf, int[] p) {
+        int length = readVarint(buf, p, buf.length);
+        if (length < 0 || length > buf.length - p[0]) {
+            return null;
+        }
+        String s = new String(buf, p[0], length, StandardCharsets.UTF_8);
+        p[0] += length;
+        return s;
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -1,11 +1,27 @@
 package main;
 
+import java.util.Base64;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Room {
     private final String name;
     private final int size;
-    private Game game;
-    private ClientHandler host;
-    private ClientHandler guest;
+    // Mọi thao tác trên game (DANH, CHAT, CHOI_LAI, bắt đầu/kết thúc) chạy tuần tự qua hộp thư này
+    private final RoomMailbox mailbox = new RoomMailbox(TicTacToeServer.ROOM_EXECUTOR);
+    private volatile Game game; // chỉ thay đổi trong mailbox; gameInProgress() đọc từ luồng khác
+    // Ghế ngồi được thay đổi dưới khóa lobby nhưng được đọc từ các luồng khác
+    private volatile ClientHandler host;
+    private volatile ClientHandler guest;
+    // Người xem (XEM_PHONG) chỉ được thêm, bớt và duyệt trong hộp thư fanout, chạy trên pool riêng: phát
+    // tin cho nhiều người xem không làm chậm hộp thư của phòng, tức là không làm chậm hai người chơi.
+    private final RoomMailbox fanout = new RoomMailbox(TicTacToeServer.FANOUT_EXECUTOR, ServerMetrics.fanoutTaskNanos);
+    private final Set<ClientHandler> spectators = new LinkedHashSet<>();
+    private boolean spectatorsClosed; // trong fanout: phòng đã bị xóa
+    // Số người xem, tính cả người đã xin xem nhưng chưa được fanout thêm vào danh sách; hộp thư của
+    // phòng đọc số này để bỏ qua việc chuẩn bị tin khi không có ai xem
+    private final AtomicInteger watchers = new AtomicInteger();
 
     public Room(String name, ClientHandler host) {
         this(name, host, 3);
@@ -33,15 +49,34 @@ public class Room {
         return host == null && guest == null;
     }
 
+    // Đưa một tác vụ vào hộp thư của phòng
+    public void execute(Runnable task) {
+        mailbox.execute(task);
+    }
+
     public void addPlayer(ClientHandler player) {
         if (host == null) {
             host = player;
         } else if (guest == null) {
             guest = player;
-            startGame();
+            execute(this::startGame);
         }
     }
 
+    // Kết nối mới tiếp tục phiên của một kết nối đã rớt (gọi dưới khóa lobby)
+    public void replacePlayer(ClientHandler old, ClientHandler player) {
+        if (old == host) {
+            host = player;
+        } else if (old == guest) {
+            guest = player;
+        }
+    }
+
+    public boolean gameInProgress() {
+        Game g = game;
+        return g != null && !g.isEnded();
+    }
+
     public void removePlayer(ClientHandler player) {
         if (player == host) {
             host = null;
@@ -49,15 +84,122 @@ public class Room {
             guest = null;
         }
 
-        if (game != null) {
-            game.handlePlayerDisconnect(player);
-            game = null;
+        execute(() -> {
+            if (game != null) {
+                game.handlePlayerDisconnect(player);
+                game = null;
+            }
+        });
+    }
+
+    // Người chơi thật đã rời đi thì máy cũng rời phòng (gọi dưới khóa lobby)
+    public void removeBots() {
+        for (ClientHandler player : new ClientHandler[] {host, guest}) {
+            if (player != null && player.isBot()) {
+                removePlayer(player);
+                player.disconnect();
+            }
+        }
+    }
+
+    // Ảnh chụp ván cho người xem: được thêm trong hộp thư của phòng rồi chuyển sang fanout, nên người
+    // xem nhận ảnh chụp trước mọi nước đi sau đó và không bỏ sót nước nào
+    public void addSpectator(ClientHandler spectator) {
+        watchers.incrementAndGet();
+        execute(() -> {
+            String view = spectatorView();
+            fanout.execute(() -> {
+                if (spectatorsClosed) {
+                    watchers.decrementAndGet();
+                    spectator.sendMessage("VE_TRANG_CHU");
+                } else if (spectators.add(spectator)) {
+                    spectator.sendMessage(view);
+                } else {
+                    watchers.decrementAndGet();
+                }
+            });
+        });
+    }
+
+    // Đi qua hộp thư của phòng như addSpectator để giữ đúng thứ tự với lần thêm trước đó
+    public void removeSpectator(ClientHandler spectator) {
+        execute(() -> fanout.execute(() -> {
+            if (spectators.remove(spectator)) {
+                watchers.decrementAndGet();
+            }
+        }));
+    }
+
+    public boolean hasSpectators() {
+        return watchers.get() > 0;
+    }
+
+    public int spectatorCount() {
+        return watchers.get();
+    }
+
+    // DANG_XEM|tên|kích thước|bàn cờ (ảnh chụp BitBoard mã hóa base64). Gọi trong hộp thư của phòng.
+    String spectatorView() {
+        Game g = game;
+        byte[] board = g != null ? g.exportBoard() : new BitBoard(size).toSnapshot();
+        return "DANG_XEM|" + name + "|" + size + "|" + Base64.getEncoder().encodeToString(board);
+    }
+
+    // Gọi trong hộp thư của phòng. Tin được mã hóa một lần (WireProtocol.Shared) và cùng một mảng byte
+    // được đưa vào hàng đợi gửi của mọi người xem. Người xem có hàng đợi đầy bị dừng xem ngay thay vì
+    // để tin dồn lại.
+    void broadcastToSpectators(String message) {
+        if (watchers.get() == 0) {
+            return;
+        }
+        fanout.execute(() -> {
+            if (spectators.isEmpty()) {
+                return;
+            }
+            WireProtocol.Shared shared = new WireProtocol.Shared(message);
+            spectators.removeIf(spectator -> {
+                if (spectator.sendShared(shared)) {
+                    return false;
+                }
+                watchers.decrementAndGet();
+                dropSpectator(spectator);
+                return true;
+            });
+        });
+    }
+
+    private void dropSpectator(ClientHandler spectator) {
+        if (spectator.isClosed()) {
+            return;
+        }
+        ServerMetrics.spectatorsDropped.increment();
+        if (spectator.getWatching() == this) {
+            spectator.setWatching(null);
         }
+        spectator.sendMessage("LOI|Kết nối quá chậm, đã dừng xem phòng");
+        spectator.sendMessage("VE_TRANG_CHU");
+    }
+
+    // Phòng đã bị xóa: mọi người xem về màn hình chính (gọi dưới khóa lobby)
+    public void closeSpectators() {
+        execute(() -> fanout.execute(() -> {
+            spectatorsClosed = true;
+            for (ClientHandler spectator : spectators) {
+                if (spectator.getWatching() == this) {
+                    spectator.setWatching(null);
+                }
+                spectator.sendMessage("VE_TRANG_CHU");
+            }
+            watchers.addAndGet(-spectators.size());
+            spectators.clear();
+        }));
     }
 
     private void startGame() {
-        if (host != null && guest != null) {
-            game = new Game(host, guest, size);
+        ClientHandler h = host;
+        ClientHandler g = guest;
+        if (h != null && g != null) {
+            game = new Game(this, h, g, size);
             game.start();
         }
     }
@@ -72,16 +214,26 @@ public class Room {
         }
     }
 
+    // Người ngồi ghế đối diện player, null nếu ghế đó trống hoặc player không ngồi trong phòng
+    public ClientHandler opponentOf(ClientHandler player) {
+        if (player == host) {
+            return guest;
+        }
+        return player == guest ? host : null;
+    }
+
     public boolean hasPlayer(ClientHandler player) {
         return player == host || player == guest;
     }
 
     public void broadcastToPlayers(String message) {
-        if (host != null) {
-            host.sendMessage(message);
+        ClientHandler h = host;
+        ClientHandler g = guest;
+        if (h != null) {
+            h.sendMessage(message);
         }
-        if (guest != null) {
-            guest.sendMessage(message);
+        if (g != null) {
+            g.sendMessage(message);
         }
     }
-}
\ No newline at end of file
+}
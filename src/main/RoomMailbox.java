@@ -0,0 +1,64 @@
+package main;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Hộp thư tuần tự của một phòng: các tác vụ được chạy lần lượt, không bao giờ song song,
+// nhưng nhiều phòng khác nhau vẫn chạy đồng thời trên cùng một pool luồng. Tin nhắn gửi đi trong
+// cùng một tác vụ được gộp thành một lần ghi cho mỗi client.
+//
+// Mỗi lượt chạy tối đa DRAIN_LIMIT tác vụ rồi nhường luồng: còn việc thì hộp thư xếp lại vào cuối hàng
+// của pool, nên một phòng bận không giữ một luồng dùng chung mãi trong khi các phòng khác phải chờ.
+class RoomMailbox implements Executor {
+    private static final int DRAIN_LIMIT = 64;
+
+    private final Executor executor;
+    private final LatencyHistogram taskNanos;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    RoomMailbox(Executor executor) {
+        this(executor, ServerMetrics.roomTaskNanos);
+    }
+
+    RoomMailbox(Executor executor, LatencyHistogram taskNanos) {
+        this.executor = executor;
+        this.taskNanos = taskNanos;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            for (int n = 0; n < DRAIN_LIMIT && (task = tasks.poll()) != null; n++) {
+                long start = System.nanoTime();
+                try {
+                    ClientHandler.runBatched(task);
+                } catch (RuntimeException ex) {
+                    System.err.println("Lỗi xử lý tác vụ phòng: " + ex.getMessage());
+                }
+                taskNanos.record(System.nanoTime() - start);
+            }
+        } finally {
+            scheduled.set(false);
+            // Còn tác vụ sau lượt này, hoặc một tác vụ được thêm vào sau poll() cuối cùng nhưng trước khi cờ
+            // được hạ: xếp lại lượt sau
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package main;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Số liệu vận hành của server: bộ đếm và histogram độ trễ (ns) được ghi ngay trên đường nóng,
+// còn các giá trị tức thời (kết nối, phòng theo kích thước, độ sâu hàng đợi gửi) được tính lúc đọc.
+//
+// Hai cách xem:
+//  - một dòng log mỗi -Dmetrics.logSeconds giây (mặc định 10, 0 để tắt) với số liệu của riêng chu kỳ đó
+//  - endpoint HTTP http://127.0.0.1:<port>/metrics khi chạy với -Dmetrics.port=<port>, trả về giá trị
+//    cộng dồn từ lúc khởi động theo định dạng văn bản của Prometheus
+//
+// Độ trễ lệnh chỉ tính phần xử lý trên luồng đọc (nhận dạng lệnh và đẩy vào hộp thư phòng); thời gian
+// chạy thật của nước đi nằm ở roomTask.
+final class ServerMetrics {
+    private static final int LOG_SECONDS = Integer.getInteger("metrics.logSeconds", 10);
+    private static final int HTTP_PORT = Integer.getInteger("metrics.port", 0);
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    static final LatencyHistogram[] commandNanos = new LatencyHistogram[Command.values().length];
+    static final LatencyHistogram roomTaskNanos = new LatencyHistogram();
+    static final LatencyHistogram lobbyTickNanos = new LatencyHistogram();
+    static final LongAdder lobbyRecipients = new LongAdder();
+    static final LatencyHistogram journalWriteNanos = new LatencyHistogram();
+    static final LatencyHistogram journalSyncNanos = new LatencyHistogram();
+    static final LatencyHistogram compactionNanos = new LatencyHistogram();
+    static final LatencyHistogram matchWaitNanos = new LatencyHistogram();
+    static final LatencyHistogram botMoveNanos = new LatencyHistogram();
+    static final LatencyHistogram fanoutTaskNanos = new LatencyHistogram();
+    static final LatencyHistogram replayWriteNanos = new LatencyHistogram();
+
+    static final LongAdder moves = new LongAdder();
+    static final LongAdder gamesStarted = new LongAdder();
+    static final AtomicInteger activeGames = new AtomicInteger();
+    static final LongAdder lobbyDropped = new LongAdder();
+    static final LongAdder slowDisconnects = new LongAdder();
+    static final LongAdder spectatorsDropped = new LongAdder();
+    static final LongAdder replaysStored = new LongAdder();
+    static final LongAdder replaysDropped = new LongAdder(); // ván không được lưu: ghi lỗi sau khi đã gửi MA_VAN, hoặc không giữ được mã
+    static final LongAdder replayBytes = new LongAdder();
+    static final LongAdder leaderboardPendingDropped = new LongAdder(); // kết quả bị bỏ vì hàng chờ lúc nạp đã đầy
+    static final LongAdder journalErrors = new LongAdder(); // lỗi của luồng ghi nhật ký leaderboard (ghi, fsync, nén)
+
+    static {
+        for (int i = 0; i < commandNanos.length; i++) {
+            commandNanos[i] = new LatencyHistogram();
+        }
+    }
+
+    private static Collection<? extends ClientHandler> clients;
+    private static Map<String, Room> rooms;
+    private static volatile double movesPerSecond;
+    private static long lastMoves;
+
+    // Bản sao của lần log trước để tính số liệu theo chu kỳ
+    private static LatencyHistogram[] lastCommands;
+    private static LatencyHistogram lastRoomTask;
+    private static LatencyHistogram lastLobbyTick;
+    private static LatencyHistogram lastJournalSync;
+    private static LatencyHistogram lastMatchWait;
+    private static LatencyHistogram lastBotMove;
+    private static long lastLogMoves;
+    private static long lastLogNanos;
+
+    private ServerMetrics() {}
+
+    static void recordCommand(Command command, long startNanos) {
+        commandNanos[command.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    static void start(Collection<? extends ClientHandler> clients, Map<String, Room> rooms) {
+        ServerMetrics.clients = clients;
+        ServerMetrics.rooms = rooms;
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "server-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(ServerMetrics::sampleRates, 1, 1, TimeUnit.SECONDS);
+        if (LOG_SECONDS > 0) {
+            snapshotForLog();
+            scheduler.scheduleAtFixedRate(ServerMetrics::logLine, LOG_SECONDS, LOG_SECONDS, TimeUnit.SECONDS);
+        }
+        if (HTTP_PORT > 0) {
+            try {
+                startHttp(HTTP_PORT);
+                System.out.println("Số liệu server: http://127.0.0.1:" + HTTP_PORT + "/metrics");
+            } catch (IOException e) {
+                System.err.println("Không mở được cổng số liệu " + HTTP_PORT + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void sampleRates() {
+        long now = moves.sum();
+        movesPerSecond = now - lastMoves;
+        lastMoves = now;
+    }
+
+    private static void snapshotForLog() {
+        lastCommands = new LatencyHistogram[commandNanos.length];
+        for (int i = 0; i < commandNanos.length; i++) {
+            lastCommands[i] = commandNanos[i].copy();
+        }
+        lastRoomTask = roomTaskNanos.copy();
+        lastLobbyTick = lobbyTickNanos.copy();
+        lastJournalSync = journalSyncNanos.copy();
+        lastMatchWait = matchWaitNanos.copy();
+        lastBotMove = botMoveNanos.copy();
+        lastLogMoves = moves.sum();
+        lastLogNanos = System.nanoTime();
+    }
+
+    // Một dòng log cho chu kỳ vừa qua: nước đi/giây, phân vị độ trễ (µs) của các lệnh có xuất hiện
+    private static void logLine() {
+        long elapsed = Math.max(1, System.nanoTime() - lastLogNanos);
+        long movesNow = moves.sum();
+        StringBuilder sb = new StringBuilder("Số liệu: kết nối=").append(clients.size())
+                .append(", luồng đọc=").append(ClientHandler.activeReaderCount())
+                .append(", luồng=").append(ManagementFactory.getThreadMXBean().getThreadCount())
+                .append(", phòng=").append(rooms.size());
+        for (Map.Entry<Integer, Integer> e : roomsBySize().entrySet()) {
+            sb.append(' ').append(e.getKey()).append('x').append(e.getKey()).append(':').append(e.getValue());
+        }
+        for (Map.Entry<Integer, Integer> e : TicTacToeServer.matchmaker.waitingBySize().entrySet()) {
+            if (e.getValue() > 0) {
+                sb.append(", chờ ghép ").append(e.getKey()).append('x').append(e.getKey()).append('=').append(e.getValue());
+            }
+        }
+        sb.append(", ván đang chơi=").append(activeGames.get())
+                .append(", người xem=").append(spectatorCount())
+                .append(", nước/s=").append(String.format("%.1f", (movesNow - lastLogMoves) * 1e9 / elapsed));
+        long[] depth = outboundDepth();
+        sb.append(", hàng đợi gửi max/tổng=").append(depth[0]).append('/').append(depth[1]);
+        for (Command c : Command.values()) {
+            appendInterval(sb, c.name(), commandNanos[c.ordinal()].since(lastCommands[c.ordinal()]));
+        }
+        appendInterval(sb, "tác vụ phòng", roomTaskNanos.since(lastRoomTask));
+        appendInterval(sb, "tick lobby", lobbyTickNanos.since(lastLobbyTick));
+        appendInterval(sb, "fsync", journalSyncNanos.since(lastJournalSync));
+        appendInterval(sb, "chờ ghép", matchWaitNanos.since(lastMatchWait));
+        appendInterval(sb, "máy nghĩ", botMoveNanos.since(lastBotMove));
+        System.out.println(sb);
+        snapshotForLog();
+    }
+
+    private static void appendInterval(StringBuilder sb, String name, LatencyHistogram h) {
+        if (h.count() == 0) {
+            return;
+        }
+        sb.append(", ").append(name).append(" p50/p99/max=")
+                .append(h.percentile(0.5) / 1000).append('/')
+                .append(h.percentile(0.99) / 1000).append('/')
+                .append(h.max() / 1000).append("µs");
+    }
+
+    private static Map<Integer, Integer> roomsBySize() {
+        Map<Integer, Integer> bySize = new TreeMap<>();
+        for (Room room : rooms.values()) {
+            bySize.merge(room.getSize(), 1, Integer::sum);
+        }
+        return bySize;
+    }
+
+    private static int spectatorCount() {
+        int total = 0;
+        for (Room room : rooms.values()) {
+            total += room.spectatorCount();
+        }
+        return total;
+    }
+
+    // {độ sâu lớn nhất, tổng} của các hàng đợi gửi
+    private static long[] outboundDepth() {
+        long max = 0;
+        long total = 0;
+        for (ClientHandler client : clients) {
+            int depth = client.outboundDepth();
+            max = Math.max(max, depth);
+            total += depth;
+        }
+        return new long[] {max, total};
+    }
+
+    // Chỉ lắng nghe trên loopback: số liệu không dành cho client của trò chơi
+    private static void startHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.setExecutor(null); // dùng luồng của chính HttpServer
+        server.start();
+    }
+
+    static String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        gauge(sb, "connections", clients.size());
+        gauge(sb, "reader_threads", ClientHandler.activeReaderCount());
+        gauge(sb, "jvm_threads", ManagementFactory.getThreadMXBean().getThreadCount());
+        for (Map.Entry<Integer, Integer> e : roomsBySize().entrySet()) {
+            sb.append("rooms{size=\"").append(e.getKey()).append("\"} ").append(e.getValue()).append('\n');
+        }
+        for (Map.Entry<Integer, Integer> e : TicTacToeServer.matchmaker.waitingBySize().entrySet()) {
+            sb.append("matchmaking_waiting{size=\"").append(e.getKey()).append("\"} ").append(e.getValue()).append('\n');
+        }
+        gauge(sb, "games_active", activeGames.get());
+        gauge(sb, "spectators", spectatorCount());
+        gauge(sb, "sessions_parked", TicTacToeServer.sessions.size());
+        gauge(sb, "games_started_total", gamesStarted.sum());
+        gauge(sb, "moves_total", moves.sum());
+        sb.append("moves_per_second ").append(movesPerSecond).append('\n');
+        long[] depth = outboundDepth();
+        gauge(sb, "outbound_queue_depth_max", depth[0]);
+        gauge(sb, "outbound_queue_depth_total", depth[1]);
+        gauge(sb, "lobby_updates_dropped_total", lobbyDropped.sum());
+        gauge(sb, "slow_client_disconnects_total", slowDisconnects.sum());
+        gauge(sb, "spectators_dropped_total", spectatorsDropped.sum());
+        gauge(sb, "leaderboard_ready", LeaderboardManager.isReady() ? 1 : 0);
+        gauge(sb, "leaderboard_load_failed", LeaderboardManager.isLoadFailed() ? 1 : 0);
+        gauge(sb, "leaderboard_pending_dropped_total", leaderboardPendingDropped.sum());
+        gauge(sb, "leaderboard_journal_errors_total", journalErrors.sum());
+        gauge(sb, "replays_stored_total", replaysStored.sum());
+        gauge(sb, "replays_dropped_total", replaysDropped.sum());
+        gauge(sb, "replay_bytes_written_total", replayBytes.sum());
+        gauge(sb, "lobby_subscribers", TicTacToeServer.lobby.subscriberCount());
+        gauge(sb, "lobby_recipients_total", lobbyRecipients.sum());
+        for (Command c : Command.values()) {
+            summary(sb, "command_seconds", "command=\"" + c.name() + "\"", commandNanos[c.ordinal()]);
+        }
+        summary(sb, "room_task_seconds", null, roomTaskNanos);
+        summary(sb, "lobby_tick_seconds", null, lobbyTickNanos);
+        summary(sb, "journal_write_seconds", null, journalWriteNanos);
+        summary(sb, "journal_sync_seconds", null, journalSyncNanos);
+        summary(sb, "leaderboard_compaction_seconds", null, compactionNanos);
+        summary(sb, "matchmaking_wait_seconds", null, matchWaitNanos);
+        summary(sb, "bot_move_seconds", null, botMoveNanos);
+        summary(sb, "spectator_fanout_seconds", null, fanoutTaskNanos);
+        summary(sb, "replay_write_seconds", null, replayWriteNanos);
+        return sb.toString();
+    }
+
+    private static void gauge(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String labels, LatencyHistogram h) {
+        String prefix = labels == null ? "" : labels + ",";
+        for (double q : QUANTILES) {
+            sb.append(name).append('{').append(prefix).append("quantile=\"").append(q).append("\"} ")
+                    .append(h.percentile(q) / 1e9).append('\n');
+        }
+        String suffix = labels == null ? "" : "{" + labels + "}";
+        sb.append(name).append("_max").append(suffix).append(' ').append(h.max() / 1e9).append('\n');
+        sb.append(name).append("_sum").append(suffix).append(' ').append(h.mean() * h.count() / 1e9).append('\n');
+        sb.append(name).append("_count").append(suffix).append(' ').append(h.count()).append('\n');
+    }
+}
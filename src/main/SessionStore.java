@@ -0,0 +1,130 @@
+package main;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Ghế của người chơi rớt mạng giữa ván được giữ lại trong một khoảng ân hạn.
+//
+// Khi vào phòng mỗi người chơi nhận một mã phiên (PHIEN|mã). Nếu kết nối đứt trong lúc ván đang
+// diễn ra, ghế và ván cờ được "đỗ" ở đây thay vì bị hủy; client kết nối lại và gửi TIEP_TUC|mã
+// trong thời hạn để lấy lại ghế. Hết hạn thì ghế bị giải phóng như một lần thoát bình thường.
+//
+// Bộ nhớ có giới hạn: tối đa capacity phiên được đỗ cùng lúc, quá số đó phiên đỗ lâu nhất bị trả về
+// trước hạn. Mọi phiên có cùng thời gian ân hạn nên thứ tự đỗ cũng là thứ tự hết hạn, và việc quét
+// chỉ cần nhìn đầu danh sách.
+class SessionStore {
+    interface Expiry {
+        void expired(ClientHandler client, Room room);
+    }
+
+    static final class Parked {
+        final ClientHandler client;
+        final Room room;
+        final long deadline;
+
+        Parked(ClientHandler client, Room room, long deadline) {
+            this.client = client;
+            this.room = room;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long graceMillis;
+    private final int capacity;
+    private final Expiry expiry;
+    private final SecureRandom random = new SecureRandom();
+    private final LinkedHashMap<String, Parked> parked = new LinkedHashMap<>();
+
+    SessionStore(long graceMillis, int capacity, Expiry expiry) {
+        this.graceMillis = graceMillis;
+        this.capacity = capacity;
+        this.expiry = expiry;
+    }
+
+    void start() {
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-sweeper");
+            t.setDaemon(true);
+            return t;
+        }).scheduleAtFixedRate(this::sweep, 1, 1, TimeUnit.SECONDS);
+    }
+
+    long graceSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(graceMillis);
+    }
+
+    // 128 bit ngẫu nhiên dạng hex: không đoán được nên không ai chiếm được ghế của người khác
+    String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    void park(String token, ClientHandler client, Room room) {
+        Parked evicted = null;
+        synchronized (this) {
+            if (parked.size() >= capacity) {
+                Iterator<Parked> oldest = parked.values().iterator();
+                evicted = oldest.next();
+                oldest.remove();
+            }
+            parked.put(token, new Parked(client, room, System.currentTimeMillis() + graceMillis));
+        }
+        if (evicted != null) {
+            expiry.expired(evicted.client, evicted.room);
+        }
+    }
+
+    // Lấy phiên ra để tiếp tục; null nếu mã không tồn tại hoặc đã hết hạn. Phiên quá hạn mà sweep chưa
+    // tới được để lại cho sweep giải phóng ghế.
+    synchronized Parked claim(String token) {
+        Parked p = parked.get(token);
+        if (p == null || p.deadline <= System.currentTimeMillis()) {
+            return null;
+        }
+        return parked.remove(token);
+    }
+
+    // Bỏ phiên đang đỗ mà không gọi expiry (người gọi tự giải phóng ghế); true nếu phiên còn đỗ
+    synchronized boolean discard(String token) {
+        return token != null && parked.remove(token) != null;
+    }
+
+    synchronized int size() {
+        return parked.size();
+    }
+
+    private void sweep() {
+        List<Parked> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Parked>> it = parked.entrySet().iterator();
+            while (it.hasNext()) {
+                Parked p = it.next().getValue();
+                if (p.deadline > now) {
+                    break;
+                }
+                expired.add(p);
+                it.remove();
+            }
+        }
+        // Ngoài khóa: expiry lấy khóa lobby
+        for (Parked p : expired) {
+            try {
+                expiry.expired(p.client, p.room);
+            } catch (RuntimeException e) {
+                System.err.println("Lỗi giải phóng phiên hết hạn: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -11,17 +11,27 @@ import javax.sound.sampled.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 
 public class TicTacToeClient extends JFrame {
     private JButton[] buttons;
     private JLabel statusLabel;
     private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private OutputStream out;
+    private volatile WireProtocol.Reader in;
+    // Đã thỏa thuận khung nhị phân với máy chủ (xem WireProtocol); tắt bằng -Dclient.binary=false
+    private volatile boolean binary;
+    private static final boolean TRY_BINARY = !"false".equals(System.getProperty("client.binary"));
     private String playerSymbol;
     private boolean myTurn;
-    private static final String SERVER_ADDRESS = "localhost";
-    private static final int SERVER_PORT = 5001;
+    private static final String SERVER_ADDRESS = System.getProperty("client.host", "localhost");
+    private static final int SERVER_PORT = Integer.getInteger("client.port", 5001);
+    // Máy chủ cụm có thể chuyển client sang node giữ phòng (CHUYEN_MAY); giới hạn số lần chuyển
+    // liên tiếp phòng khi các node tạm thời chưa thống nhất ai giữ phòng
+    private static final int MAX_REDIRECTS = 3;
+    private String serverHost = SERVER_ADDRESS;
+    private int serverPort = SERVER_PORT;
+    private int redirects;
 
     private JPanel homePanel;
     private JPanel gamePanel;
@@ -31,6 +41,7 @@ public class TicTacToeClient extends JFrame {
 
     public TicTacToeClient() {
         setTitle("Cờ Ca-rô");
+        nickname = askNickname();
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setupHomeScreen();
         setSize(520, 640);
@@ -55,7 +66,22 @@ public class TicTacToeClient extends JFrame {
     private JTextArea chatArea;
     private JTextField chatInput;
     private int boardSize = 3;
+    private long lobbyVersion = 0; // phiên bản danh sách phòng đã áp dụng
     private volatile boolean intentionalDisconnect = false;
+    // Mã phiên máy chủ cấp khi vào phòng (PHIEN|mã); rớt mạng giữa ván thì dùng để TIEP_TUC
+    private volatile String sessionToken;
+    // Đang trong hàng chờ ghép trận (DANG_GHEP) cho tới khi ván bắt đầu hoặc hủy
+    private boolean matching;
+    private boolean spectating; // đang xem phòng của người khác (XEM_PHONG), bàn cờ chỉ để xem
+    private String lastGameId; // mã ván vừa chơi (MA_VAN), gợi ý khi bấm "Xem lại"
+    // Biệt danh gửi bằng DANG_NHAP sau mỗi lần kết nối (kể cả kết nối lại, chuyển máy); null = chơi như khách
+    private String nickname;
+    // Ván đang xem lại (PHAT_LAI): các nước nhận dần qua PHAT_LAI_NUOC rồi được đánh lại theo nhịp timer
+    private java.util.List<Integer> replayMoves;
+    private String[] replayHeader;
+    private javax.swing.Timer replayTimer;
+    private JButton matchButton;
+    private static final long RESUME_MILLIS = 30_000;
 
     // Theming - Light modern palette (no dark mode)
     private final Color lightBg = new Color(244, 247, 255);
@@ -105,14 +131,26 @@ public class TicTacToeClient extends JFrame {
         JButton joinRoomButton = themedButton("Vào phòng");
         
         JButton refreshButton = themedButton("Làm mới");
+
+        matchButton = themedButton("Ghép trận");
+
+        JButton botButton = themedButton("Chơi với máy");
+
+        JButton watchButton = themedButton("Xem phòng");
+
+        JButton replayButton = themedButton("Xem lại");
         
         JButton exitButton = themedButton("Thoát");
         
         JButton leaderboardButton = new JButton("Bảng xếp hạng");
         styleSecondaryButton(leaderboardButton);
 
+        buttonPanel.add(matchButton);
+        buttonPanel.add(botButton);
         buttonPanel.add(createRoomButton);
         buttonPanel.add(joinRoomButton);
+        buttonPanel.add(watchButton);
+        buttonPanel.add(replayButton);
         buttonPanel.add(refreshButton);
         buttonPanel.add(leaderboardButton);
         buttonPanel.add(exitButton);
@@ -125,8 +163,12 @@ public class TicTacToeClient extends JFrame {
         homePanel.add(buttonPanel, BorderLayout.SOUTH);
 
         // Thêm sự kiện cho các nút
+        matchButton.addActionListener(e -> toggleMatchmaking());
+        botButton.addActionListener(e -> playAgainstBot());
         createRoomButton.addActionListener(e -> createRoom());
         joinRoomButton.addActionListener(e -> joinSelectedRoom());
+        watchButton.addActionListener(e -> watchRoom());
+        replayButton.addActionListener(e -> requestReplay());
         refreshButton.addActionListener(e -> refreshRoomList());
         leaderboardButton.addActionListener(e -> requestLeaderboard());
         exitButton.addActionListener(e -> System.exit(0));
@@ -246,15 +288,28 @@ public class TicTacToeClient extends JFrame {
 
 
 
-    private void listenForServerMessages() {
+    private void listenForServerMessages(WireProtocol.Reader reader, boolean binaryMode) {
         try {
-            String message;
-            while ((message = in.readLine()) != null) {
-                String finalMessage = message;
-                SwingUtilities.invokeLater(() -> processServerMessage(finalMessage));
+            if (binaryMode) {
+                WireProtocol.Frame frame;
+                while ((frame = reader.readFrame()) != null) {
+                    processServerFrame(frame);
+                }
+            } else {
+                String message;
+                while ((message = reader.readLine()) != null) {
+                    String finalMessage = message;
+                    SwingUtilities.invokeLater(() -> processServerMessage(finalMessage));
+                }
             }
-        } catch (IOException e) {
-            if (!intentionalDisconnect) {
+        } catch (IOException | RuntimeException e) {
+            // reader != in: kết nối cũ bị đóng sau khi đã chuyển sang kết nối mới
+            if (!intentionalDisconnect && reader == in) {
+                String token = sessionToken;
+                if (token != null) {
+                    resumeSession(token);
+                    return;
+                }
                 SwingUtilities.invokeLater(() -> {
                     JOptionPane.showMessageDialog(this,
                             "Mất kết nối đến máy chủ!\nLỗi: " + e.getMessage(),
@@ -266,58 +321,83 @@ public class TicTacToeClient extends JFrame {
         }
     }
 
+    // Giải mã trên luồng mạng, chỉ đẩy phần cập nhật giao diện sang luồng Swing
+    private void processServerFrame(WireProtocol.Frame frame) {
+        switch (frame.opcode()) {
+            case WireProtocol.DANH: {
+                int position = frame.readVarint();
+                String symbol = WireProtocol.symbol(frame.readByte());
+                SwingUtilities.invokeLater(() -> updateBoard(position, symbol));
+                break;
+            }
+            case WireProtocol.LUOT_CUA_BAN:
+                SwingUtilities.invokeLater(this::onMyTurn);
+                break;
+            case WireProtocol.LUOT_DOI_THU:
+                SwingUtilities.invokeLater(this::onOpponentTurn);
+                break;
+            case WireProtocol.KET_THUC: {
+                String result = WireProtocol.result(frame.readByte());
+                SwingUtilities.invokeLater(() -> handleGameEnd(result));
+                break;
+            }
+            case WireProtocol.HIGHLIGHT: {
+                int count = frame.readVarint();
+                java.util.List<Integer> positions = new java.util.ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    positions.add(frame.readVarint());
+                }
+                SwingUtilities.invokeLater(() -> highlightWinningLine(positions));
+                break;
+            }
+            case WireProtocol.BAT_DAU: {
+                String symbol = WireProtocol.symbol(frame.readByte());
+                int size = frame.readVarint();
+                SwingUtilities.invokeLater(() -> handleGameStart(symbol, size));
+                break;
+            }
+            case WireProtocol.TEXT: {
+                String message = frame.readText();
+                SwingUtilities.invokeLater(() -> processServerMessage(message));
+                break;
+            }
+            default:
+                break; // opcode mới hơn phiên bản client này: bỏ qua
+        }
+    }
+
     private void processServerMessage(String message) {
         if (message.startsWith("DANH_SACH_PHONG|")) {
-            String[] rooms = message.substring("DANH_SACH_PHONG|".length()).split("\\|");
-            SwingUtilities.invokeLater(() -> {
-                roomListModel.clear();
-                for (String room : rooms) {
-                    if (!room.trim().isEmpty()) {
-                        roomListModel.addElement(room);
-                    }
+            // format: DANH_SACH_PHONG|version|room|room|...
+            String[] parts = message.split("\\|");
+            try {
+                lobbyVersion = Long.parseLong(parts[1]);
+            } catch (NumberFormatException ignored) {}
+            roomListModel.clear();
+            for (int i = 2; i < parts.length; i++) {
+                if (!parts[i].trim().isEmpty()) {
+                    roomListModel.addElement(parts[i]);
                 }
-            });
+            }
+        } else if (message.startsWith("CAP_NHAT_PHONG|")) {
+            applyRoomListDelta(message);
         } else if (message.startsWith("BAT_DAU|")) {
             String[] parts = message.split("\\|");
-            playerSymbol = parts[1];
+            int newSize = 0;
             if (parts.length >= 3) {
                 try {
-                    int newSize = Integer.parseInt(parts[2]);
-                    if (newSize >= 3 && newSize != boardSize) {
-                        boardSize = newSize;
-                        // rebuild board for new size
-                        joinGame();
-                        // Điều chỉnh kích thước cửa sổ cho phù hợp
-                        if (boardSize >= 12) {
-                            setSize(860, 900);
-                        } else if (boardSize >= 9) {
-                            setSize(720, 820);
-                        } else {
-                            setSize(520, 640);
-                        }
-                        SwingUtilities.invokeLater(() -> {
-                            revalidate();
-                            repaint();
-                            updateBoardCellMetrics();
-                        });
-                    }
+                    newSize = Integer.parseInt(parts[2]);
                 } catch (NumberFormatException ignored) {}
             }
-            statusLabel.setText("Trò chơi bắt đầu - Bạn là " + playerSymbol);
-            myTurn = false;
-            enableBoard(false);
+            handleGameStart(parts[1], newSize);
         } else if (message.equals("CHO_DOI_THU")) {
             statusLabel.setText("Đang chờ người chơi khác vào phòng...");
             myTurn = false;
             enableBoard(false);
         } else if (message.equals("LUOT_CUA_BAN")) {
-            statusLabel.setText("Lượt của bạn");
-            myTurn = true;
-            enableBoard(true);
+            onMyTurn();
         } else if (message.equals("LUOT_DOI_THU")) {
-            statusLabel.setText("Lượt của đối thủ");
-            myTurn = false;
-            enableBoard(false);
+            onOpponentTurn();
         } else if (message.startsWith("DANH|")) {
             String[] parts = message.split("\\|");
             int position = Integer.parseInt(parts[1]);
@@ -345,6 +425,36 @@ public class TicTacToeClient extends JFrame {
             if (parts.length >= 3) {
                 appendChat(parts[1], parts[2]);
             }
+        } else if (message.startsWith("DANG_GHEP|")) {
+            setMatching(true);
+        } else if (message.equals("DA_HUY_GHEP")) {
+            setMatching(false);
+            refreshRoomList(); // máy chủ ngừng gửi cập nhật lobby trong lúc chờ ghép
+        } else if (message.startsWith("PHIEN|")) {
+            sessionToken = message.substring("PHIEN|".length());
+        } else if (message.startsWith("KHOI_PHUC|")) {
+            restoreGame(message);
+        } else if (message.startsWith("DANG_XEM|")) {
+            showSpectatorView(message);
+        } else if (message.startsWith("MA_VAN|")) {
+            lastGameId = message.substring("MA_VAN|".length());
+        } else if (message.startsWith("PHAT_LAI|")) {
+            startReplay(message);
+        } else if (message.startsWith("PHAT_LAI_NUOC|")) {
+            addReplayMoves(message);
+        } else if (message.startsWith("DOI_THU_MAT_KET_NOI|")) {
+            statusLabel.setText("Đối thủ mất kết nối, chờ tối đa "
+                    + message.substring("DOI_THU_MAT_KET_NOI|".length()) + " giây...");
+        } else if (message.equals("DOI_THU_TRO_LAI")) {
+            statusLabel.setText(myTurn ? "Lượt của bạn" : "Lượt của đối thủ");
+        } else if (message.startsWith("CHUYEN_MAY|")) {
+            followRedirect(message);
+        } else if (message.startsWith("DA_DANG_NHAP|") || message.startsWith("HO_SO|")) {
+            // DA_DANG_NHAP|tên|rating hoặc HO_SO|tên|rating|...: hiện rating hiện tại trên tiêu đề
+            String[] parts = message.split("\\|");
+            if (parts.length >= 3 && parts[1].equals(nickname)) {
+                setTitle("Cờ Ca-rô - " + nickname + " (" + parts[2] + ")");
+            }
         } else if (message.startsWith("LEADERBOARD")) {
             showLeaderboardDialog(message);
         } else if (message.startsWith("LOI|")) {
@@ -358,7 +468,88 @@ public class TicTacToeClient extends JFrame {
         }
     }
 
+    private void handleGameStart(String symbol, int newSize) {
+        playerSymbol = symbol;
+        if (matching) {
+            // Vừa được ghép khi đang ở màn hình chính: buộc dựng bàn cờ và chuyển sang màn chơi
+            setMatching(false);
+            boardSize = 0;
+        }
+        if (newSize >= 3 && newSize != boardSize) {
+            boardSize = newSize;
+            // rebuild board for new size
+            joinGame();
+            // Điều chỉnh kích thước cửa sổ cho phù hợp
+            if (boardSize >= 19) {
+                setSize(1000, 1000);
+            } else if (boardSize >= 12) {
+                setSize(860, 900);
+            } else if (boardSize >= 9) {
+                setSize(720, 820);
+            } else {
+                setSize(520, 640);
+            }
+            SwingUtilities.invokeLater(() -> {
+                revalidate();
+                repaint();
+                updateBoardCellMetrics();
+            });
+        }
+        statusLabel.setText("Trò chơi bắt đầu - Bạn là " + playerSymbol);
+        myTurn = false;
+        enableBoard(false);
+    }
+
+    private void onMyTurn() {
+        statusLabel.setText("Lượt của bạn");
+        myTurn = true;
+        enableBoard(true);
+    }
+
+    private void onOpponentTurn() {
+        statusLabel.setText("Lượt của đối thủ");
+        myTurn = false;
+        enableBoard(false);
+    }
+
+    // format: CAP_NHAT_PHONG|version|+room|-room|#room (thêm / xóa / đã đầy)
+    private void applyRoomListDelta(String message) {
+        String[] parts = message.split("\\|");
+        long version;
+        try {
+            version = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (version <= lobbyVersion) {
+            return; // đã có trong ảnh chụp
+        }
+        if (version != lobbyVersion + 1) {
+            // Lỡ mất một bản cập nhật: xin lại toàn bộ danh sách
+            refreshRoomList();
+            return;
+        }
+        lobbyVersion = version;
+        for (int i = 2; i < parts.length; i++) {
+            if (parts[i].length() < 2) continue;
+            char change = parts[i].charAt(0);
+            String room = parts[i].substring(1);
+            if (change == '+') {
+                if (!roomListModel.contains(room)) {
+                    roomListModel.addElement(room);
+                }
+            } else {
+                roomListModel.removeElement(room);
+            }
+        }
+    }
+
     private void updateBoard(int position, String symbol) {
+        showStone(position, symbol);
+        Sound.playClick();
+    }
+
+    private void showStone(int position, String symbol) {
         buttons[position].setText(symbol);
         buttons[position].setEnabled(false);
         if ("X".equals(symbol)) {
@@ -366,12 +557,128 @@ public class TicTacToeClient extends JFrame {
         } else {
             buttons[position].setForeground(new Color(30, 144, 255));
         }
-        Sound.playClick();
+    }
+
+    // KHOI_PHUC|ký hiệu|kích thước|1 nếu tới lượt|bàn cờ: vẽ lại toàn bộ bàn cờ từ ảnh chụp
+    // (base64, 2 bit mỗi ô: 0 trống, 1 X, 2 O) sau khi tiếp tục phiên
+    private void restoreGame(String message) {
+        String[] parts = message.split("\\|");
+        if (parts.length < 5) {
+            return;
+        }
+        handleGameStart(parts[1], Integer.parseInt(parts[2]));
+        drawSnapshot(parts[4]);
+        if ("1".equals(parts[3])) {
+            onMyTurn();
+        } else {
+            onOpponentTurn();
+        }
+    }
+
+    // DANG_XEM|tên phòng|kích thước|bàn cờ: bắt đầu xem, hoặc ván mới của phòng đang xem
+    private void showSpectatorView(String message) {
+        String[] parts = message.split("\\|");
+        if (parts.length < 4) {
+            return;
+        }
+        if (!spectating) {
+            boardSize = 0; // đang ở màn hình chính: buộc dựng bàn cờ và chuyển sang màn chơi
+        }
+        spectating = true;
+        handleGameStart(null, Integer.parseInt(parts[2]));
+        drawSnapshot(parts[3]);
+        enableBoard(false);
+        statusLabel.setText("Đang xem phòng " + parts[1]);
+    }
+
+    // PHAT_LAI|mã|kích thước|tên X|tên O|bên đi trước|kết quả|số nước|ô thắng,...: dựng bàn cờ trống,
+    // các nước đến sau trong PHAT_LAI_NUOC
+    private void startReplay(String message) {
+        String[] parts = message.split("\\|", -1);
+        if (parts.length < 9) {
+            return;
+        }
+        stopReplay();
+        if (!spectating) {
+            boardSize = 0; // đang ở màn hình chính: buộc dựng bàn cờ và chuyển sang màn chơi
+        }
+        spectating = true;
+        handleGameStart(null, Integer.parseInt(parts[2]));
+        drawSnapshot("");
+        enableBoard(false);
+        replayHeader = parts;
+        replayMoves = new java.util.ArrayList<>();
+        statusLabel.setText("Xem lại ván #" + parts[1] + ": X " + parts[3] + " - O " + parts[4]);
+        if (Integer.parseInt(parts[7]) == 0) {
+            playReplay();
+        }
+    }
+
+    private void addReplayMoves(String message) {
+        if (replayMoves == null) {
+            return;
+        }
+        for (String s : message.substring("PHAT_LAI_NUOC|".length()).split(",")) {
+            try { replayMoves.add(Integer.parseInt(s.trim())); } catch (NumberFormatException ignored) {}
+        }
+        if (replayMoves.size() >= Integer.parseInt(replayHeader[7])) {
+            playReplay();
+        }
+    }
+
+    // Đánh lại từng nước, xen kẽ từ bên đi trước; hết nước thì tô đường thắng và hỏi về trang chủ
+    private void playReplay() {
+        java.util.List<Integer> moves = replayMoves;
+        String[] header = replayHeader;
+        int[] next = {0};
+        replayTimer = new javax.swing.Timer(Math.max(50, 6000 / Math.max(1, moves.size())), e -> {
+            if (next[0] < moves.size()) {
+                boolean first = (next[0] & 1) == 0;
+                String symbol = first == header[5].equals("X") ? "X" : "O";
+                updateBoard(moves.get(next[0]++), symbol);
+                return;
+            }
+            stopReplay();
+            java.util.List<Integer> line = new java.util.ArrayList<>();
+            for (String s : header[8].split(",")) {
+                try { line.add(Integer.parseInt(s.trim())); } catch (NumberFormatException ignored) {}
+            }
+            highlightWinningLine(line);
+            String result = header[6].equals("HOA") ? "Hòa" : header[6] + " thắng";
+            statusLabel.setText("Ván #" + header[1] + " - " + result);
+            JOptionPane.showMessageDialog(this, "Đã xem hết ván #" + header[1] + " (" + result + ")",
+                    "Xem lại", JOptionPane.INFORMATION_MESSAGE);
+            returnToLobby();
+        });
+        replayTimer.setInitialDelay(500);
+        replayTimer.start();
+    }
+
+    private void stopReplay() {
+        if (replayTimer != null) {
+            replayTimer.stop();
+            replayTimer = null;
+        }
+        replayMoves = null;
+    }
+
+    // Vẽ lại toàn bộ bàn cờ từ ảnh chụp base64, 2 bit mỗi ô: 0 trống, 1 X, 2 O
+    private void drawSnapshot(String snapshot) {
+        byte[] cells = java.util.Base64.getDecoder().decode(snapshot);
+        for (int p = 0; p < buttons.length; p++) {
+            int v = (p >>> 2) < cells.length ? (cells[p >>> 2] >>> ((p & 3) << 1)) & 3 : 0;
+            if (v == 0) {
+                buttons[p].setText("");
+                buttons[p].setBackground(getBoardCellBg());
+            } else {
+                showStone(p, v == 1 ? "X" : "O");
+            }
+        }
     }
 
     private void makeMove(int position) {
         if (myTurn && buttons[position].getText().isEmpty()) {
-            out.println("DANH|" + position);
+            send(binary ? WireProtocol.moveFrame(position) : null, "DANH|" + position);
             updateBoard(position, playerSymbol);
             myTurn = false;
         }
@@ -393,6 +700,10 @@ public class TicTacToeClient extends JFrame {
     }
 
     private void handleGameEnd(String result) {
+        if (spectating) {
+            statusLabel.setText(result.equals("HOA") ? "Kết thúc - Hòa!" : "Kết thúc - " + result.substring(0, 1) + " thắng!");
+            return;
+        }
         String message;
         if (result.equals("HOA")) {
             message = "Kết thúc - Hòa!";
@@ -408,8 +719,14 @@ public class TicTacToeClient extends JFrame {
             }
             showConfetti();
         }
+        if (lastGameId != null) {
+            message += " (ván #" + lastGameId + ")";
+        }
         statusLabel.setText(message);
         enableBoard(false);
+        if (nickname != null) {
+            send("HO_SO"); // rating mới sau ván
+        }
         showPlayAgainDialog();
     }
 
@@ -429,6 +746,9 @@ public class TicTacToeClient extends JFrame {
         // Reset trạng thái
         playerSymbol = null;
         myTurn = false;
+        spectating = false;
+        sessionToken = null;
+        stopReplay();
         
         // Đóng kết nối hiện tại
         intentionalDisconnect = true;
@@ -464,7 +784,7 @@ public class TicTacToeClient extends JFrame {
         }
         statusLabel.setText("Đang chờ đối thủ...");
         myTurn = false;
-        out.println("CHOI_LAI");
+        send(binary ? WireProtocol.replayFrame() : null, "CHOI_LAI");
     }
 
     private void closeConnection() {
@@ -478,18 +798,59 @@ public class TicTacToeClient extends JFrame {
         }
     }
 
+    private synchronized void openConnection() throws IOException {
+        socket = new Socket(serverHost, serverPort);
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        in = new WireProtocol.Reader(socket.getInputStream());
+        intentionalDisconnect = false;
+        binary = TRY_BINARY && negotiateBinary();
+        if (nickname != null) {
+            send("DANG_NHAP|" + nickname);
+        }
+
+        // Bắt đầu luồng lắng nghe tin nhắn từ server
+        WireProtocol.Reader reader = in;
+        boolean binaryMode = binary;
+        new Thread(() -> listenForServerMessages(reader, binaryMode)).start();
+    }
+
+    // Rớt mạng giữa ván: thử kết nối lại trong lúc máy chủ còn giữ ghế rồi gửi TIEP_TUC|mã. Máy chủ
+    // trả KHOI_PHUC với bàn cờ hiện tại, hoặc VE_TRANG_CHU nếu phiên đã hết hạn. Chạy trên luồng mạng.
+    private void resumeSession(String token) {
+        SwingUtilities.invokeLater(() -> {
+            statusLabel.setText("Mất kết nối, đang kết nối lại...");
+            enableBoard(false);
+        });
+        long deadline = System.currentTimeMillis() + RESUME_MILLIS;
+        while (System.currentTimeMillis() < deadline && !intentionalDisconnect) {
+            try {
+                openConnection();
+                send("TIEP_TUC|" + token);
+                return;
+            } catch (IOException e) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        SwingUtilities.invokeLater(() -> {
+            JOptionPane.showMessageDialog(this,
+                    "Mất kết nối đến máy chủ!",
+                    "Lỗi Kết Nối",
+                    JOptionPane.ERROR_MESSAGE);
+            System.exit(1);
+        });
+    }
+
     private void connectToServerForRoomList() {
         try {
-            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            intentionalDisconnect = false;
-
-            // Bắt đầu luồng lắng nghe tin nhắn từ server
-            new Thread(this::listenForServerMessages).start();
+            openConnection();
 
             // Yêu cầu danh sách phòng
-            out.println("LAY_DANH_SACH_PHONG");
+            send("LAY_DANH_SACH_PHONG");
 
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this,
@@ -500,6 +861,66 @@ public class TicTacToeClient extends JFrame {
         }
     }
 
+    // CHUYEN_MAY|host|port|lệnh: phòng nằm ở node khác của cụm. Kết nối sang node đó (vẫn nhận được
+    // danh sách phòng của cả cụm) rồi gửi lại lệnh máy chủ trả về.
+    private void followRedirect(String message) {
+        String[] parts = message.split("\\|", 4);
+        int port = parts.length == 4 ? WireProtocol.parseNonNegative(parts[2], 0, parts[2].length()) : -1;
+        if (port <= 0 || ++redirects > MAX_REDIRECTS) {
+            JOptionPane.showMessageDialog(this,
+                    "Không tìm được máy chủ đang giữ phòng, vui lòng thử lại!",
+                    "Lỗi",
+                    JOptionPane.ERROR_MESSAGE);
+            returnToLobby();
+            return;
+        }
+        closeConnection();
+        serverHost = parts[1];
+        serverPort = port;
+        connectToServerForRoomList();
+        send(parts[3]);
+    }
+
+    // Gửi NHI_PHAN và chờ câu trả lời trước khi gửi bất cứ gì khác. Tin nhắn đến trước câu trả lời
+    // (ví dụ danh sách phòng) vẫn được xử lý bình thường. Máy chủ cũ trả LOI|... => giữ văn bản.
+    private boolean negotiateBinary() throws IOException {
+        out.write((WireProtocol.NEGOTIATE + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        String message;
+        while ((message = in.readLine()) != null) {
+            if (message.equals(WireProtocol.ACK)) {
+                return true;
+            }
+            if (message.startsWith("LOI|")) {
+                return false;
+            }
+            String finalMessage = message;
+            SwingUtilities.invokeLater(() -> processServerMessage(finalMessage));
+        }
+        throw new EOFException("Máy chủ đóng kết nối");
+    }
+
+    private void send(String message) {
+        send(null, message);
+    }
+
+    // frame là khung nhị phân có sẵn cho tin nhắn này (nếu có); nếu không thì gửi text dưới dạng
+    // khung TEXT hoặc một dòng, tùy chế độ của kết nối
+    private synchronized void send(byte[] frame, String text) {
+        if (out == null) {
+            return;
+        }
+        try {
+            if (frame == null) {
+                frame = binary ? WireProtocol.textFrame(text) : (text + "\n").getBytes(StandardCharsets.UTF_8);
+            }
+            out.write(frame);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Lỗi khi gửi message: " + e.getMessage());
+        }
+    }
+
     private void createRoom() {
         String roomName = JOptionPane.showInputDialog(this, 
             "Nhập tên phòng:", 
@@ -507,29 +928,95 @@ public class TicTacToeClient extends JFrame {
             JOptionPane.PLAIN_MESSAGE);
         
         if (roomName != null && !roomName.trim().isEmpty()) {
-            Object choice = JOptionPane.showInputDialog(
-                this,
-                "Chọn kích thước bàn cờ:",
-                "Kích thước",
-                JOptionPane.PLAIN_MESSAGE,
-                null,
-                new Object[]{"3 x 3 (nhanh)", "9 x 9 (lâu hơn)", "12 x 12 (lâu hơn)"},
-                "3 x 3 (nhanh)");
-            int size = 3;
-            if (choice != null) {
-                String s = choice.toString();
-                if (s.startsWith("9")) size = 9;
-                else if (s.startsWith("12")) size = 12;
-            }
-            out.println("TAO_PHONG|" + roomName.trim() + "|" + size);
+            int size = chooseBoardSize();
+            if (size == 0) size = 3;
+            redirects = 0;
+            send("TAO_PHONG|" + roomName.trim() + "|" + size);
+            joinGame();
+        }
+    }
+
+    // Kích thước bàn cờ người dùng chọn, 0 nếu đóng hộp thoại
+    private int chooseBoardSize() {
+        Object choice = JOptionPane.showInputDialog(
+            this,
+            "Chọn kích thước bàn cờ:",
+            "Kích thước",
+            JOptionPane.PLAIN_MESSAGE,
+            null,
+            new Object[]{"3 x 3 (nhanh)", "9 x 9 (lâu hơn)", "12 x 12 (lâu hơn)", "19 x 19 (gomoku)"},
+            "3 x 3 (nhanh)");
+        if (choice == null) {
+            return 0;
+        }
+        String s = choice.toString();
+        if (s.startsWith("9")) return 9;
+        if (s.startsWith("12")) return 12;
+        if (s.startsWith("19")) return 19;
+        return 3;
+    }
+
+    // Ghép trận tự động: chờ ở màn hình chính, bấm lần nữa để hủy
+    private void toggleMatchmaking() {
+        if (matching) {
+            send("HUY_GHEP");
+            return;
+        }
+        int size = chooseBoardSize();
+        if (size != 0) {
+            send("GHEP_TRAN|" + size);
+        }
+    }
+
+    // Phòng riêng với người chơi máy của server; ván bắt đầu ngay
+    private void playAgainstBot() {
+        int size = chooseBoardSize();
+        if (size != 0) {
+            send("CHOI_VOI_MAY|" + size);
             joinGame();
         }
     }
 
+    private void setMatching(boolean matching) {
+        this.matching = matching;
+        matchButton.setText(matching ? "Hủy ghép" : "Ghép trận");
+    }
+
+    // Phòng đang chơi không có trong danh sách (danh sách chỉ gồm phòng còn chỗ) nên hỏi tên phòng,
+    // gợi ý phòng đang chọn
+    private void watchRoom() {
+        String roomName = (String) JOptionPane.showInputDialog(this,
+            "Nhập tên phòng muốn xem:",
+            "Xem phòng",
+            JOptionPane.PLAIN_MESSAGE,
+            null,
+            null,
+            roomList.getSelectedValue());
+        if (roomName != null && !roomName.trim().isEmpty()) {
+            redirects = 0;
+            send("XEM_PHONG|" + roomName.trim());
+        }
+    }
+
+    // XEM_LAI|mã ván, gợi ý ván vừa chơi
+    private void requestReplay() {
+        String id = (String) JOptionPane.showInputDialog(this,
+            "Nhập mã ván muốn xem lại:",
+            "Xem lại",
+            JOptionPane.PLAIN_MESSAGE,
+            null,
+            null,
+            lastGameId);
+        if (id != null && !id.trim().isEmpty()) {
+            send("XEM_LAI|" + id.trim());
+        }
+    }
+
     private void joinSelectedRoom() {
         String selectedRoom = roomList.getSelectedValue();
         if (selectedRoom != null) {
-            out.println("VAO_PHONG|" + selectedRoom);
+            redirects = 0;
+            send("VAO_PHONG|" + selectedRoom);
             joinGame();
         } else {
             JOptionPane.showMessageDialog(this,
@@ -540,30 +1027,31 @@ public class TicTacToeClient extends JFrame {
     }
 
     private void refreshRoomList() {
-        out.println("LAY_DANH_SACH_PHONG");
+        send("LAY_DANH_SACH_PHONG");
     }
 
     private void requestLeaderboard() {
         if (out != null) {
-            out.println("LAY_BANG_XEP_HANG");
+            send("LAY_BANG_XEP_HANG");
         }
     }
 
     private void showLeaderboardDialog(String message) {
-        // format: LEADERBOARD|name|wins|losses|draws|name|...
+        // format: LEADERBOARD|name|wins|losses|draws|rating|name|...
         String[] parts = message.split("\\|");
         if (parts.length <= 1) {
             JOptionPane.showMessageDialog(this, "Chưa có dữ liệu bảng xếp hạng.", "Bảng xếp hạng", JOptionPane.INFORMATION_MESSAGE);
             return;
         }
         StringBuilder sb = new StringBuilder();
-        sb.append(String.format("%-20s %6s %6s %6s%n", "Tên", "Thắng", "Thua", "Hòa"));
-        for (int i = 1; i + 3 < parts.length; i += 4) {
+        sb.append(String.format("%-20s %6s %6s %6s %6s%n", "Tên", "Elo", "Thắng", "Thua", "Hòa"));
+        for (int i = 1; i + 4 < parts.length; i += 5) {
             String name = parts[i];
             String wins = parts[i + 1];
             String losses = parts[i + 2];
             String draws = parts[i + 3];
-            sb.append(String.format("%-20s %6s %6s %6s%n", name, wins, losses, draws));
+            String rating = parts[i + 4];
+            sb.append(String.format("%-20s %6s %6s %6s %6s%n", name, rating, wins, losses, draws));
         }
         JTextArea ta = new JTextArea(sb.toString());
         ta.setEditable(false);
@@ -571,10 +1059,21 @@ public class TicTacToeClient extends JFrame {
         JOptionPane.showMessageDialog(this, new JScrollPane(ta), "Bảng xếp hạng", JOptionPane.INFORMATION_MESSAGE);
     }
 
+    // Hỏi biệt danh lúc mở; để trống hoặc hủy thì chơi như khách (bảng xếp hạng ghi theo địa chỉ IP)
+    private String askNickname() {
+        String input = JOptionPane.showInputDialog(null,
+                "Biệt danh (chữ, số, '_' hoặc '-', tối đa 20 ký tự)\nĐể trống để chơi như khách:",
+                "Đăng nhập", JOptionPane.QUESTION_MESSAGE);
+        if (input == null || input.trim().isEmpty()) {
+            return null;
+        }
+        return input.trim();
+    }
+
     private void sendChat() {
         String text = chatInput.getText().trim();
         if (text.isEmpty() || out == null) return;
-        out.println("CHAT|" + text);
+        send("CHAT|" + text);
         chatInput.setText("");
     }
 
@@ -2,78 +2,177 @@ package main;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class TicTacToeServer {
-    private static final int PORT = 5001;
+    private static int port = 5001;
+    static final int MAX_BOARD_SIZE = 50;
+    // Pool dùng chung cho hộp thư của tất cả các phòng; số luồng tăng theo số nhân CPU
+    static final ExecutorService ROOM_EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "room-worker");
+                t.setDaemon(true);
+                return t;
+            });
+    // Gửi tin cho người xem (xem Room): pool riêng để phòng đông người xem không chiếm luồng của hộp thư phòng
+    static final ExecutorService FANOUT_EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2), r -> {
+                Thread t = new Thread(r, "spectator-fanout");
+                t.setDaemon(true);
+                return t;
+            });
+    // Ván đã kết thúc, xem lại bằng XEM_LAI; null nếu không mở được thư mục lưu trữ. Việc đọc đĩa chạy
+    // trên luồng riêng để không chặn luồng Selector của engine nio.
+    static final ReplayStore replays = openReplays();
+    private static final ExecutorService REPLAY_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "replay-reader");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final int REPLAY_CHUNK = 256; // số nước mỗi dòng PHAT_LAI_NUOC, giữ dưới giới hạn độ dài dòng
     private static CopyOnWriteArrayList<ClientHandler> clients = new CopyOnWriteArrayList<>();
     private static Map<String, Room> rooms = new ConcurrentHashMap<>();
+    // Khóa lobby cho createRoom/joinRoom/removeClient. Dùng ReentrantLock thay vì synchronized để
+    // luồng ảo chờ khóa không bị ghim vào luồng mang (carrier thread).
+    private static final ReentrantLock LOBBY_LOCK = new ReentrantLock();
+    static final LobbyChannel lobby = new LobbyChannel(rooms);
+    // null khi chạy một node đơn lẻ
+    private static ClusterRegistry cluster;
+    // Ghế của người chơi rớt mạng giữa ván, chờ TIEP_TUC (xem SessionStore)
+    static final SessionStore sessions = new SessionStore(
+            TimeUnit.SECONDS.toMillis(Long.getLong("session.graceSeconds", 30)),
+            Integer.getInteger("session.maxParked", 10_000),
+            TicTacToeServer::leaveRoom);
+    static final Matchmaker matchmaker = new Matchmaker(
+            TimeUnit.SECONDS.toNanos(Long.getLong("match.botAfterSeconds", 15)),
+            TicTacToeServer::createMatch,
+            client -> LeaderboardManager.ratingOf(client.getPlayerName()));
+    // Biệt danh đang được dùng -> client đăng nhập bằng biệt danh đó (DANG_NHAP)
+    private static final Map<String, ClientHandler> players = new ConcurrentHashMap<>();
+    private static final int MAX_NICKNAME = 20;
+    private static final AtomicLong matchCounter = new AtomicLong();
 
-    private static void broadcastRoomList() {
-        // Snapshot room names that are not full to avoid concurrent modifications during iteration
-        List<String> availableRooms = new ArrayList<>();
-        for (Map.Entry<String, Room> entry : rooms.entrySet()) {
-            Room room = entry.getValue();
-            if (!room.isFull()) {
-                availableRooms.add(entry.getKey());
+    // createRoom/joinRoom/removeClient dùng chung khóa lobby, còn nước đi và chat đi thẳng
+    // vào hộp thư của từng phòng.
+    private static void createRoom(ClientHandler client, String roomName, int size) {
+        matchmaker.cancel(client);
+        stopWatching(client);
+        LOBBY_LOCK.lock();
+        try {
+            if (rooms.containsKey(roomName)) {
+                client.sendMessage("LOI|Phòng đã tồn tại");
+                return;
             }
-        }
 
-        StringBuilder roomList = new StringBuilder("DANH_SACH_PHONG");
-        for (String roomName : availableRooms) {
-            roomList.append("|").append(roomName);
-        }
-        String message = roomList.toString();
-        for (ClientHandler client : clients) {
-            client.sendMessage(message);
+            Room room = new Room(roomName, client, size);
+            rooms.put(roomName, room);
+            client.setCurrentRoom(room);
+            lobby.unsubscribe(client);
+            issueSession(client);
+            client.sendMessage("CHO_DOI_THU");
+            lobby.roomAdded(roomName);
+        } finally {
+            LOBBY_LOCK.unlock();
         }
     }
 
-    private static synchronized void createRoom(ClientHandler client, String roomName) {
-        if (rooms.containsKey(roomName)) {
-            client.sendMessage("LOI|Phòng đã tồn tại");
-            return;
-        }
+    private static void joinRoom(ClientHandler client, String roomName) {
+        matchmaker.cancel(client);
+        stopWatching(client);
+        LOBBY_LOCK.lock();
+        try {
+            Room room = rooms.get(roomName);
+            if (room == null) {
+                client.sendMessage("LOI|Phòng không tồn tại");
+                return;
+            }
+
+            if (room.isFull()) {
+                client.sendMessage("LOI|Phòng đã đầy");
+                return;
+            }
 
-        Room room = new Room(roomName, client);
-        rooms.put(roomName, room);
-        client.setCurrentRoom(room);
-        client.sendMessage("CHO_DOI_THU");
-        broadcastRoomList();
+            issueSession(client);
+            room.addPlayer(client);
+            client.setCurrentRoom(room);
+            lobby.unsubscribe(client);
+            if (room.isFull()) {
+                lobby.roomFull(roomName);
+            }
+        } finally {
+            LOBBY_LOCK.unlock();
+        }
     }
 
-    private static synchronized void joinRoom(ClientHandler client, String roomName) {
-        Room room = rooms.get(roomName);
-        if (room == null) {
-            client.sendMessage("LOI|Phòng không tồn tại");
-            return;
+    public static void main(String[] args) {
+        String engine = "blocking";
+        String clusterDir = null;
+        String advertise = "127.0.0.1";
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length()).trim().toLowerCase();
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()).trim());
+            } else if (arg.startsWith("--cluster=")) {
+                clusterDir = arg.substring("--cluster=".length()).trim();
+            } else if (arg.startsWith("--advertise=")) {
+                advertise = arg.substring("--advertise=".length()).trim();
+            }
+        }
+
+        LeaderboardManager.start(); // nạp nền; kết quả đến sớm được xếp hàng
+        lobby.start();
+        sessions.start();
+        matchmaker.start();
+        if (clusterDir != null) {
+            cluster = new ClusterRegistry(new File(clusterDir), advertise, port, rooms, lobby);
+            cluster.start();
         }
+        ServerMetrics.start(clients, rooms);
 
-        if (room.isFull()) {
-            client.sendMessage("LOI|Phòng đã đầy");
+        if (engine.equals("nio")) {
+            try {
+                new NioServer(port).run();
+            } catch (IOException e) {
+                System.err.println("Lỗi khởi tạo server: " + e.getMessage());
+            }
             return;
         }
 
-        room.addPlayer(client);
-        client.setCurrentRoom(room);
-        broadcastRoomList();
-    }
+        if (engine.equals("virtual")) {
+            ThreadFactory factory = virtualThreadFactory();
+            if (factory != null) {
+                ClientHandler.setThreadFactory(factory);
+                System.out.println("Chế độ luồng ảo: mỗi kết nối chạy trên một virtual thread");
+            } else {
+                System.err.println("JVM không hỗ trợ luồng ảo (cần JDK 21+), dùng luồng thường");
+            }
+        }
 
-    public static void main(String[] args) {
         ServerSocket serverSocket = null;
         try {
-            serverSocket = new ServerSocket(PORT);
-            System.out.println("Máy chủ đang chạy trên cổng " + PORT);
+            serverSocket = new ServerSocket(port);
+            System.out.println("Máy chủ đang chạy trên cổng " + port);
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
+                clientSocket.setTcpNoDelay(true); // tin nhắn ngắn, không để Nagle giữ lại chờ ACK
                 System.out.println("Client mới kết nối: " + clientSocket.getInetAddress());
 
-                ClientHandler clientHandler = new ClientHandler(clientSocket);
-                clients.add(clientHandler);
-                broadcastRoomList();
+                registerClient(new ClientHandler(clientSocket));
             }
         } catch (IOException e) {
             System.err.println("Lỗi khởi tạo server: " + e.getMessage());
@@ -88,148 +187,630 @@ public class TicTacToeServer {
         }
     }
 
-    // Remove client khỏi danh sách và xử lý khi disconnect
-    public static synchronized void removeClient(ClientHandler client, Room room) {
-        if (room != null) {
+    // Thread.ofVirtual() chỉ có từ JDK 21 nên được gọi qua reflection để mã nguồn vẫn biên dịch
+    // được trên các JDK cũ hơn. Trả về null nếu không dùng được.
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "client-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Gọi bởi mọi engine sau khi chấp nhận một kết nối mới
+    static void registerClient(ClientHandler clientHandler) {
+        clients.add(clientHandler);
+        lobby.subscribe(clientHandler);
+    }
+
+    // Remove client khỏi danh sách và xử lý khi disconnect. Rớt mạng giữa ván thì ghế được giữ lại
+    // cho TIEP_TUC thay vì xử thua ngay.
+    public static void removeClient(ClientHandler client, Room room) {
+        boolean parked = false;
+        matchmaker.cancel(client);
+        if (client.getPlayerId() != null) {
+            players.remove(client.getPlayerId(), client);
+        }
+        stopWatching(client);
+        LOBBY_LOCK.lock();
+        try {
+            if (room != null && client.getSessionToken() != null && room.isFull() && room.gameInProgress()) {
+                sessions.park(client.getSessionToken(), client, room);
+                parked = true;
+            } else if (room != null) {
+                leaveRoom(client, room);
+            }
+
+            lobby.unsubscribe(client);
+            clients.remove(client);
+        } finally {
+            LOBBY_LOCK.unlock();
+        }
+        if (parked) {
+            room.execute(() -> {
+                Game game = room.getGame();
+                if (game != null) {
+                    game.handlePlayerAway(client, sessions.graceSeconds());
+                }
+            });
+        }
+        System.out.println("Client đã ngắt kết nối. Số client còn lại: " + clients.size());
+    }
+
+    // Giải phóng ghế: khi thoát, hoặc khi phiên được giữ lại đã hết hạn
+    private static void leaveRoom(ClientHandler client, Room room) {
+        LOBBY_LOCK.lock();
+        try {
+            ClientHandler opponent = room.opponentOf(client);
             room.removePlayer(client);
+            room.removeBots(); // máy không ngồi lại một mình trong phòng
+            // Ghế còn lại đang được giữ cho một kết nối đã rớt: không còn ván nào để quay lại, nên phiên đó kết
+            // thúc luôn thay vì mở phòng cho người thứ ba ngồi đối diện một kết nối đã chết
+            if (opponent != null && sessions.discard(opponent.getSessionToken())) {
+                room.removePlayer(opponent);
+            }
             if (room.isEmpty()) {
                 rooms.remove(room.getName());
+                room.closeSpectators();
+                lobby.roomRemoved(room.getName());
+            } else {
+                lobby.roomAdded(room.getName()); // phòng lại còn chỗ trống
             }
-            broadcastRoomList();
+        } finally {
+            LOBBY_LOCK.unlock();
         }
-
-        clients.remove(client);
-        System.out.println("Client đã ngắt kết nối. Số client còn lại: " + clients.size());
     }
 
-    public static synchronized void handleClientMessage(ClientHandler client, String message) {
+    // Được Matchmaker gọi cho mỗi cặp vừa ghép: tạo phòng riêng (không báo lên lobby) và bắt đầu ván.
+    // Một trong hai có thể đã vào phòng khác hoặc ngắt kết nối sau khi được ghép; khi đó người còn lại
+    // quay về hàng chờ. second == null: chờ quá lâu không có ai, ghép với máy.
+    private static void createMatch(ClientHandler first, ClientHandler second, int size) {
+        if (second == null) {
+            startBotGame(first, size);
+            return;
+        }
+        LOBBY_LOCK.lock();
         try {
-            if (message == null || message.isEmpty()) {
+            boolean firstFree = !first.isClosed() && first.getCurrentRoom() == null;
+            boolean secondFree = !second.isClosed() && second.getCurrentRoom() == null;
+            if (!firstFree || !secondFree) {
+                if (firstFree) matchmaker.enqueue(first, size);
+                if (secondFree) matchmaker.enqueue(second, size);
                 return;
             }
-
-            if (message.startsWith("TAO_PHONG|")) {
-                String[] parts = message.split("\\|");
-                if (parts.length < 2 || parts[1].trim().isEmpty()) {
-                    client.sendMessage("LOI|Tên phòng không hợp lệ");
-                    return;
-                }
-                String roomName = parts[1].trim();
-                int size = 3;
-                if (parts.length >= 3) {
-                    try {
-                        size = Integer.parseInt(parts[2].trim());
-                        if (size <= 0) size = 3;
-                    } catch (NumberFormatException ignored) {}
-                }
-                if (rooms.containsKey(roomName)) {
-                    client.sendMessage("LOI|Phòng đã tồn tại");
-                    return;
-                }
-                Room room = new Room(roomName, client, size);
-                rooms.put(roomName, room);
+            String name = generatedRoomName("ghep-");
+            Room room = new Room(name, first, size);
+            rooms.put(name, room);
+            for (ClientHandler client : new ClientHandler[] {first, second}) {
+                stopWatching(client); // người đang xem phòng khác vẫn ghép được: thôi nhận tin của phòng đó
                 client.setCurrentRoom(room);
-                client.sendMessage("CHO_DOI_THU");
-                broadcastRoomList();
-                return;
+                lobby.unsubscribe(client);
+                issueSession(client);
             }
+            room.addPlayer(second); // đủ hai người: hộp thư phòng bắt đầu ván
+        } finally {
+            LOBBY_LOCK.unlock();
+        }
+    }
 
-            if (message.startsWith("VAO_PHONG|")) {
-                String[] parts = message.split("\\|", 2);
-                if (parts.length < 2 || parts[1].trim().isEmpty()) {
-                    client.sendMessage("LOI|Tên phòng không hợp lệ");
-                    return;
-                }
-                String roomName = parts[1].trim();
-                joinRoom(client, roomName);
+    // Tên phòng riêng chưa dùng (gọi dưới khóa lobby). Bộ đếm chỉ riêng từng node, nên ở chế độ cụm tên
+    // kèm địa chỉ node để hai node không sinh cùng một tên trong danh bạ chung.
+    private static String generatedRoomName(String prefix) {
+        String node = cluster == null ? "" : cluster.self().replace(':', '_') + "-";
+        String name;
+        do {
+            name = prefix + node + matchCounter.incrementAndGet();
+        } while (rooms.containsKey(name));
+        return name;
+    }
+
+    // Phòng riêng "may-N": client làm chủ phòng, máy ngồi ghế khách và ván bắt đầu ngay
+    private static void startBotGame(ClientHandler client, int size) {
+        LOBBY_LOCK.lock();
+        try {
+            if (client.isClosed() || client.getCurrentRoom() != null) {
                 return;
             }
+            String name = generatedRoomName("may-");
+            Room room = new Room(name, client, size);
+            rooms.put(name, room);
+            stopWatching(client);
+            client.setCurrentRoom(room);
+            lobby.unsubscribe(client);
+            issueSession(client);
+            BotPlayer bot = new BotPlayer(room);
+            bot.setCurrentRoom(room);
+            room.addPlayer(bot);
+        } finally {
+            LOBBY_LOCK.unlock();
+        }
+    }
 
-            if (message.equals("LAY_DANH_SACH_PHONG")) {
-                broadcastRoomList();
-                return;
+    private static ReplayStore openReplays() {
+        ReplayStore store = new ReplayStore(
+                new File(System.getProperty("replay.dir", System.getProperty("leaderboard.dir", "."))),
+                "replay",
+                Long.getLong("replay.syncMillis", 1000),
+                Long.getLong("replay.segmentMB", 64) << 20);
+        try {
+            store.open();
+        } catch (IOException e) {
+            System.err.println("Không thể mở lưu trữ ván đấu: " + e.getMessage());
+            return null;
+        }
+        store.start();
+        return store;
+    }
+
+    // Ngừng xem phòng đang xem (nếu có)
+    private static void stopWatching(ClientHandler client) {
+        Room watching = client.getWatching();
+        if (watching != null) {
+            client.setWatching(null);
+            watching.removeSpectator(client);
+        }
+    }
+
+    private static void issueSession(ClientHandler client) {
+        String token = sessions.newToken();
+        client.setSessionToken(token);
+        client.sendMessage("PHIEN|" + token);
+    }
+
+    // Bảng xử lý theo Command.ordinal(); mỗi handler nhận vị trí bắt đầu phần tham số (sau dấu '|'
+    // đầu tiên, hoặc bằng độ dài dòng nếu không có tham số)
+    private interface CommandHandler {
+        void handle(ClientHandler client, String message, int args);
+    }
+
+    private static final CommandHandler[] HANDLERS = new CommandHandler[Command.values().length];
+
+    static {
+        HANDLERS[Command.TAO_PHONG.ordinal()] = TicTacToeServer::onCreateRoom;
+        HANDLERS[Command.VAO_PHONG.ordinal()] = TicTacToeServer::onJoinRoom;
+        HANDLERS[Command.NHI_PHAN.ordinal()] = (client, message, args) -> client.enableBinary();
+        // Client ở màn hình lobby: đăng ký nhận cập nhật và nhận ảnh chụp đầy đủ
+        HANDLERS[Command.LAY_DANH_SACH_PHONG.ordinal()] = (client, message, args) -> {
+            stopWatching(client);
+            lobby.subscribe(client);
+        };
+        HANDLERS[Command.DANH.ordinal()] = TicTacToeServer::onMove;
+        HANDLERS[Command.CHAT.ordinal()] = TicTacToeServer::onChat;
+        HANDLERS[Command.CHOI_LAI.ordinal()] = (client, message, args) -> playAgain(client);
+        HANDLERS[Command.LAY_BANG_XEP_HANG.ordinal()] =
+                (client, message, args) -> client.sendMessage(LeaderboardManager.serializeTopN(20));
+        HANDLERS[Command.LAY_THU_HANG.ordinal()] = TicTacToeServer::onRank;
+        HANDLERS[Command.TIEP_TUC.ordinal()] = TicTacToeServer::onResume;
+        HANDLERS[Command.GHEP_TRAN.ordinal()] = TicTacToeServer::onMatch;
+        HANDLERS[Command.HUY_GHEP.ordinal()] = (client, message, args) -> {
+            if (matchmaker.cancel(client)) {
+                client.sendMessage("DA_HUY_GHEP");
             }
+        };
+        HANDLERS[Command.CHOI_VOI_MAY.ordinal()] = TicTacToeServer::onPlayBot;
+        HANDLERS[Command.XEM_PHONG.ordinal()] = TicTacToeServer::onWatch;
+        HANDLERS[Command.XEM_LAI.ordinal()] = TicTacToeServer::onReplay;
+        HANDLERS[Command.DANG_NHAP.ordinal()] = TicTacToeServer::onLogin;
+        HANDLERS[Command.HO_SO.ordinal()] = (client, message, args) -> client.sendMessage(LeaderboardManager.serializeProfile(
+                args < message.length() ? message.substring(args).trim() : client.getPlayerName()));
+    }
 
-            if (message.startsWith("DANH|")) {
-                String[] parts = message.split("\\|", 2);
-                if (parts.length < 2) {
-                    client.sendMessage("LOI|Nước đi không hợp lệ");
-                    return;
-                }
-                int position;
-                try {
-                    position = Integer.parseInt(parts[1]);
-                } catch (NumberFormatException ex) {
-                    client.sendMessage("LOI|Nước đi không hợp lệ");
-                    return;
-                }
-                Room room = client.getCurrentRoom();
-                if (room != null && room.getGame() != null) {
-                    room.getGame().makeMove(client, position);
-                }
+    // Nhận dạng lệnh và đọc tham số ngay trên dòng nhận được (dò chỉ số, không split), nên một
+    // nước đi DANH|n không tạo ra đối tượng nào trước khi vào hộp thư của phòng.
+    public static void handleClientMessage(ClientHandler client, String message) {
+        try {
+            if (message == null || message.isEmpty()) {
                 return;
             }
+            int bar = message.indexOf('|');
+            int keywordEnd = bar < 0 ? message.length() : bar;
+            Command command = Command.lookup(message, keywordEnd);
+            if (command == null) {
+                // Unknown message
+                client.sendMessage("LOI|Thông điệp không được hỗ trợ");
+                return;
+            }
+            long start = System.nanoTime();
+            HANDLERS[command.ordinal()].handle(client, message, bar < 0 ? message.length() : bar + 1);
+            ServerMetrics.recordCommand(command, start);
+        } catch (Exception ex) {
+            client.sendMessage("LOI|Lỗi xử lý thông điệp");
+        }
+    }
 
-            if (message.startsWith("CHAT|")) {
-                String[] parts = message.split("\\|", 2);
-                if (parts.length < 2 || parts[1].trim().isEmpty()) {
-                    client.sendMessage("LOI|Nội dung chat không hợp lệ");
-                    return;
-                }
-                Room room = client.getCurrentRoom();
-                if (room != null) {
-                    String sender;
-                    Game g = room.getGame();
-                    if (g != null) {
-                        sender = (client == g.getPlayer1()) ? "X" : "O";
-                    } else {
-                        sender = client.getSocket().getInetAddress().getHostAddress();
-                    }
-                    String text = parts[1].trim();
-                    room.broadcastToPlayers("CHAT|" + sender + "|" + text);
-                }
+    // TAO_PHONG|tên|kích thước
+    private static void onCreateRoom(ClientHandler client, String message, int args) {
+        int nameEnd = fieldEnd(message, args);
+        String roomName = message.substring(args, nameEnd).trim();
+        if (roomName.isEmpty()) {
+            client.sendMessage("LOI|Tên phòng không hợp lệ");
+            return;
+        }
+        int size = 3;
+        if (nameEnd < message.length()) {
+            int from = nameEnd + 1;
+            int to = fieldEnd(message, from);
+            while (from < to && message.charAt(from) <= ' ') from++;
+            while (to > from && message.charAt(to - 1) <= ' ') to--;
+            int parsed = WireProtocol.parseNonNegative(message, from, to);
+            if (parsed > 0) size = parsed;
+        }
+        if (size > MAX_BOARD_SIZE) {
+            client.sendMessage("LOI|Kích thước bàn cờ tối đa là " + MAX_BOARD_SIZE);
+            return;
+        }
+        if (cluster != null && cluster.advertiser(roomName) != null) {
+            client.sendMessage("LOI|Phòng đã tồn tại"); // đang ở node khác, kể cả khi vòng băm đã đổi chủ
+            return;
+        }
+        if (redirectIfRemote(client, cluster == null ? null : cluster.ownerOf(roomName), message)) {
+            return;
+        }
+        createRoom(client, roomName, size);
+    }
+
+    // VAO_PHONG|tên
+    private static void onJoinRoom(ClientHandler client, String message, int args) {
+        String roomName = message.substring(args).trim();
+        if (roomName.isEmpty()) {
+            client.sendMessage("LOI|Tên phòng không hợp lệ");
+            return;
+        }
+        // Phòng đã có ở node này thì vào luôn, kể cả khi vòng băm đã đổi chủ sau khi phòng được tạo
+        if (!rooms.containsKey(roomName)
+                && redirectIfRemote(client, cluster == null ? null : cluster.locate(roomName), message)) {
+            return;
+        }
+        joinRoom(client, roomName);
+    }
+
+    // XEM_PHONG|tên: xem một phòng mà không chiếm ghế. Người xem nhận DANG_XEM với ảnh chụp bàn cờ rồi
+    // các tin DANH/KET_THUC/HIGHLIGHT của ván, và một DANG_XEM mới mỗi khi ván mới bắt đầu.
+    private static void onWatch(ClientHandler client, String message, int args) {
+        String roomName = message.substring(args).trim();
+        if (client.getCurrentRoom() != null) {
+            client.sendMessage("LOI|Bạn đang ở trong phòng");
+            return;
+        }
+        Room room = rooms.get(roomName);
+        if (room == null) {
+            if (!redirectIfRemote(client, cluster == null ? null : cluster.locate(roomName), message)) {
+                client.sendMessage("LOI|Phòng không tồn tại");
+            }
+            return;
+        }
+        matchmaker.cancel(client);
+        stopWatching(client);
+        lobby.unsubscribe(client);
+        client.setWatching(room);
+        room.addSpectator(client);
+    }
+
+    // XEM_LAI|mã ván: trả PHAT_LAI|mã|kích thước|tên X|tên O|bên đi trước|kết quả|số nước|ô thắng,...
+    // rồi các dòng PHAT_LAI_NUOC|vị trí,vị trí,... theo thứ tự đánh; client tự phát lại từng nước.
+    private static void onReplay(ClientHandler client, String message, int args) {
+        long id;
+        try {
+            id = Long.parseLong(message.substring(args).trim());
+        } catch (NumberFormatException e) {
+            client.sendMessage("LOI|Mã ván không hợp lệ");
+            return;
+        }
+        if (replays == null) {
+            client.sendMessage("LOI|Máy chủ không lưu ván đấu");
+            return;
+        }
+        REPLAY_EXECUTOR.execute(() -> {
+            ReplayStore.Replay replay;
+            try {
+                replay = replays.read(id);
+            } catch (IOException e) {
+                System.err.println("Lỗi đọc ván " + id + ": " + e.getMessage());
+                replay = null;
+            }
+            if (replay == null) {
+                client.sendMessage("LOI|Không tìm thấy ván " + id);
                 return;
             }
+            sendReplay(client, replay);
+        });
+    }
 
-            if (message.equals("CHOI_LAI")) {
-                Room room = client.getCurrentRoom();
-                if (room != null) {
-                    room.resetGame();
+    private static void sendReplay(ClientHandler client, ReplayStore.Replay replay) {
+        int[] moves = replay.moves;
+        // Tính lại đường thắng từ nước cuối thay vì lưu kèm
+        int[] winLine = null;
+        if (replay.result != ReplayStore.RESULT_DRAW && moves.length > 0) {
+            BitBoard board = new BitBoard(replay.size);
+            int stone = replay.oFirst ? BitBoard.O : BitBoard.X;
+            for (int position : moves) {
+                board.set(position, stone);
+                stone = 3 - stone;
+            }
+            winLine = board.winLineThrough(moves[moves.length - 1], 3 - stone, replay.size == 3 ? 3 : 5);
+        }
+        StringBuilder sb = new StringBuilder("PHAT_LAI|").append(replay.id).append('|').append(replay.size)
+                .append('|').append(replay.playerX).append('|').append(replay.playerO)
+                .append('|').append(replay.oFirst ? 'O' : 'X')
+                .append('|').append(replay.result == ReplayStore.RESULT_X ? "X"
+                        : replay.result == ReplayStore.RESULT_O ? "O" : "HOA")
+                .append('|').append(moves.length).append('|');
+        if (winLine != null) {
+            for (int i = 0; i < winLine.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(winLine[i]);
+            }
+        }
+        client.sendMessage(sb.toString());
+        for (int from = 0; from < moves.length; from += REPLAY_CHUNK) {
+            sb.setLength(0);
+            sb.append("PHAT_LAI_NUOC|");
+            for (int i = from; i < Math.min(moves.length, from + REPLAY_CHUNK); i++) {
+                if (i > from) sb.append(',');
+                sb.append(moves[i]);
+            }
+            client.sendMessage(sb.toString());
+        }
+    }
+
+    // DANH|vị trí
+    private static void onMove(ClientHandler client, String message, int args) {
+        int position = WireProtocol.parseNonNegative(message, args, message.length());
+        if (position < 0) {
+            client.sendMessage("LOI|Nước đi không hợp lệ");
+            return;
+        }
+        playMove(client, position);
+    }
+
+    // CHAT|nội dung
+    private static void onChat(ClientHandler client, String message, int args) {
+        String text = message.substring(args).trim();
+        if (text.isEmpty()) {
+            client.sendMessage("LOI|Nội dung chat không hợp lệ");
+            return;
+        }
+        Room room = client.getCurrentRoom();
+        if (room != null) {
+            room.execute(() -> {
+                String sender;
+                Game g = room.getGame();
+                if (g != null) {
+                    sender = (client == g.getPlayer1()) ? "X" : "O";
+                } else {
+                    sender = client.getPlayerName();
                 }
-                return;
+                room.broadcastToPlayers("CHAT|" + sender + "|" + text);
+            });
+        }
+    }
+
+    // LAY_THU_HANG[|tên]: không kèm tên thì trả về hạng của chính người gửi
+    private static void onRank(ClientHandler client, String message, int args) {
+        String name = args < message.length() ? message.substring(args).trim() : "";
+        if (name.isEmpty()) {
+            name = client.getPlayerName();
+        }
+        client.sendMessage(LeaderboardManager.serializeRank(name));
+    }
+
+    // DANG_NHAP|biệt danh: kết quả và rating được ghi theo biệt danh thay vì địa chỉ IP. Mỗi biệt danh chỉ
+    // một kết nối còn sống được dùng; kết nối cũ đã đóng (rớt mạng, đang chờ TIEP_TUC) thì nhường lại.
+    // Không đổi tên khi đang ở trong phòng vì ván đang chơi sẽ được ghi theo tên lúc kết thúc.
+    private static void onLogin(ClientHandler client, String message, int args) {
+        String nick = message.substring(args).trim();
+        if (!validNickname(nick)) {
+            client.sendMessage("LOI|Biệt danh chỉ gồm chữ, số, '_' hoặc '-' (tối đa " + MAX_NICKNAME + " ký tự)");
+            return;
+        }
+        if (client.getCurrentRoom() != null) {
+            client.sendMessage("LOI|Không thể đổi biệt danh khi đang ở trong phòng");
+            return;
+        }
+        ClientHandler holder = players.compute(nick,
+                (k, current) -> current == null || current == client || current.isClosed() ? client : current);
+        if (holder != client) {
+            client.sendMessage("LOI|Biệt danh đang được dùng");
+            return;
+        }
+        String previous = client.getPlayerId();
+        if (previous != null && !previous.equals(nick)) {
+            players.remove(previous, client);
+        }
+        client.setPlayerId(nick);
+        client.sendMessage("DA_DANG_NHAP|" + nick + "|" + LeaderboardManager.ratingOf(nick));
+    }
+
+    private static boolean validNickname(String nick) {
+        if (nick.isEmpty() || nick.length() > MAX_NICKNAME || nick.equals(BotPlayer.NAME)) {
+            return false;
+        }
+        for (int i = 0; i < nick.length(); i++) {
+            char c = nick.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '-')) {
+                return false;
             }
+        }
+        return true;
+    }
+
+    // GHEP_TRAN[|kích thước]: vào hàng chờ ghép trận (mặc định 3x3). Người chờ không cần cập nhật
+    // danh sách phòng nên được gỡ khỏi kênh lobby.
+    private static void onMatch(ClientHandler client, String message, int args) {
+        int size = freeClientBoardSize(client, message, args);
+        if (size < 0) {
+            return;
+        }
+        lobby.unsubscribe(client);
+        matchmaker.enqueue(client, size);
+        client.sendMessage("DANG_GHEP|" + size);
+    }
+
+    // CHOI_VOI_MAY[|kích thước]: chơi ngay với máy (mặc định 3x3), bỏ vé ghép trận nếu đang chờ
+    private static void onPlayBot(ClientHandler client, String message, int args) {
+        int size = freeClientBoardSize(client, message, args);
+        if (size < 0) {
+            return;
+        }
+        matchmaker.cancel(client);
+        startBotGame(client, size);
+    }
+
+    // Kích thước bàn cờ tùy chọn của GHEP_TRAN/CHOI_VOI_MAY (mặc định 3) cho một client chưa ở phòng
+    // nào; -1 sau khi đã báo lỗi
+    private static int freeClientBoardSize(ClientHandler client, String message, int args) {
+        int size = 3;
+        if (args < message.length()) {
+            size = WireProtocol.parseNonNegative(message, args, message.length());
+        }
+        if (size < 3 || size > MAX_BOARD_SIZE) {
+            client.sendMessage("LOI|Kích thước bàn cờ không hợp lệ");
+            return -1;
+        }
+        if (client.getCurrentRoom() != null) {
+            client.sendMessage("LOI|Bạn đang ở trong phòng");
+            return -1;
+        }
+        return size;
+    }
 
-            if (message.equals("LAY_BANG_XEP_HANG")) {
-                String payload = LeaderboardManager.serializeTopN(20);
-                client.sendMessage(payload);
+    // TIEP_TUC|mã: kết nối mới lấy lại ghế của một phiên đang được giữ, nhận KHOI_PHUC với ảnh chụp
+    // bàn cờ và lượt đi hiện tại thay vì phát lại các tin nhắn đã lỡ
+    private static void onResume(ClientHandler client, String message, int args) {
+        SessionStore.Parked parked = client.getCurrentRoom() == null ? sessions.claim(message.substring(args).trim()) : null;
+        if (parked == null) {
+            client.sendMessage("LOI|Phiên chơi đã hết hạn");
+            client.sendMessage("VE_TRANG_CHU");
+            return;
+        }
+        Room room = parked.room;
+        LOBBY_LOCK.lock();
+        try {
+            if (!room.hasPlayer(parked.client)) {
+                client.sendMessage("LOI|Phiên chơi đã hết hạn");
+                client.sendMessage("VE_TRANG_CHU");
                 return;
             }
+            room.replacePlayer(parked.client, client);
+            client.setCurrentRoom(room);
+            client.setSessionToken(parked.client.getSessionToken());
+            // Ghế giữ lại mang biệt danh của kết nối cũ: ván tiếp tục được ghi theo tên đó
+            String playerId = parked.client.getPlayerId();
+            if (playerId != null) {
+                client.setPlayerId(playerId);
+                players.put(playerId, client);
+            }
+            lobby.unsubscribe(client);
+        } finally {
+            LOBBY_LOCK.unlock();
+        }
+        room.execute(() -> {
+            Game game = room.getGame();
+            if (game == null || !game.resumePlayer(parked.client, client)) {
+                // Ván đã bị hủy trong lúc chờ: không có gì để khôi phục, trả ghế và về màn hình chính
+                leaveRoom(client, room);
+                client.setCurrentRoom(null);
+                client.sendMessage("LOI|Ván đấu đã kết thúc");
+                client.sendMessage("VE_TRANG_CHU");
+            }
+        });
+    }
 
-            // Unknown message
-            client.sendMessage("LOI|Thông điệp không được hỗ trợ");
+    // Chế độ cụm: phòng thuộc node khác thì báo client CHUYEN_MAY|host|port|lệnh gốc để nó kết nối
+    // tới node đó và gửi lại đúng lệnh này
+    private static boolean redirectIfRemote(ClientHandler client, String node, String message) {
+        if (node == null || node.equals(cluster.self())) {
+            return false;
+        }
+        int colon = node.lastIndexOf(':');
+        client.sendMessage("CHUYEN_MAY|" + node.substring(0, colon) + "|" + node.substring(colon + 1) + "|" + message);
+        return true;
+    }
+
+    // Vị trí dấu '|' kế tiếp từ from, hoặc độ dài dòng
+    private static int fieldEnd(String message, int from) {
+        int bar = message.indexOf('|', from);
+        return bar < 0 ? message.length() : bar;
+    }
+
+    // Khung nhị phân (sau khi đã thỏa thuận NHI_PHAN): nước đi và chơi lại được xử lý trực tiếp,
+    // các lệnh khác nằm trong khung TEXT và đi qua handleClientMessage như bình thường
+    static void handleClientFrame(ClientHandler client, WireProtocol.Frame frame) {
+        try {
+            switch (frame.opcode()) {
+                case WireProtocol.DANH: {
+                    long start = System.nanoTime();
+                    playMove(client, frame.readVarint());
+                    ServerMetrics.recordCommand(Command.DANH, start);
+                    return;
+                }
+                case WireProtocol.CHOI_LAI: {
+                    long start = System.nanoTime();
+                    playAgain(client);
+                    ServerMetrics.recordCommand(Command.CHOI_LAI, start);
+                    return;
+                }
+                case WireProtocol.TEXT:
+                    handleClientMessage(client, frame.readText());
+                    return;
+                default:
+                    client.sendMessage("LOI|Thông điệp không được hỗ trợ");
+            }
         } catch (Exception ex) {
             client.sendMessage("LOI|Lỗi xử lý thông điệp");
         }
     }
+
+    private static void playMove(ClientHandler client, int position) {
+        Room room = client.getCurrentRoom();
+        if (room != null) {
+            room.execute(() -> {
+                Game game = room.getGame();
+                if (game != null) {
+                    game.makeMove(client, position);
+                }
+            });
+        }
+    }
+
+    private static void playAgain(ClientHandler client) {
+        Room room = client.getCurrentRoom();
+        if (room != null) {
+            room.execute(room::resetGame);
+        }
+    }
 }
 
 class Game {
-    private final ClientHandler player1; // Luôn là X
-    private final ClientHandler player2; // Luôn là O
+    private final Room room; // null khi chạy ngoài phòng (benchmark); dùng để phát tin cho người xem
+    private ClientHandler player1; // Luôn là X
+    private ClientHandler player2; // Luôn là O
     private ClientHandler currentPlayer; // Người chơi đang đến lượt
-    private final String[] board;
+    private final BitBoard board;
     private final int size;
     private final int targetRun;
-    private boolean gameEnded;
+    private volatile boolean gameEnded; // đọc từ ngoài hộp thư khi quyết định giữ phiên
+    private boolean counted; // đang được tính trong ServerMetrics.activeGames
     private int[] lastWinLine = null; // winning line positions
+    // Nhật ký nước đi của ván hiện tại (vị trí mã hóa varint, xem ReplayStore) và bên đi trước
+    private byte[] moveLog = new byte[16];
+    private int moveLogLength;
+    private boolean oFirst;
 
     public Game(ClientHandler player1, ClientHandler player2, int size) {
+        this(null, player1, player2, size);
+    }
+
+    public Game(Room room, ClientHandler player1, ClientHandler player2, int size) {
+        this.room = room;
         this.player1 = player1;
         this.player2 = player2;
         this.size = size <= 0 ? 3 : size;
         this.targetRun = (this.size == 3) ? 3 : 5;
-        this.board = new String[this.size * this.size];
-        Arrays.fill(board, "");
+        this.board = new BitBoard(this.size);
         this.gameEnded = false;
     }
 
@@ -242,13 +823,23 @@ class Game {
     }
 
     public void start() {
+        ServerMetrics.gamesStarted.increment();
+        if (!counted) {
+            counted = true;
+            ServerMetrics.activeGames.incrementAndGet();
+        }
         // Player1 luôn là X, Player2 luôn là O
         player1.sendMessage("BAT_DAU|X|" + size);
         player2.sendMessage("BAT_DAU|O|" + size);
+        if (room != null && room.hasSpectators()) {
+            room.broadcastToSpectators(room.spectatorView()); // ván mới: bàn cờ trống
+        }
 
         // Random chọn X hay O đi trước (dùng nanoTime để đảm bảo ngẫu nhiên)
         Random random = new Random(System.nanoTime());
         boolean xGoesFirst = random.nextBoolean();
+        oFirst = !xGoesFirst;
+        moveLogLength = 0;
 
         if (xGoesFirst) {
             // X đi trước (player1)
@@ -265,8 +856,9 @@ class Game {
         }
     }
 
-    public synchronized void makeMove(ClientHandler player, int position) {
-        if (gameEnded || position < 0 || position >= board.length || !board[position].isEmpty()) {
+    // Chỉ được gọi từ hộp thư của phòng nên không cần khóa
+    public void makeMove(ClientHandler player, int position) {
+        if (gameEnded || position < 0 || position >= board.cells() || !board.isEmpty(position)) {
             return;
         }
 
@@ -277,14 +869,19 @@ class Game {
 
         // Player1 luôn là X, Player2 luôn là O
         String symbol = (player == player1) ? "X" : "O";
-        board[position] = symbol;
+        int stone = (player == player1) ? BitBoard.X : BitBoard.O;
+        board.set(position, stone);
+        ServerMetrics.moves.increment();
+        logMove(position);
 
         // Thông báo nước đi cho cả hai người chơi
         broadcastMove(position, symbol);
 
-        if (checkWin(symbol)) {
+        // Chỉ xét bốn đường đi qua ô vừa đánh: O(targetRun) mỗi nước, không phụ thuộc kích thước bàn cờ
+        lastWinLine = board.winLineThrough(position, stone, targetRun);
+        if (lastWinLine != null) {
             endGame(symbol);
-        } else if (isBoardFull()) {
+        } else if (board.isFull()) {
             endGame("HOA");
         } else {
             // Đổi lượt
@@ -300,109 +897,45 @@ class Game {
         }
     }
 
+    private void logMove(int position) {
+        if (moveLogLength + 5 > moveLog.length) {
+            moveLog = Arrays.copyOf(moveLog, moveLog.length * 2);
+        }
+        moveLogLength = WireProtocol.putVarint(moveLog, moveLogLength, position);
+    }
+
     private void broadcastMove(int position, String symbol) {
         String message = "DANH|" + position + "|" + symbol;
         player1.sendMessage(message);
         player2.sendMessage(message);
+        toSpectators(message);
     }
 
-    private boolean checkWin(String symbol) {
-        // Horizontal
-        for (int r = 0; r < size; r++) {
-            int count = 0;
-            for (int c = 0; c < size; c++) {
-                int idx = r * size + c;
-                if (board[idx].equals(symbol)) {
-                    count++;
-                    if (count >= targetRun) {
-                        lastWinLine = new int[targetRun];
-                        for (int k = 0; k < targetRun; k++) {
-                            lastWinLine[k] = r * size + (c - targetRun + 1 + k);
-                        }
-                        return true;
-                    }
-                } else {
-                    count = 0;
-                }
-            }
-        }
-        // Vertical
-        for (int c = 0; c < size; c++) {
-            int count = 0;
-            for (int r = 0; r < size; r++) {
-                int idx = r * size + c;
-                if (board[idx].equals(symbol)) {
-                    count++;
-                    if (count >= targetRun) {
-                        lastWinLine = new int[targetRun];
-                        for (int k = 0; k < targetRun; k++) {
-                            lastWinLine[k] = (r - targetRun + 1 + k) * size + c;
-                        }
-                        return true;
-                    }
-                } else {
-                    count = 0;
-                }
-            }
-        }
-        // Diagonal down-right
-        for (int r = 0; r <= size - targetRun; r++) {
-            for (int c = 0; c <= size - targetRun; c++) {
-                boolean ok = true;
-                for (int k = 0; k < targetRun; k++) {
-                    int idx = (r + k) * size + (c + k);
-                    if (!board[idx].equals(symbol)) {
-                        ok = false;
-                        break;
-                    }
-                }
-                if (ok) {
-                    lastWinLine = new int[targetRun];
-                    for (int k = 0; k < targetRun; k++) {
-                        lastWinLine[k] = (r + k) * size + (c + k);
-                    }
-                    return true;
-                }
-            }
-        }
-        // Diagonal up-right
-        for (int r = targetRun - 1; r < size; r++) {
-            for (int c = 0; c <= size - targetRun; c++) {
-                boolean ok = true;
-                for (int k = 0; k < targetRun; k++) {
-                    int idx = (r - k) * size + (c + k);
-                    if (!board[idx].equals(symbol)) {
-                        ok = false;
-                        break;
-                    }
-                }
-                if (ok) {
-                    lastWinLine = new int[targetRun];
-                    for (int k = 0; k < targetRun; k++) {
-                        lastWinLine[k] = (r - k) * size + (c + k);
-                    }
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
-
-    private boolean isBoardFull() {
-        for (String cell : board) {
-            if (cell.isEmpty()) {
-                return false;
-            }
-        }
-        return true;
+    // Ảnh chụp gọn của bàn cờ hiện tại (xem BitBoard.toSnapshot)
+    public byte[] exportBoard() {
+        return board.toSnapshot();
     }
 
     private void endGame(String result) {
         gameEnded = true;
+        uncount();
+        // Lưu ván (chỉ ván trong phòng, không lưu ván của benchmark) và báo mã ván trước KET_THUC
+        if (room != null && TicTacToeServer.replays != null) {
+            long id = TicTacToeServer.replays.append(size, oFirst,
+                    result.equals("X") ? ReplayStore.RESULT_X
+                            : result.equals("O") ? ReplayStore.RESULT_O : ReplayStore.RESULT_DRAW,
+                    player1.getPlayerName(), player2.getPlayerName(), moveLog, moveLogLength);
+            if (id > 0) {
+                String saved = "MA_VAN|" + id;
+                player1.sendMessage(saved);
+                player2.sendMessage(saved);
+            }
+        }
         // Inform clients about end and winning line if any
         String message = "KET_THUC|" + result;
         player1.sendMessage(message);
         player2.sendMessage(message);
+        toSpectators(message);
 
         // Highlight line (variable length)
         if (lastWinLine != null && lastWinLine.length > 0) {
@@ -414,30 +947,64 @@ class Game {
             String highlight = sb.toString();
             player1.sendMessage(highlight);
             player2.sendMessage(highlight);
+            toSpectators(highlight);
+        }
+
+        // Update leaderboard (thắng/thua/hòa và Elo) theo biệt danh, hoặc IP với khách chưa đăng nhập;
+        // việc ghi xuống đĩa do luồng nhật ký làm sau. Ván với máy không được tính.
+        if (player1.isBot() || player2.isBot()) {
+            return;
+        }
+        String name1 = player1.getPlayerName();
+        String name2 = player2.getPlayerName();
+        LeaderboardManager.recordGame(result, name1, name2);
+    }
+
+    // Sau khi hai người chơi đã nhận tin: người xem nhận bản mã hóa dùng chung, qua fanout của phòng
+    private void toSpectators(String message) {
+        if (room != null) {
+            room.broadcastToSpectators(message);
+        }
+    }
+
+    public boolean isEnded() {
+        return gameEnded;
+    }
+
+    // Người chơi rớt mạng và đang được giữ ghế; ván vẫn tiếp tục, đối thủ được báo thời gian chờ
+    public void handlePlayerAway(ClientHandler player, long graceSeconds) {
+        if (!gameEnded) {
+            ClientHandler otherPlayer = (player == player1) ? player2 : player1;
+            otherPlayer.sendMessage("DOI_THU_MAT_KET_NOI|" + graceSeconds);
         }
+    }
 
-        // Update leaderboard by client IPs
-        String name1 = player1.getSocket().getInetAddress().getHostAddress();
-        String name2 = player2.getSocket().getInetAddress().getHostAddress();
-        if ("HOA".equals(result)) {
-            LeaderboardManager.recordDraw(name1);
-            LeaderboardManager.recordDraw(name2);
-        } else if ("X".equals(result)) {
-            // player of symbol X is player1
-            LeaderboardManager.recordWin(name1);
-            LeaderboardManager.recordLoss(name2);
-        } else if ("O".equals(result)) {
-            // player2
-            LeaderboardManager.recordWin(name2);
-            LeaderboardManager.recordLoss(name1);
+    // Kết nối mới thay cho kết nối đã rớt: KHOI_PHUC|ký hiệu|kích thước|1 nếu tới lượt|bàn cờ
+    // (ảnh chụp BitBoard mã hóa base64, 2 bit mỗi ô). false nếu old không chơi ván này.
+    public boolean resumePlayer(ClientHandler old, ClientHandler player) {
+        if (old == player1) {
+            player1 = player;
+        } else if (old == player2) {
+            player2 = player;
+        } else {
+            return false;
         }
-        LeaderboardManager.persist();
+        if (currentPlayer == old) {
+            currentPlayer = player;
+        }
+        String symbol = (player == player1) ? "X" : "O";
+        boolean myTurn = !gameEnded && currentPlayer == player;
+        player.sendMessage("KHOI_PHUC|" + symbol + "|" + size + "|" + (myTurn ? 1 : 0) + "|"
+                + Base64.getEncoder().encodeToString(board.toSnapshot()));
+        ((player == player1) ? player2 : player1).sendMessage("DOI_THU_TRO_LAI");
+        return true;
     }
 
     public void handlePlayerDisconnect(ClientHandler player) {
         System.out.println("handlePlayerDisconnect được gọi cho player: " + player);
         if (!gameEnded) {
             gameEnded = true;
+            uncount();
             // Thông báo cho người chơi còn lại
             ClientHandler otherPlayer = (player == player1) ? player2 : player1;
             if (otherPlayer != null) {
@@ -446,34 +1013,113 @@ class Game {
         }
     }
 
+    private void uncount() {
+        if (counted) {
+            counted = false;
+            ServerMetrics.activeGames.decrementAndGet();
+        }
+    }
+
     public void resetGame() {
-        Arrays.fill(board, "");
+        board.clear();
+        lastWinLine = null;
         gameEnded = false;
         start();
     }
 }
 
+// Kết nối của một người chơi. Bản thân lớp này là engine chặn (một luồng đọc cho mỗi socket);
+// các engine khác như NioClientHandler kế thừa và ghi đè phần gửi/nhận.
+//
+// sendMessage không ghi trực tiếp lên socket mà đưa dòng vào hàng đợi gửi có giới hạn của client.
+// Một tác vụ ghi sẽ xả hết các dòng đang chờ rồi flush một lần, nên luồng gọi (hộp thư phòng,
+// khóa lobby) không bao giờ bị chặn bởi một client có bộ đệm TCP đầy.
 class ClientHandler {
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
-    private Room currentRoom;
+    // Quá ngưỡng này các cập nhật lobby bị bỏ qua; quá sức chứa thì client bị ngắt kết nối
+    private static final int LOBBY_DROP_THRESHOLD = 64;
+    private static final int OUTBOUND_CAPACITY = 512;
+    // Người xem có hàng đợi gửi dài hơn ngưỡng này bị dừng xem (xem sendShared)
+    private static final int SPECTATOR_DROP_THRESHOLD = 128;
+
+    private static ThreadFactory threadFactory = r -> {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        return t;
+    };
+    // Các tác vụ ghi của engine chặn; có thể bị chặn lâu nên dùng pool không giới hạn
+    private static Executor writerExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "client-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final AtomicInteger activeReaders = new AtomicInteger();
+    // Các client đã nhận tin trong tác vụ gộp hiện tại của luồng này (xem runBatched)
+    private static final ThreadLocal<Set<ClientHandler>> batch = new ThreadLocal<>();
+
+    private final Socket socket;
+    private OutputStream out;
+    private WireProtocol.Reader in;
+    private volatile Room currentRoom;
+    private volatile String sessionToken; // mã phiên đã cấp khi vào phòng, dùng cho TIEP_TUC
+    private Matchmaker.Ticket ticket; // vé ghép trận đang chờ, chỉ truy cập dưới khóa của Matchmaker
+    private volatile Room watching; // phòng đang xem (XEM_PHONG), không chiếm ghế
+    private volatile String playerId; // biệt danh đã đăng nhập (DANG_NHAP), null với khách
+    // String (mã hóa lúc ghi) hoặc WireProtocol.Shared (đã mã hóa sẵn, dùng chung cho nhiều người nhận)
+    private final Queue<Object> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger outboundSize = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // Chế độ nhị phân (xem WireProtocol): binaryIn chỉ do luồng đọc chạm tới, binaryOut chỉ do tác vụ
+    // ghi, nên mỗi chiều tự chuyển đúng tại ranh giới của nó
+    private boolean binaryIn;
+    private boolean binaryOut;
 
     public ClientHandler(Socket socket) {
         this.socket = socket;
         try {
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new WireProtocol.Reader(socket.getInputStream());
             startMessageHandler();
         } catch (IOException e) {
             System.err.println("Lỗi khởi tạo client handler: " + e.getMessage());
         }
     }
 
+    // Dành cho các engine tự quản lý kênh truyền (không có socket chặn)
+    protected ClientHandler() {
+        this.socket = null;
+    }
+
+    // Thay đổi cách tạo luồng đọc/ghi cho các kết nối mới (ví dụ: luồng ảo)
+    static void setThreadFactory(ThreadFactory factory) {
+        threadFactory = factory;
+        writerExecutor = r -> factory.newThread(r).start();
+    }
+
+    static int activeReaderCount() {
+        return activeReaders.get();
+    }
+
+    // Chạy task và hoãn việc xả hàng đợi gửi tới cuối task, để một loạt tin nhắn liên tiếp
+    // (ví dụ DANH + KET_THUC + HIGHLIGHT khi kết thúc ván) đi ra trong một lần ghi.
+    static void runBatched(Runnable task) {
+        if (batch.get() != null) {
+            task.run();
+            return;
+        }
+        Set<ClientHandler> touched = new HashSet<>();
+        batch.set(touched);
+        try {
+            task.run();
+        } finally {
+            batch.remove();
+            for (ClientHandler client : touched) {
+                client.requestFlush();
+            }
+        }
+    }
+
     private void startMessageHandler() {
-        Thread messageThread = new Thread(this::handleMessages);
-        messageThread.setDaemon(true);
-        messageThread.start();
+        threadFactory.newThread(this::handleMessages).start();
     }
 
     public void setCurrentRoom(Room room) {
@@ -484,130 +1130,217 @@ class ClientHandler {
         return currentRoom;
     }
 
+    void setSessionToken(String token) {
+        this.sessionToken = token;
+    }
+
+    String getSessionToken() {
+        return sessionToken;
+    }
+
+    void setPlayerId(String playerId) {
+        this.playerId = playerId;
+    }
+
+    String getPlayerId() {
+        return playerId;
+    }
+
+    // Tên dùng cho bảng xếp hạng, ván lưu và chat: biệt danh nếu đã đăng nhập, ngược lại là địa chỉ IP
+    String getPlayerName() {
+        String id = playerId;
+        return id != null ? id : getRemoteAddress();
+    }
+
+    void setTicket(Matchmaker.Ticket ticket) {
+        this.ticket = ticket;
+    }
+
+    Matchmaker.Ticket getTicket() {
+        return ticket;
+    }
+
+    void setWatching(Room room) {
+        this.watching = room;
+    }
+
+    Room getWatching() {
+        return watching;
+    }
+
+    // Người chơi máy (BotPlayer) ghi đè thành true
+    boolean isBot() {
+        return false;
+    }
+
     public void sendMessage(String message) {
-        try {
-            if (out != null && !socket.isClosed() && !socket.isOutputShutdown()) {
-                out.println(message);
-                out.flush(); // Đảm bảo message được gửi ngay
-            } else {
-                System.err.println("Không thể gửi message - socket đã đóng hoặc output đã shutdown");
-            }
-        } catch (Exception e) {
-            System.err.println("Lỗi khi gửi message: " + e.getMessage());
+        if (isClosed()) {
+            return;
+        }
+        if (outboundSize.get() >= LOBBY_DROP_THRESHOLD
+                && (message.startsWith("CAP_NHAT_PHONG") || message.startsWith("DANH_SACH_PHONG"))) {
+            ServerMetrics.lobbyDropped.increment();
+            return; // client đang chậm: nó sẽ thấy lỗ hổng phiên bản và tự xin lại danh sách
         }
+        if (outboundSize.incrementAndGet() > OUTBOUND_CAPACITY) {
+            outboundSize.decrementAndGet();
+            ServerMetrics.slowDisconnects.increment();
+            System.err.println("Client quá chậm, ngắt kết nối: " + getRemoteAddress());
+            disconnect();
+            return;
+        }
+        enqueue(message);
     }
 
-    public boolean isClosed() {
-        return socket.isClosed();
+    // Tin cho người xem: các byte đã được mã hóa một lần cho mọi người nhận. Trả về false nếu người
+    // nhận đã đóng hoặc đang chậm (hàng đợi gửi quá SPECTATOR_DROP_THRESHOLD); khi đó tin không được
+    // đưa vào hàng đợi và phòng dừng gửi cho người này.
+    boolean sendShared(WireProtocol.Shared message) {
+        if (isClosed() || outboundSize.get() >= SPECTATOR_DROP_THRESHOLD) {
+            return false;
+        }
+        outboundSize.incrementAndGet();
+        enqueue(message);
+        return true;
     }
 
-    public Socket getSocket() {
-        return socket;
+    private void enqueue(Object message) {
+        outbound.add(message);
+
+        Set<ClientHandler> pending = batch.get();
+        if (pending != null) {
+            pending.add(this);
+        } else {
+            requestFlush();
+        }
     }
 
-    private void handleMessages() {
-        try {
-            String message;
-            while ((message = in.readLine()) != null) {
-                TicTacToeServer.handleClientMessage(this, message);
-            }
-        } catch (IOException e) {
-            System.out.println("Client ngắt kết nối: " + socket.getInetAddress());
-            Room room = getCurrentRoom();
-            if (room != null) {
-                TicTacToeServer.removeClient(this, room);
-            } else {
-                TicTacToeServer.removeClient(this, null);
-            }
-        } finally {
-            try {
-                if (!socket.isClosed()) {
-                    socket.close();
-                }
-            } catch (IOException e) {
-                System.err.println("Lỗi khi đóng socket: " + e.getMessage());
-            }
+    // Client vừa gửi NHI_PHAN: trả lời bằng văn bản rồi chuyển cả hai chiều sang khung nhị phân.
+    // Chỉ gọi từ luồng đọc của client.
+    void enableBinary() {
+        if (binaryIn) {
+            return;
         }
+        sendMessage(WireProtocol.ACK);
+        binaryIn = true;
     }
-}
 
-// Simple leaderboard manager: keeps win/loss/draw counts per display name and persists to a CSV file.
-class LeaderboardManager {
-    private static final Map<String, Stats> table = new ConcurrentHashMap<>();
-    private static final File file = new File("leaderboard.csv");
+    protected final boolean binaryInput() {
+        return binaryIn;
+    }
 
-    static {
-        load();
+    // Byte sẽ được ghi ra cho một tin nhắn vừa lấy khỏi hàng đợi. Chỉ gọi từ tác vụ ghi.
+    protected final byte[] encodeOutbound(Object message) {
+        if (message instanceof WireProtocol.Shared) {
+            WireProtocol.Shared shared = (WireProtocol.Shared) message;
+            return binaryOut ? shared.frame : shared.line;
+        }
+        if (binaryOut) {
+            return WireProtocol.encode((String) message);
+        }
+        // So sánh đúng đối tượng: chỉ câu trả lời do enableBinary đưa vào hàng đợi mới chuyển chế độ
+        if (message == WireProtocol.ACK) {
+            binaryOut = true;
+        }
+        return (message + "\n").getBytes(StandardCharsets.UTF_8);
     }
 
-    public static void recordWin(String name) {
-        table.computeIfAbsent(name, k -> new Stats()).wins++;
+    // Số dòng đang chờ gửi
+    public int outboundDepth() {
+        return outboundSize.get();
     }
 
-    public static void recordLoss(String name) {
-        table.computeIfAbsent(name, k -> new Stats()).losses++;
+    protected final Object pollOutbound() {
+        Object message = outbound.poll();
+        if (message != null) {
+            outboundSize.decrementAndGet();
+        }
+        return message;
     }
 
-    public static void recordDraw(String name) {
-        table.computeIfAbsent(name, k -> new Stats()).draws++;
+    private void requestFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            scheduleFlush();
+        }
     }
 
-    public static synchronized void persist() {
-        try (PrintWriter pw = new PrintWriter(new FileWriter(file, false))) {
-            pw.println("name,wins,losses,draws");
-            for (Map.Entry<String, Stats> e : table.entrySet()) {
-                Stats s = e.getValue();
-                // escape commas by replacing with spaces for simplicity
-                String safeName = e.getKey().replace(",", " ");
-                pw.println(safeName + "," + s.wins + "," + s.losses + "," + s.draws);
-            }
-        } catch (IOException ex) {
-            System.err.println("Không thể lưu leaderboard: " + ex.getMessage());
+    // Được gọi khi hàng đợi gửi vừa có dữ liệu và chưa có tác vụ ghi nào đang chờ
+    protected void scheduleFlush() {
+        writerExecutor.execute(this::flushOutbound);
+    }
+
+    // Engine gọi sau khi đã xả hết hàng đợi; lên lịch lại nếu có tin mới đến trong lúc xả
+    protected final void flushDone() {
+        flushScheduled.set(false);
+        if (!outbound.isEmpty()) {
+            requestFlush();
         }
     }
 
-    private static synchronized void load() {
-        if (!file.exists()) return;
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line = br.readLine(); // header
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split(",", -1);
-                if (parts.length < 4) continue;
-                String name = parts[0];
-                Stats s = new Stats();
-                try {
-                    s.wins = Integer.parseInt(parts[1]);
-                    s.losses = Integer.parseInt(parts[2]);
-                    s.draws = Integer.parseInt(parts[3]);
-                } catch (NumberFormatException ignored) {}
-                table.put(name, s);
+    private void flushOutbound() {
+        try {
+            Object message;
+            while ((message = pollOutbound()) != null) {
+                out.write(encodeOutbound(message));
             }
-        } catch (IOException ex) {
-            System.err.println("Không thể đọc leaderboard: " + ex.getMessage());
+            out.flush(); // một lần flush cho cả loạt tin
+        } catch (IOException e) {
+            System.err.println("Lỗi khi gửi message: " + e.getMessage());
+            disconnect();
+        } finally {
+            flushDone();
         }
     }
 
-    public static String serializeTopN(int n) {
-        // Returns LEADERBOARD|name|wins|losses|draws|name|...
-        List<Map.Entry<String, Stats>> entries = new ArrayList<>(table.entrySet());
-        entries.sort((a, b) -> Integer.compare(score(b.getValue()), score(a.getValue())));
-        StringBuilder sb = new StringBuilder("LEADERBOARD");
-        int count = 0;
-        for (Map.Entry<String, Stats> e : entries) {
-            if (count++ >= n) break;
-            Stats s = e.getValue();
-            sb.append("|").append(e.getKey()).append("|").append(s.wins).append("|").append(s.losses).append("|").append(s.draws);
+    // Đóng kết nối; luồng đọc sẽ thấy socket đóng và gọi removeClient
+    protected void disconnect() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Lỗi khi đóng socket: " + e.getMessage());
         }
-        return sb.toString();
     }
 
-    private static int score(Stats s) {
-        return s.wins * 3 + s.draws; // simple scoring
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    // Địa chỉ IP của client, dùng làm tên của khách chưa đăng nhập (xem getPlayerName)
+    public String getRemoteAddress() {
+        return socket.getInetAddress().getHostAddress();
     }
 
-    private static class Stats {
-        int wins = 0;
-        int losses = 0;
-        int draws = 0;
+    private void handleMessages() {
+        activeReaders.incrementAndGet();
+        try {
+            while (true) {
+                if (binaryIn) {
+                    WireProtocol.Frame frame = in.readFrame();
+                    if (frame == null) {
+                        break;
+                    }
+                    TicTacToeServer.handleClientFrame(this, frame);
+                } else {
+                    String message = in.readLine();
+                    if (message == null) {
+                        break;
+                    }
+                    TicTacToeServer.handleClientMessage(this, message);
+                }
+            }
+        } catch (IOException e) {
+            // Ném lỗi khi client bị ngắt đột ngột hoặc gửi dữ liệu sai khung; xử lý chung với EOF bên dưới
+        } finally {
+            System.out.println("Client ngắt kết nối: " + socket.getInetAddress());
+            TicTacToeServer.removeClient(this, getCurrentRoom());
+            activeReaders.decrementAndGet();
+            try {
+                if (!socket.isClosed()) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Lỗi khi đóng socket: " + e.getMessage());
+            }
+        }
     }
 }
@@ -0,0 +1,68 @@
+package main;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bảng chuyển vị dùng chung cho mọi luồng tìm kiếm của AiEngine: mỗi ô giữ khóa Zobrist của thế cờ và
+// một long đóng gói điểm (32 bit) | nước tốt nhất (16 bit) | độ sâu (8 bit) | loại cận (2 bit) | bit hợp lệ.
+//
+// Không khóa: mỗi ô là hai long liền nhau (khóa XOR dữ liệu, dữ liệu). Hai luồng ghi đè cùng một ô có
+// thể để lại nửa của mỗi bên, nhưng khi đó khóa XOR dữ liệu không còn khớp với khóa nào nên lần đọc
+// sau coi như trượt thay vì đọc nhầm kết quả của thế cờ khác.
+//
+// Kích thước cố định, ghi đè luôn ô cũ (always-replace): đơn giản và đủ tốt cho đào sâu dần, vì các
+// thế cờ của lần đào sâu trước chính là thứ cần giữ để sắp nước cho lần sau.
+final class TranspositionTable {
+    static final int EXACT = 0;
+    static final int LOWER = 1; // điểm thật >= score (cắt beta)
+    static final int UPPER = 2; // điểm thật <= score (không nước nào vượt alpha)
+
+    private final AtomicLongArray entries;
+    private final int mask;
+
+    TranspositionTable(int bits) {
+        entries = new AtomicLongArray(2 << bits);
+        mask = (1 << bits) - 1;
+    }
+
+    // Dữ liệu đóng gói của thế cờ, 0 nếu không có
+    long probe(long key) {
+        int i = ((int) key & mask) << 1;
+        long data = entries.getOpaque(i + 1);
+        return (entries.getOpaque(i) ^ data) == key ? data : 0;
+    }
+
+    void store(long key, int score, int move, int depth, int flag) {
+        int i = ((int) key & mask) << 1;
+        long data = pack(score, move, depth, flag);
+        entries.setOpaque(i, key ^ data);
+        entries.setOpaque(i + 1, data);
+    }
+
+    void clear() {
+        for (int i = 0; i < entries.length(); i++) {
+            entries.setOpaque(i, 0);
+        }
+    }
+
+    static long pack(int score, int move, int depth, int flag) {
+        return ((long) score << 32) | ((long) (move & 0xFFFF) << 16) | ((long) (depth & 0xFF) << 8) | (flag << 1) | 1L;
+    }
+
+    static int score(long entry) {
+        return (int) (entry >> 32);
+    }
+
+    // -1 nếu thế cờ không có nước đi được lưu
+    static int move(long entry) {
+        int move = (int) ((entry >>> 16) & 0xFFFF);
+        return move == 0xFFFF ? -1 : move;
+    }
+
+    static int depth(long entry) {
+        return (int) ((entry >>> 8) & 0xFF);
+    }
+
+    static int flag(long entry) {
+        return (int) ((entry >>> 1) & 3);
+    }
+}
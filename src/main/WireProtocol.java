@@ -0,0 +1,381 @@
+package main;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Giao thức nhị phân dùng song song với giao thức dòng văn bản "LENH|a|b".
+//
+// Kết nối luôn bắt đầu ở chế độ văn bản. Client gửi dòng NHI_PHAN; máy chủ hỗ trợ sẽ trả về dòng
+// NHI_PHAN|OK và từ đó cả hai chiều chuyển sang khung nhị phân (client đã gửi NHI_PHAN thì không gửi
+// gì thêm cho đến khi nhận được câu trả lời). Máy chủ cũ trả về LOI|... và client tiếp tục dùng văn bản.
+//
+// Khung: [độ dài varint][opcode 1 byte][dữ liệu], độ dài tính cả opcode. Số nguyên không âm được
+// mã hóa varint (7 bit mỗi byte, byte thấp trước). Các tin nhắn thường gặp trong ván đấu có opcode
+// riêng; mọi tin nhắn khác đi trong khung TEXT chứa nguyên dòng văn bản UTF-8.
+final class WireProtocol {
+    static final String NEGOTIATE = "NHI_PHAN";
+    static final String ACK = "NHI_PHAN|OK";
+
+    // Cùng giới hạn với một dòng văn bản bên engine NIO
+    static final int MAX_FRAME_LENGTH = 8 * 1024;
+
+    static final int TEXT = 0;         // dòng văn bản UTF-8
+    static final int DANH = 1;         // client -> server: vị trí; server -> client: vị trí, ký hiệu
+    static final int LUOT_CUA_BAN = 2;
+    static final int LUOT_DOI_THU = 3;
+    static final int KET_THUC = 4;     // kết quả
+    static final int HIGHLIGHT = 5;    // số ô, rồi từng vị trí
+    static final int BAT_DAU = 6;      // ký hiệu, kích thước bàn cờ
+    static final int CHOI_LAI = 7;
+
+    // Mã ký hiệu trùng với BitBoard.X / BitBoard.O; kết quả hòa dùng mã 3
+    static final int SYMBOL_X = BitBoard.X;
+    static final int SYMBOL_O = BitBoard.O;
+    static final int RESULT_HOA = 3;
+
+    // Các khung không có dữ liệu được dùng chung, không bao giờ bị sửa
+    private static final byte[] YOUR_TURN_FRAME = {1, LUOT_CUA_BAN};
+    private static final byte[] OPPONENT_TURN_FRAME = {1, LUOT_DOI_THU};
+    private static final byte[] REPLAY_FRAME = {1, CHOI_LAI};
+
+    private WireProtocol() {
+    }
+
+    // Mã hóa một tin nhắn của máy chủ. Các tin nhắn trong ván được nhận dạng bằng cách dò chỉ số,
+    // không dùng split/regex; tin nhắn lạ hoặc sai định dạng được gửi nguyên văn trong khung TEXT.
+    static byte[] encode(String message) {
+        if (message.equals("LUOT_CUA_BAN")) {
+            return YOUR_TURN_FRAME;
+        }
+        if (message.equals("LUOT_DOI_THU")) {
+            return OPPONENT_TURN_FRAME;
+        }
+        if (message.startsWith("DANH|")) {
+            // DANH|position|symbol
+            int bar = message.indexOf('|', 5);
+            int position = bar > 0 ? parseNonNegative(message, 5, bar) : -1;
+            int symbol = bar > 0 && bar + 2 == message.length() ? symbolCode(message.charAt(bar + 1)) : -1;
+            if (position >= 0 && symbol > 0) {
+                byte[] frame = newFrame(DANH, varintSize(position) + 1);
+                int p = putVarint(frame, frame.length - varintSize(position) - 1, position);
+                frame[p] = (byte) symbol;
+                return frame;
+            }
+        } else if (message.startsWith("KET_THUC|")) {
+            int result = resultCode(message.substring(9));
+            if (result > 0) {
+                byte[] frame = newFrame(KET_THUC, 1);
+                frame[frame.length - 1] = (byte) result;
+                return frame;
+            }
+        } else if (message.startsWith("HIGHLIGHT|")) {
+            byte[] frame = encodeHighlight(message);
+            if (frame != null) {
+                return frame;
+            }
+        } else if (message.startsWith("BAT_DAU|")) {
+            // BAT_DAU|symbol|size
+            int symbol = message.length() > 9 ? symbolCode(message.charAt(8)) : -1;
+            int size = message.length() > 10 && message.charAt(9) == '|'
+                    ? parseNonNegative(message, 10, message.length()) : -1;
+            if (symbol > 0 && size >= 0) {
+                byte[] frame = newFrame(BAT_DAU, 1 + varintSize(size));
+                int p = frame.length - 1 - varintSize(size);
+                frame[p++] = (byte) symbol;
+                putVarint(frame, p, size);
+                return frame;
+            }
+        }
+        return textFrame(message);
+    }
+
+    // HIGHLIGHT|a,b,c,...
+    private static byte[] encodeHighlight(String message) {
+        int start = "HIGHLIGHT|".length();
+        int count = 0;
+        int payload = 0;
+        for (int i = start; i <= message.length(); ) {
+            int comma = message.indexOf(',', i);
+            int end = comma < 0 ? message.length() : comma;
+            int position = parseNonNegative(message, i, end);
+            if (position < 0) {
+                return null;
+            }
+            count++;
+            payload += varintSize(position);
+            i = end + 1;
+        }
+        payload += varintSize(count);
+        byte[] frame = newFrame(HIGHLIGHT, payload);
+        int p = putVarint(frame, frame.length - payload, count);
+        for (int i = start; i <= message.length(); ) {
+            int comma = message.indexOf(',', i);
+            int end = comma < 0 ? message.length() : comma;
+            p = putVarint(frame, p, parseNonNegative(message, i, end));
+            i = end + 1;
+        }
+        return frame;
+    }
+
+    // Tin nhắn đã mã hóa sẵn ở cả hai dạng (dòng văn bản và khung nhị phân) để gửi cho nhiều người
+    // nhận mà không mã hóa lại cho từng người. Các mảng không bao giờ bị sửa sau khi tạo.
+    static final class Shared {
+        final String text;
+        final byte[] line;
+        final byte[] frame;
+
+        Shared(String text) {
+            this.text = text;
+            this.line = (text + "\n").getBytes(StandardCharsets.UTF_8);
+            this.frame = encode(text);
+        }
+    }
+
+    static byte[] moveFrame(int position) {
+        byte[] frame = newFrame(DANH, varintSize(position));
+        putVarint(frame, frame.length - varintSize(position), position);
+        return frame;
+    }
+
+    static byte[] replayFrame() {
+        return REPLAY_FRAME;
+    }
+
+    static byte[] textFrame(String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = newFrame(TEXT, text.length);
+        System.arraycopy(text, 0, frame, frame.length - text.length, text.length);
+        return frame;
+    }
+
+    static int symbolCode(char symbol) {
+        return symbol == 'X' ? SYMBOL_X : symbol == 'O' ? SYMBOL_O : -1;
+    }
+
+    static String symbol(int code) {
+        return code == SYMBOL_X ? "X" : code == SYMBOL_O ? "O" : "";
+    }
+
+    // "X", "O" hoặc "HOA" như trong KET_THUC|...
+    static int resultCode(String result) {
+        if (result.equals("HOA")) {
+            return RESULT_HOA;
+        }
+        return result.length() == 1 ? symbolCode(result.charAt(0)) : -1;
+    }
+
+    static String result(int code) {
+        return code == RESULT_HOA ? "HOA" : symbol(code);
+    }
+
+    // Tổng số byte của khung bắt đầu tại off (kể cả phần độ dài), hoặc -1 nếu chưa đủ byte để biết
+    static int frameLength(byte[] buf, int off, int available) throws IOException {
+        int length = 0;
+        for (int i = 0; i < 5; i++) {
+            if (i >= available) {
+                return -1;
+            }
+            int b = buf[off + i];
+            length |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                if (length <= 0 || length > MAX_FRAME_LENGTH) {
+                    throw new IOException("Độ dài khung không hợp lệ: " + length);
+                }
+                return i + 1 + length;
+            }
+        }
+        throw new IOException("Độ dài khung không hợp lệ");
+    }
+
+    private static byte[] newFrame(int opcode, int payload) {
+        int length = 1 + payload;
+        byte[] frame = new byte[varintSize(length) + length];
+        int p = putVarint(frame, 0, length);
+        frame[p] = (byte) opcode;
+        return frame;
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    // Trả về vị trí ngay sau varint vừa ghi
+    static int putVarint(byte[] buf, int p, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf[p++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[p++] = (byte) value;
+        return p;
+    }
+
+    // Số nguyên không âm trong s[from, to), -1 nếu rỗng hoặc có ký tự không phải chữ số
+    static int parseNonNegative(String s, int from, int to) {
+        if (from >= to || to - from > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    // Một khung đã nhận đủ. Được tái sử dụng cho mỗi khung mới nên người đọc phải lấy hết dữ liệu
+    // cần thiết trước khi nhận khung tiếp theo.
+    static final class Frame {
+        private byte[] data;
+        private int pos;
+        private int end;
+        private int opcode;
+
+        // buf[off, off + total) là nguyên một khung, kể cả phần độ dài
+        void wrap(byte[] buf, int off, int total) {
+            int p = off;
+            while ((buf[p] & 0x80) != 0) {
+                p++;
+            }
+            p++;
+            data = buf;
+            opcode = buf[p] & 0xFF;
+            pos = p + 1;
+            end = off + total;
+        }
+
+        int opcode() {
+            return opcode;
+        }
+
+        int readByte() {
+            if (pos >= end) {
+                throw new IllegalStateException("Khung bị cắt cụt");
+            }
+            return data[pos++] & 0xFF;
+        }
+
+        int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Varint không hợp lệ");
+        }
+
+        String readText() {
+            String text = new String(data, pos, end - pos, StandardCharsets.UTF_8);
+            pos = end;
+            return text;
+        }
+    }
+
+    // Đọc dòng văn bản hoặc khung nhị phân từ một luồng chặn, tùy chế độ hiện tại của kết nối.
+    // Có bộ đệm riêng nên có thể chuyển chế độ giữa chừng mà không mất byte nào đã đọc trước.
+    static final class Reader {
+        private final InputStream in;
+        private final byte[] buf = new byte[8 * 1024];
+        private int pos;
+        private int limit;
+        // Dòng hoặc khung đang được ghép
+        private byte[] message = new byte[256];
+        private int length;
+        private final Frame frame = new Frame();
+
+        Reader(InputStream in) {
+            this.in = in;
+        }
+
+        // Giống BufferedReader.readLine: null khi hết luồng, bỏ '\r' ở cuối dòng
+        String readLine() throws IOException {
+            length = 0;
+            int b;
+            while ((b = read()) != '\n') {
+                if (b < 0) {
+                    if (length == 0) {
+                        return null;
+                    }
+                    break;
+                }
+                append((byte) b);
+            }
+            int len = length;
+            if (len > 0 && message[len - 1] == '\r') {
+                len--;
+            }
+            return new String(message, 0, len, StandardCharsets.UTF_8);
+        }
+
+        // null khi hết luồng đúng ranh giới khung
+        Frame readFrame() throws IOException {
+            length = 0;
+            int total;
+            do {
+                int b = read();
+                if (b < 0) {
+                    if (length == 0) {
+                        return null;
+                    }
+                    throw new EOFException("Khung bị cắt cụt");
+                }
+                append((byte) b);
+            } while ((total = frameLength(message, 0, length)) < 0);
+            ensureCapacity(total);
+            while (length < total) {
+                if (pos == limit && fill() < 0) {
+                    throw new EOFException("Khung bị cắt cụt");
+                }
+                int n = Math.min(limit - pos, total - length);
+                System.arraycopy(buf, pos, message, length, n);
+                pos += n;
+                length += n;
+            }
+            frame.wrap(message, 0, total);
+            return frame;
+        }
+
+        private int read() throws IOException {
+            if (pos == limit && fill() < 0) {
+                return -1;
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        private int fill() throws IOException {
+            int n = in.read(buf, 0, buf.length);
+            if (n <= 0) {
+                return -1;
+            }
+            pos = 0;
+            limit = n;
+            return n;
+        }
+
+        private void append(byte b) throws IOException {
+            ensureCapacity(length + 1);
+            message[length++] = b;
+        }
+
+        private void ensureCapacity(int needed) throws IOException {
+            if (needed > message.length) {
+                if (needed > MAX_FRAME_LENGTH + 5) {
+                    throw new IOException("Thông điệp quá dài");
+                }
+                message = Arrays.copyOf(message, Math.min(Math.max(needed, message.length * 2), MAX_FRAME_LENGTH + 5));
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LeaderboardJournalTest {
+    @TempDir
+    Path dir;
+
+    // Lần ghi bị cắt ngang vẫn có thể trông như một dòng hợp lệ ("X,alice,b" thay vì "X,alice,bob"): chỉ
+    // dòng có ký tự xuống dòng mới được áp dụng, và phần dở bị cắt khỏi file
+    @Test
+    void tornTailIsNotReplayed() throws IOException {
+        Path gen = dir.resolve("journal.0");
+        Files.write(gen, "O,carol,dave\nX,alice,b".getBytes(StandardCharsets.UTF_8));
+        List<String> replayed = new ArrayList<>();
+        LeaderboardJournal journal = new LeaderboardJournal(dir.toFile(), "journal", 1000, 10_000);
+        journal.open(0, replayed::add);
+
+        assertEquals(List.of("O,carol,dave"), replayed);
+        assertEquals("O,carol,dave\n", new String(Files.readAllBytes(gen), StandardCharsets.UTF_8));
+        assertEquals(1, journal.generation());
+        assertEquals(0, new File(dir.toFile(), "journal.1").length());
+    }
+}
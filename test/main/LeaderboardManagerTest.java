@@ -0,0 +1,136 @@
+package main;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// LeaderboardManager là tĩnh và đọc cấu hình khi lớp được nạp, nên cả lớp kiểm thử dùng chung một thư mục
+// tạm; mỗi kiểm thử dùng tiền tố tên người chơi riêng để không đụng nhau.
+class LeaderboardManagerTest {
+    @TempDir
+    static Path dir;
+
+    @BeforeAll
+    static void load() throws InterruptedException {
+        System.setProperty("leaderboard.dir", dir.toString());
+        // Nén thường xuyên để ảnh chụp được tạo trong lúc các ván đang được ghi
+        System.setProperty("leaderboard.compactEvery", "500");
+        assertTrue(LeaderboardManager.awaitReady(TimeUnit.SECONDS.toMillis(30)));
+    }
+
+    // Nhiều ván kết thúc song song: không mất kết quả nào, và mọi ảnh chụp chụp trong lúc ghi đều là một
+    // trạng thái có thật (thắng = thua, số hòa chẵn vì mỗi ván hòa cộng cho cả hai người)
+    @Test
+    void parallelResultsAreNotLost() throws Exception {
+        int threads = 8;
+        int gamesPerThread = 20_000;
+        int players = 40;
+        long[] decisive = new long[threads];
+        long[] draws = new long[threads];
+        CountDownLatch go = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicReference<String> inconsistent = new AtomicReference<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread w = new Thread(() -> {
+                Random random = new Random(id);
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < gamesPerThread; i++) {
+                    int r = random.nextInt(3);
+                    if (r == 2) {
+                        draws[id]++;
+                    } else {
+                        decisive[id]++;
+                    }
+                    LeaderboardManager.recordGame(r == 0 ? "X" : r == 1 ? "O" : "HOA",
+                            "stress" + random.nextInt(players), "stress" + random.nextInt(players));
+                }
+            });
+            w.start();
+            writers.add(w);
+        }
+        Thread reader = new Thread(() -> {
+            while (writing.get()) {
+                long[] totals = totals(LeaderboardManager.snapshot(), "stress");
+                if (totals[0] != totals[1] || totals[2] % 2 != 0) {
+                    inconsistent.compareAndSet(null, "thắng " + totals[0] + ", thua " + totals[1] + ", hòa " + totals[2]);
+                }
+            }
+        });
+        reader.start();
+        go.countDown();
+        for (Thread w : writers) {
+            w.join();
+        }
+        writing.set(false);
+        reader.join();
+
+        long expectedDecisive = 0;
+        long expectedDraws = 0;
+        for (int t = 0; t < threads; t++) {
+            expectedDecisive += decisive[t];
+            expectedDraws += draws[t];
+        }
+        long[] totals = totals(LeaderboardManager.snapshot(), "stress");
+        assertNull(inconsistent.get(), "ảnh chụp không nhất quán");
+        assertEquals(expectedDecisive, totals[0]);
+        assertEquals(expectedDecisive, totals[1]);
+        assertEquals(2 * expectedDraws, totals[2]);
+        // Elo là tổng bằng không: mỗi ván chỉ chuyển điểm giữa hai người
+        assertEquals((long) LeaderboardManager.DEFAULT_RATING * totals[4], totals[3]);
+    }
+
+    // Kết quả không đổi điểm xếp hạng (hòa giữa hai người cùng rating) vẫn phải làm mới LEADERBOARD đã lưu đệm
+    @Test
+    void resultWithoutRatingChangeRefreshesTopN() {
+        LeaderboardManager.recordGame("HOA", "drawA", "drawB");
+        assertTrue(LeaderboardManager.serializeTopN(10_000).contains("|drawA|0|0|1|1200"));
+        LeaderboardManager.recordGame("HOA", "drawA", "drawB");
+        String top = LeaderboardManager.serializeTopN(10_000);
+        assertTrue(top.contains("|drawA|0|0|2|1200"), top);
+        assertTrue(top.contains("|drawB|0|0|2|1200"), top);
+    }
+
+    // Người sắp về 0 chỉ mất phần rating còn lại, và đối thủ cũng chỉ được cộng đúng phần đó
+    @Test
+    void eloDeltaIsClampedOnBothSides() {
+        assertEquals(-10, LeaderboardManager.eloDelta(10, 10, 0));
+        assertEquals(10, LeaderboardManager.eloDelta(10, 10, 1));
+        assertEquals(16, LeaderboardManager.eloDelta(1200, 1200, 1));
+    }
+
+    // {thắng, thua, hòa, rating, số người} cộng dồn của những người chơi có tên bắt đầu bằng prefix
+    private static long[] totals(Map<String, LeaderboardManager.StatsSnapshot> snapshot, String prefix) {
+        long[] totals = new long[5];
+        for (Map.Entry<String, LeaderboardManager.StatsSnapshot> e : snapshot.entrySet()) {
+            if (e.getKey().startsWith(prefix)) {
+                LeaderboardManager.StatsSnapshot s = e.getValue();
+                totals[0] += s.wins;
+                totals[1] += s.losses;
+                totals[2] += s.draws;
+                totals[3] += s.rating;
+                totals[4]++;
+            }
+        }
+        return totals;
+    }
+}